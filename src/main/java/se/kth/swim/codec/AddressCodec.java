@@ -0,0 +1,84 @@
+package se.kth.swim.codec;
+
+import se.kth.swim.node.AddressRegistry;
+import se.sics.p2ptoolbox.util.network.NatType;
+import se.sics.p2ptoolbox.util.network.NatedAddress;
+import se.sics.p2ptoolbox.util.network.impl.BasicAddress;
+import se.sics.p2ptoolbox.util.network.impl.BasicNatedAddress;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Encodes a NatedAddress as ip, port and id, followed by the parents if the node is behind a NAT.
+ * An open node with an IPv4 address and a small id takes 8 bytes. Decoded addresses are interned, the source address
+ * of a message is the sender's own and is published as the canonical one.
+ */
+public class AddressCodec {
+
+    private static final int FLAG_IPV6 = 1;
+    private static final int FLAG_NATED = 2;
+
+    private AddressCodec() {
+    }
+
+    public static void write(ByteBuffer buffer, NatedAddress address) {
+        byte[] ip = address.getIp().getAddress();
+        boolean nated = !address.isOpen();
+
+        buffer.put((byte) ((ip.length == 16 ? FLAG_IPV6 : 0) | (nated ? FLAG_NATED : 0)));
+        buffer.put(ip);
+        Wire.writeVarint(buffer, address.getPort());
+        Wire.writeSignedVarint(buffer, address.getId());
+
+        if (nated) {
+            buffer.put((byte) address.getNatType().ordinal());
+            Set<NatedAddress> parents = address.getParents();
+            Wire.writeVarint(buffer, parents.size());
+            for (NatedAddress parent : parents) {
+                write(buffer, parent);
+            }
+        }
+    }
+
+    public static NatedAddress read(ByteBuffer buffer) {
+        return AddressRegistry.intern(decode(buffer));
+    }
+
+    /**
+     * Reads the address a node sent as its own, see AddressRegistry.publish.
+     */
+    public static NatedAddress readOwn(ByteBuffer buffer) {
+        return AddressRegistry.publish(decode(buffer));
+    }
+
+    private static NatedAddress decode(ByteBuffer buffer) {
+        int flags = buffer.get();
+        byte[] ip = new byte[(flags & FLAG_IPV6) != 0 ? 16 : 4];
+        buffer.get(ip);
+        int port = Wire.readVarint(buffer);
+        int id = Wire.readSignedVarint(buffer);
+
+        BasicAddress baseAddress;
+        try {
+            baseAddress = new BasicAddress(InetAddress.getByAddress(ip), port, id);
+        } catch (UnknownHostException ex) {
+            throw new RuntimeException("malformed address");
+        }
+
+        if ((flags & FLAG_NATED) == 0) {
+            return new BasicNatedAddress(baseAddress);
+        }
+
+        NatType natType = NatType.values()[buffer.get()];
+        int parentCount = Wire.readCount(buffer);
+        Set<NatedAddress> parents = new LinkedHashSet<>();
+        for (int i = 0; i < parentCount; i++) {
+            parents.add(read(buffer));
+        }
+        return new BasicNatedAddress(baseAddress, natType, parents);
+    }
+}
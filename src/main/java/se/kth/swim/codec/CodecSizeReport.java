@@ -0,0 +1,154 @@
+package se.kth.swim.codec;
+
+import se.kth.swim.croupier.internal.CroupierContainer;
+import se.kth.swim.croupier.internal.CroupierShuffle;
+import se.kth.swim.croupier.internal.CroupierShuffleNet;
+import se.kth.swim.msg.*;
+import se.kth.swim.msg.net.*;
+import se.kth.swim.node.VivaldiCoordinate;
+import se.sics.p2ptoolbox.util.network.NatType;
+import se.sics.p2ptoolbox.util.network.NatedAddress;
+import se.sics.p2ptoolbox.util.network.impl.BasicAddress;
+import se.sics.p2ptoolbox.util.network.impl.BasicNatedAddress;
+import se.sics.p2ptoolbox.util.network.impl.SourceHeader;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Prints the encoded size of every message type, plain and compressed, and the compression ratio per type.
+ * Also fails if a message doesn't encode to the same bytes after a round trip, field by field checks are in MessageCodecTest.
+ * Run with the number of piggybacked nodes as argument, default 10.
+ */
+public class CodecSizeReport {
+
+    public static void main(String[] args) {
+        int nodeCount = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+
+        NatedAddress self = openAddress(1);
+        NatedAddress other = openAddress(2);
+        NatedAddress nated = natedAddress(3, self, other);
+
+        Map<NatedAddress, Integer> nodes = new HashMap<>();
+        for (int i = 0; i < nodeCount; i++) {
+            nodes.put(i % 4 == 0 ? natedAddress(10 + i, self, other) : openAddress(10 + i), (i + 1) << 16);
+        }
+        Set<NatedAddress> addresses = new HashSet<>(nodes.keySet());
+
+        //Statuses and membership chunks are keyed by id, chunks carry the addresses on the side.
+        Map<Integer, Integer> nodeIds = new HashMap<>();
+        Map<Integer, NatedAddress> addressesById = new HashMap<>();
+        for (NatedAddress address : addresses) {
+            nodeIds.put(address.getId(), nodes.get(address));
+            addressesById.put(address.getId(), address);
+        }
+        Set<Integer> ids = new HashSet<>(nodeIds.keySet());
+
+        VivaldiCoordinate coordinate = new VivaldiCoordinate(12.5, -3.25, 0.5, 0.3);
+        Map<String, String> tags = new HashMap<>();
+        tags.put("role", "storage");
+        tags.put("zone", "eu-north");
+        MetadataDelta metadataDelta = MetadataDelta.full(MemberMetadata.of(2, tags));
+
+        Map<Integer, Set<Integer>> deadObservers = new HashMap<>();
+        deadObservers.put(10, new HashSet<>(Arrays.asList(1, 2, 3)));
+        Map<Integer, MetadataDelta> metadataDeltas = new HashMap<>();
+        metadataDeltas.put(other.getId(), metadataDelta);
+        long[] hashes = new long[32];
+        int[] ages = new int[32];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = i * 0x9E3779B97F4A7C15L;
+            ages[i] = i % 10;
+        }
+
+        Set<CroupierContainer> containers = new HashSet<>();
+        for (NatedAddress address : addresses) {
+            containers.add(new CroupierContainer(address, coordinate, 3));
+        }
+
+        List<NetMsg> messages = new ArrayList<>();
+        messages.add(new NetPing(self, other, 42, 1 << 16, coordinate, Ping.NOT_SUSPECTED));
+        Pong.Builder pong = new Pong.Builder();
+        for (NatedAddress address : nodes.keySet()) {
+            pong.add((byte) (address.getId() % 4), address, nodes.get(address));
+        }
+        messages.add(new NetPong(self, other, pong
+                .pingNr(42).incarnationCounter(1 << 16).coordinate(coordinate)
+                .sizeSketch(new SizeSketch(hashes, ages)).deadObservers(deadObservers).metadata(metadataDeltas, 2)
+                .build()));
+        messages.add(new NetKPing(self, other, nated, 42));
+        messages.add(new NetKPong(self, other, nated, 1 << 16, 42));
+        messages.add(new NetAlive(self, other, 1 << 16));
+        messages.add(new NetJoin(self, other, 1 << 16));
+        messages.add(new NetLeave(self, other, 1 << 16));
+        messages.add(new NetNatPing(nated, self, 42));
+        messages.add(new NetNatPong(self, nated, 42));
+        messages.add(new NetStatus(self, other, new Status.Builder().statusNr(7).pings(100, 100).aliveNodes(nodeIds).suspectedNodes(nodeIds).deadNodes(nodeIds).build()));
+        messages.add(new NetStatusDelta(self, other, new StatusDelta(8, 7, 100, 100, nodeIds, nodeIds, nodeIds, ids, ids, ids)));
+        messages.add(new NetStatusAck(other, self, 7));
+        messages.add(new NetStatusDigest(self, other, new StatusDigest(7, 100, 100, nodeCount, 0x1234567890ABCDEFL)));
+        messages.add(new NetStatusRequest(other, self, 7));
+        messages.add(new NetMembershipChunk(self, other, new MembershipChunk(nodeIds, nodeIds, addressesById, 1, 3)));
+        messages.add(new NetMetadata(self, other, metadataDelta));
+        messages.add(new NetMetadataRequest(self, other, 1));
+        messages.add(new CroupierShuffleNet.Request(self, other, 0, new CroupierShuffle.Request(UUID.randomUUID(), containers, containers)));
+        messages.add(new CroupierShuffleNet.Response(self, other, 0, new CroupierShuffle.Response(UUID.randomUUID(), containers, containers)));
+
+        List<NetMsg> batched = Arrays.<NetMsg>asList(new NetAlive(self, other, 1 << 16), new NetKPong(self, other, nated, 1 << 16, 42), new NetStatusAck(self, other, 7));
+        messages.add(new NetBatch(self, other, new Batch(batched)));
+
+        //Sent through a parent, to cover the relay header.
+        messages.add(new NetPing(self, nated, 42, 1 << 16, coordinate, Ping.NOT_SUSPECTED).copyMessage(new SourceHeader<>(new NetPing(self, nated, 0, 0, coordinate, Ping.NOT_SUSPECTED).getHeader(), self)));
+
+        MessageCodec plainCodec = new MessageCodec(0);
+        MessageCodec codec = new MessageCodec();
+        boolean failed = false;
+        System.out.println("Encoded sizes with " + nodeCount + " piggybacked nodes, plain and with compression:");
+        for (NetMsg msg : messages) {
+            byte[] plain = toArray(plainCodec.encode(msg));
+            byte[] encoded = toArray(codec.encode(msg));
+
+            //Both forms must decode to a message that encodes to the same bytes.
+            byte[] fromPlain = toArray(plainCodec.encode(MessageCodec.read(ByteBuffer.wrap(plain))));
+            NetMsg decoded = MessageCodec.read(ByteBuffer.wrap(encoded));
+            byte[] fromCompressed = toArray(plainCodec.encode(decoded));
+
+            boolean roundTrip = decoded.getClass() == msg.getClass() && Arrays.equals(plain, fromPlain) && Arrays.equals(plain, fromCompressed);
+            failed |= !roundTrip;
+            System.out.println(String.format("  %-36s %6d bytes %6d bytes%s", msg.getClass().getSimpleName() + " " + msg.getHeader().getClass().getSimpleName(), plain.length, encoded.length, roundTrip ? "" : "  ROUND TRIP FAILED"));
+        }
+
+        System.out.println("Compression per message type:");
+        for (Map.Entry<String, CompressionStats> entry : codec.getCompressionStats().entrySet()) {
+            System.out.println("  " + entry.getKey() + ": " + entry.getValue());
+        }
+
+        if (failed) {
+            throw new RuntimeException("codec round trip failed");
+        }
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static BasicAddress baseAddress(int id) {
+        try {
+            return new BasicAddress(InetAddress.getByName("127.0.0.1"), 12345, id);
+        } catch (UnknownHostException ex) {
+            throw new RuntimeException("cannot create address for localhost");
+        }
+    }
+
+    private static NatedAddress openAddress(int id) {
+        return new BasicNatedAddress(baseAddress(id));
+    }
+
+    private static NatedAddress natedAddress(int id, NatedAddress... parents) {
+        return new BasicNatedAddress(baseAddress(id), NatType.NAT, new HashSet<>(Arrays.asList(parents)));
+    }
+}
@@ -0,0 +1,40 @@
+package se.kth.swim.codec;
+
+/**
+ * Bytes before and after compression for one message type, counting every message that was large enough to be compressed.
+ */
+public class CompressionStats {
+
+    private int messages;
+    private long rawBytes, sentBytes;
+
+    void add(int raw, int sent) {
+        messages++;
+        rawBytes += raw;
+        sentBytes += sent;
+    }
+
+    public int getMessages() {
+        return messages;
+    }
+
+    public long getRawBytes() {
+        return rawBytes;
+    }
+
+    public long getSentBytes() {
+        return sentBytes;
+    }
+
+    /**
+     * Returns how many times smaller the messages got, 1 if nothing was saved.
+     */
+    public double getRatio() {
+        return sentBytes == 0 ? 1 : (double) rawBytes / sentBytes;
+    }
+
+    @Override
+    public String toString() {
+        return messages + " messages, " + rawBytes + " -> " + sentBytes + " bytes, ratio " + String.format("%.2f", getRatio());
+    }
+}
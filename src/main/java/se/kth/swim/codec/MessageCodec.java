@@ -0,0 +1,773 @@
+package se.kth.swim.codec;
+
+import se.kth.swim.croupier.internal.CroupierContainer;
+import se.kth.swim.croupier.internal.CroupierShuffle;
+import se.kth.swim.croupier.internal.CroupierShuffleNet;
+import se.kth.swim.croupier.util.OverlayHeaderImpl;
+import se.kth.swim.msg.*;
+import se.kth.swim.msg.net.*;
+import se.kth.swim.node.Incarnation;
+import se.kth.swim.node.VivaldiCoordinate;
+import se.sics.kompics.network.Header;
+import se.sics.kompics.network.Transport;
+import se.sics.p2ptoolbox.util.network.NatedAddress;
+import se.sics.p2ptoolbox.util.network.OverlayHeader;
+import se.sics.p2ptoolbox.util.network.impl.BasicHeader;
+import se.sics.p2ptoolbox.util.network.impl.RelayHeader;
+import se.sics.p2ptoolbox.util.network.impl.SourceHeader;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Binary wire format for all network messages.
+ * A message is a one byte type tag, the header and then the content. Counters and ids are varints and
+ * coordinates are floats, so a ping fits in about 40 bytes.
+ * Each instance keeps one buffer that is reused for every encode, so an instance must only be used by one component.
+ * Statuses, pongs, membership chunks, shuffles and batches larger than the compression threshold are deflated,
+ * which is marked by the high bit of the type tag.
+ */
+public class MessageCodec {
+
+    public static final int MAX_MESSAGE_SIZE = 65507; //Largest UDP payload.
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 512; //Smaller messages don't gain enough to pay for deflating.
+
+    private static final int COMPRESSED = 0x80; //Set on the type tag of a compressed message.
+
+    //Type tags. Never reuse or renumber a tag, add new ones at the end.
+    private static final byte PING = 1;
+    private static final byte PONG = 2;
+    private static final byte K_PING = 3;
+    private static final byte K_PONG = 4;
+    private static final byte ALIVE = 5;
+    private static final byte JOIN = 6;
+    private static final byte LEAVE = 7;
+    private static final byte NAT_PING = 8;
+    private static final byte NAT_PONG = 9;
+    private static final byte STATUS = 10;
+    private static final byte STATUS_DELTA = 11;
+    private static final byte STATUS_ACK = 12;
+    private static final byte STATUS_DIGEST = 13;
+    private static final byte STATUS_REQUEST = 14;
+    private static final byte MEMBERSHIP_CHUNK = 15;
+    private static final byte METADATA = 16;
+    private static final byte METADATA_REQUEST = 17;
+    private static final byte SHUFFLE_REQUEST = 18;
+    private static final byte SHUFFLE_RESPONSE = 19;
+    private static final byte BATCH = 20;
+    private static final byte STATUS_CHECKPOINT = 21; //A status the aggregator acknowledges, same encoding as STATUS.
+
+    //Header kinds. Source and relay headers wrap another header.
+    private static final byte BASIC_HEADER = 0;
+    private static final byte OVERLAY_HEADER = 1;
+    private static final byte SOURCE_HEADER = 2;
+    private static final byte RELAY_HEADER = 3;
+
+    //Croupier container content kinds.
+    private static final byte NO_CONTENT = 0;
+    private static final byte EMPTY_CONTENT = 1;
+    private static final byte COORDINATE_CONTENT = 2;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
+    private final byte[] compressed = new byte[MAX_MESSAGE_SIZE];
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final int compressionThreshold;
+    private final Map<String, CompressionStats> compressionStats = new TreeMap<>();
+
+    public MessageCodec() {
+        this(DEFAULT_COMPRESSION_THRESHOLD);
+    }
+
+    /**
+     * Creates a codec that compresses messages above the given size in bytes. 0 never compresses.
+     */
+    public MessageCodec(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Encodes the message into the reused buffer and returns it ready for reading.
+     * The returned buffer is only valid until the next call.
+     */
+    public ByteBuffer encode(NetMsg msg) {
+        buffer.clear();
+        try {
+            write(buffer, msg);
+        } catch (BufferOverflowException ex) {
+            throw new RuntimeException("message " + msg.getClass().getSimpleName() + " is larger than " + MAX_MESSAGE_SIZE + " bytes");
+        }
+        if (compressionThreshold > 0 && buffer.position() > compressionThreshold && isCompressible(buffer.get(0))) {
+            compress(msg.getClass().getSimpleName());
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Releases the native memory of the deflater. The codec can't be used afterwards.
+     */
+    public void close() {
+        deflater.end();
+    }
+
+    /**
+     * Returns bytes before and after compression per message type.
+     */
+    public Map<String, CompressionStats> getCompressionStats() {
+        return compressionStats;
+    }
+
+    private static boolean isCompressible(byte type) {
+        return type == STATUS || type == STATUS_CHECKPOINT || type == STATUS_DELTA || type == PONG || type == MEMBERSHIP_CHUNK
+                || type == SHUFFLE_REQUEST || type == SHUFFLE_RESPONSE || type == BATCH;
+    }
+
+    /**
+     * Helper function. Deflates everything after the type tag, and keeps the result if it is smaller.
+     */
+    private void compress(String type) {
+        int length = buffer.position();
+        deflater.reset();
+        deflater.setInput(buffer.array(), 1, length - 1);
+        deflater.finish();
+        int compressedLength = deflater.deflate(compressed);
+
+        //Tag and length of the uncompressed message take up to 6 bytes.
+        if (deflater.finished() && compressedLength + 6 < length) {
+            byte tag = buffer.get(0);
+            buffer.clear();
+            buffer.put((byte) (tag | COMPRESSED));
+            Wire.writeVarint(buffer, length - 1);
+            buffer.put(compressed, 0, compressedLength);
+        }
+
+        CompressionStats stats = compressionStats.get(type);
+        if (stats == null) {
+            stats = new CompressionStats();
+            compressionStats.put(type, stats);
+        }
+        stats.add(length, buffer.position());
+    }
+
+    /**
+     * Writes the message at the position of the given buffer.
+     */
+    public static void write(ByteBuffer buffer, NetMsg msg) {
+        write(buffer, msg, true);
+    }
+
+    /**
+     * Helper function. Messages inside a batch are written without header, they share the header of the batch.
+     */
+    private static void write(ByteBuffer buffer, NetMsg msg, boolean withHeader) {
+        Object content = msg.getContent();
+
+        if (msg instanceof NetPing) {
+            buffer.put(PING);
+            writeHeader(buffer, msg.getHeader(), withHeader);
+            Ping ping = (Ping) content;
+            Wire.writeVarint(buffer, ping.getPingNr());
+            writeIncarnation(buffer, ping.getIncarnationCounter());
+            writeCoordinate(buffer, ping.getCoordinate());
+            writeIncarnation(buffer, ping.getSuspectedIncarnation());
+        } else if (msg instanceof NetPong) {
+            buffer.put(PONG);
+            writeHeader(buffer, msg.getHeader(), withHeader);
+            writePong(buffer, (Pong) content);
+        } else if (msg instanceof NetKPing) {
+            buffer.put(K_PING);
+            writeHeader(buffer, msg.getHeader(), withHeader);
+            KPing kPing = (KPing) content;
+            AddressCodec.write(buffer, kPing.getAddressToPing());
+            Wire.writeVarint(buffer, kPing.getPingNr());
+        } else if (msg instanceof NetKPong) {
+            buffer.put(K_PONG);
+            writeHeader(buffer, msg.getHeader(), withHeader);
+            KPong kPong = (KPong) content;
+            AddressCodec.write(buffer, kPong.getAddress());
+            writeIncarnation(buffer, kPong.getIncarnationCounter());
+            Wire.writeVarint(buffer, kPong.getPingNr());
+        } else if (msg instanceof NetAlive) {
+            buffer.put(ALIVE);
+            writeHeader(buffer, msg.getHeader(), withHeader);
+            writeIncarnation(buffer, ((Alive) content).getIncarnationCounter());
+        } else if (msg instanceof NetJoin) {
+            buffer.put(JOIN);
+            writeHeader(buffer, msg.getHeader(), withHeader);
+            writeIncarnation(buffer, ((Join) content).getIncarnationCounter());
+        } else if (msg instanceof NetLeave) {
+            buffer.put(LEAVE);
+            writeHeader(buffer, msg.getHeader(), withHeader);
+            writeIncarnation(buffer, ((Leave) content).getIncarnationCounter());
+        } else if (msg instanceof NetNatPing) {
+            buffer.put(NAT_PING);
+            writeHeader(buffer, msg.getHeader(), withHeader);
+            Wire.writeVarint(buffer, ((NatPing) content).getPingNr());
+        } else if (msg instanceof NetNatPong) {
+            buffer.put(NAT_PONG);
+            writeHeader(buffer, msg.getHeader(), withHeader);
+            Wire.writeVarint(buffer, ((NatPong) content).getPingNr());
+        } else if (msg instanceof NetStatus) {
+            buffer.put(((NetStatus) msg).isAckRequested() ? STATUS_CHECKPOINT : STATUS);
+            writeHeader(buffer, msg.getHeader(), withHeader);
+            Status status = (Status) content;
+            Wire.writeVarint(buffer, status.getStatusNr());
+            Wire.writeVarint(buffer, status.getReceivedPings());
+            Wire.writeVarint(buffer, status.getSentPings());
+            writeNodes(buffer, status.getAliveNodes());
+            writeNodes(buffer, status.getSuspectedNodes());
+            writeNodes(buffer, status.getDeadNodes());
+        } else if (msg instanceof NetStatusDelta) {
+            buffer.put(STATUS_DELTA);
+            writeHeader(buffer, msg.getHeader(), withHeader);
+            StatusDelta delta = (StatusDelta) content;
+            Wire.writeVarint(buffer, delta.getStatusNr());
+            Wire.writeVarint(buffer, delta.getBaseStatusNr());
+            Wire.writeVarint(buffer, delta.getReceivedPings());
+            Wire.writeVarint(buffer, delta.getSentPings());
+            writeNodes(buffer, delta.getChangedAliveNodes());
+            writeNodes(buffer, delta.getChangedSuspectedNodes());
+            writeNodes(buffer, delta.getChangedDeadNodes());
+            writeIds(buffer, delta.getRemovedAliveNodes());
+            writeIds(buffer, delta.getRemovedSuspectedNodes());
+            writeIds(buffer, delta.getRemovedDeadNodes());
+        } else if (msg instanceof NetStatusAck) {
+            buffer.put(STATUS_ACK);
+            writeHeader(buffer, msg.getHeader(), withHeader);
+            Wire.writeVarint(buffer, ((StatusAck) content).getStatusNr());
+        } else if (msg instanceof NetStatusDigest) {
+            buffer.put(STATUS_DIGEST);
+            writeHeader(buffer, msg.getHeader(), withHeader);
+            StatusDigest digest = (StatusDigest) content;
+            Wire.writeVarint(buffer, digest.getStatusNr());
+            Wire.writeVarint(buffer, digest.getReceivedPings());
+            Wire.writeVarint(buffer, digest.getSentPings());
+            Wire.writeVarint(buffer, digest.getAliveCount());
+            buffer.putLong(digest.getAliveHash());
+        } else if (msg instanceof NetStatusRequest) {
+            buffer.put(STATUS_REQUEST);
+            writeHeader(buffer, msg.getHeader(), withHeader);
+            Wire.writeVarint(buffer, ((StatusRequest) content).getStatusNr());
+        } else if (msg instanceof NetMembershipChunk) {
+            buffer.put(MEMBERSHIP_CHUNK);
+            writeHeader(buffer, msg.getHeader(), withHeader);
+            MembershipChunk chunk = (MembershipChunk) content;
+            writeNodes(buffer, chunk.getAliveNodes(), chunk);
+            writeNodes(buffer, chunk.getDeadNodes(), chunk);
+            Wire.writeVarint(buffer, chunk.getChunkNr());
+            Wire.writeVarint(buffer, chunk.getChunkCount());
+        } else if (msg instanceof NetMetadata) {
+            buffer.put(METADATA);
+            writeHeader(buffer, msg.getHeader(), withHeader);
+            writeMetadataDelta(buffer, (MetadataDelta) content);
+        } else if (msg instanceof NetMetadataRequest) {
+            buffer.put(METADATA_REQUEST);
+            writeHeader(buffer, msg.getHeader(), withHeader);
+            Wire.writeVarint(buffer, ((MetadataRequest) content).getKnownVersion());
+        } else if (msg instanceof CroupierShuffleNet.Request) {
+            buffer.put(SHUFFLE_REQUEST);
+            writeHeader(buffer, msg.getHeader(), withHeader);
+            writeShuffle(buffer, (CroupierShuffle.Basic) content);
+        } else if (msg instanceof CroupierShuffleNet.Response) {
+            buffer.put(SHUFFLE_RESPONSE);
+            writeHeader(buffer, msg.getHeader(), withHeader);
+            writeShuffle(buffer, (CroupierShuffle.Basic) content);
+        } else if (msg instanceof NetBatch) {
+            buffer.put(BATCH);
+            writeHeader(buffer, msg.getHeader(), withHeader);
+            List<NetMsg> messages = ((Batch) content).getMessages();
+            Wire.writeVarint(buffer, messages.size());
+            for (NetMsg batched : messages) {
+                write(buffer, batched, false);
+            }
+        } else {
+            throw new RuntimeException("no wire format for " + msg.getClass().getName());
+        }
+    }
+
+    /**
+     * Reads one message from the position of the given buffer.
+     */
+    public static NetMsg read(ByteBuffer buffer) {
+        if ((buffer.get(buffer.position()) & COMPRESSED) != 0) {
+            return read(inflate(buffer), null);
+        }
+        return read(buffer, null);
+    }
+
+    /**
+     * Helper function. Returns the uncompressed message, a compressed message takes up the rest of the buffer.
+     */
+    private static ByteBuffer inflate(ByteBuffer buffer) {
+        byte type = buffer.get();
+        int length = Wire.readVarint(buffer);
+        if (length < 0 || length >= MAX_MESSAGE_SIZE) {
+            throw new RuntimeException("malformed compressed message length " + length);
+        }
+        byte[] input = new byte[buffer.remaining()];
+        buffer.get(input);
+
+        byte[] message = new byte[length + 1];
+        message[0] = (byte) (type & ~COMPRESSED);
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input);
+            if (inflater.inflate(message, 1, length) != length) {
+                throw new RuntimeException("truncated compressed message");
+            }
+        } catch (DataFormatException ex) {
+            throw new RuntimeException("malformed compressed message");
+        } finally {
+            inflater.end();
+        }
+        return ByteBuffer.wrap(message);
+    }
+
+    /**
+     * Helper function. Messages inside a batch have no header of their own and get the given one.
+     */
+    private static NetMsg read(ByteBuffer buffer, Header<NatedAddress> batchHeader) {
+        byte type = buffer.get();
+        Header<NatedAddress> header = batchHeader == null ? readHeader(buffer) : batchHeader;
+        NatedAddress src = header.getSource();
+        NatedAddress dst = header.getDestination();
+
+        NetMsg msg;
+        switch (type) {
+            case PING:
+                msg = new NetPing(src, dst, Wire.readVarint(buffer), readIncarnation(buffer), readCoordinate(buffer), readIncarnation(buffer));
+                break;
+            case PONG:
+                msg = new NetPong(src, dst, readPong(buffer));
+                break;
+            case K_PING:
+                msg = new NetKPing(src, dst, AddressCodec.read(buffer), Wire.readVarint(buffer));
+                break;
+            case K_PONG:
+                msg = new NetKPong(src, dst, AddressCodec.read(buffer), readIncarnation(buffer), Wire.readVarint(buffer));
+                break;
+            case ALIVE:
+                msg = new NetAlive(src, dst, readIncarnation(buffer));
+                break;
+            case JOIN:
+                msg = new NetJoin(src, dst, readIncarnation(buffer));
+                break;
+            case LEAVE:
+                msg = new NetLeave(src, dst, readIncarnation(buffer));
+                break;
+            case NAT_PING:
+                msg = new NetNatPing(src, dst, Wire.readVarint(buffer));
+                break;
+            case NAT_PONG:
+                msg = new NetNatPong(src, dst, Wire.readVarint(buffer));
+                break;
+            case STATUS:
+            case STATUS_CHECKPOINT:
+                msg = new NetStatus(src, dst, new Status.Builder()
+                        .statusNr(Wire.readVarint(buffer))
+                        .pings(Wire.readVarint(buffer), Wire.readVarint(buffer))
+                        .aliveNodes(readNodes(buffer))
+                        .suspectedNodes(readNodes(buffer))
+                        .deadNodes(readNodes(buffer))
+                        .build(), type == STATUS_CHECKPOINT);
+                break;
+            case STATUS_DELTA:
+                msg = new NetStatusDelta(src, dst, new StatusDelta(Wire.readVarint(buffer), Wire.readVarint(buffer), Wire.readVarint(buffer), Wire.readVarint(buffer),
+                        readNodes(buffer), readNodes(buffer), readNodes(buffer),
+                        readIds(buffer), readIds(buffer), readIds(buffer)));
+                break;
+            case STATUS_ACK:
+                msg = new NetStatusAck(src, dst, Wire.readVarint(buffer));
+                break;
+            case STATUS_DIGEST:
+                msg = new NetStatusDigest(src, dst, new StatusDigest(Wire.readVarint(buffer), Wire.readVarint(buffer), Wire.readVarint(buffer), Wire.readVarint(buffer), buffer.getLong()));
+                break;
+            case STATUS_REQUEST:
+                msg = new NetStatusRequest(src, dst, Wire.readVarint(buffer));
+                break;
+            case MEMBERSHIP_CHUNK: {
+                Map<Integer, NatedAddress> addresses = new HashMap<>();
+                Map<Integer, Integer> aliveNodes = readNodes(buffer, addresses);
+                Map<Integer, Integer> deadNodes = readNodes(buffer, addresses);
+                msg = new NetMembershipChunk(src, dst, new MembershipChunk(aliveNodes, deadNodes, addresses, Wire.readVarint(buffer), Wire.readVarint(buffer)));
+                break;
+            }
+            case METADATA:
+                msg = new NetMetadata(src, dst, readMetadataDelta(buffer));
+                break;
+            case METADATA_REQUEST:
+                msg = new NetMetadataRequest(src, dst, Wire.readVarint(buffer));
+                break;
+            case SHUFFLE_REQUEST: {
+                UUID id = readUuid(buffer);
+                return new CroupierShuffleNet.Request(header, new CroupierShuffle.Request(id, readContainers(buffer), readContainers(buffer)));
+            }
+            case SHUFFLE_RESPONSE: {
+                UUID id = readUuid(buffer);
+                return new CroupierShuffleNet.Response(header, new CroupierShuffle.Response(id, readContainers(buffer), readContainers(buffer)));
+            }
+            case BATCH: {
+                int count = Wire.readCount(buffer);
+                Header<NatedAddress> innerHeader = new BasicHeader<>(src, dst, Transport.UDP);
+                List<NetMsg> messages = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    messages.add(read(buffer, innerHeader));
+                }
+                msg = new NetBatch(src, dst, new Batch(messages));
+                break;
+            }
+            default:
+                throw new RuntimeException("unknown message type " + type);
+        }
+
+        //The message constructors create a basic header, put back relay headers.
+        if (header instanceof BasicHeader) {
+            return msg;
+        }
+        return msg.copyMessage(header);
+    }
+
+    /**
+     * Helper function. Writes a header, recursing into the header wrapped by source and relay headers.
+     */
+    private static void writeHeader(ByteBuffer buffer, Header<NatedAddress> header, boolean withHeader) {
+        if (withHeader) {
+            writeHeader(buffer, header);
+        }
+    }
+
+    private static void writeHeader(ByteBuffer buffer, Header<NatedAddress> header) {
+        if (header instanceof SourceHeader) {
+            SourceHeader<NatedAddress> sourceHeader = (SourceHeader<NatedAddress>) header;
+            buffer.put(SOURCE_HEADER);
+            AddressCodec.write(buffer, sourceHeader.getDestination());
+            writeHeader(buffer, sourceHeader.getActualHeader());
+        } else if (header instanceof RelayHeader) {
+            RelayHeader<NatedAddress> relayHeader = (RelayHeader<NatedAddress>) header;
+            buffer.put(RELAY_HEADER);
+            AddressCodec.write(buffer, relayHeader.getSource());
+            writeHeader(buffer, relayHeader.getActualHeader());
+        } else if (header instanceof OverlayHeader) {
+            buffer.put(OVERLAY_HEADER);
+            buffer.put((byte) header.getProtocol().ordinal());
+            AddressCodec.write(buffer, header.getSource());
+            AddressCodec.write(buffer, header.getDestination());
+            Wire.writeSignedVarint(buffer, ((OverlayHeader) header).getOverlayId());
+        } else {
+            buffer.put(BASIC_HEADER);
+            buffer.put((byte) header.getProtocol().ordinal());
+            AddressCodec.write(buffer, header.getSource());
+            AddressCodec.write(buffer, header.getDestination());
+        }
+    }
+
+    private static Header<NatedAddress> readHeader(ByteBuffer buffer) {
+        byte kind = buffer.get();
+        switch (kind) {
+            case SOURCE_HEADER: {
+                NatedAddress relay = AddressCodec.read(buffer);
+                return new SourceHeader<>(readHeader(buffer), relay);
+            }
+            case RELAY_HEADER: {
+                NatedAddress relay = AddressCodec.read(buffer);
+                return new RelayHeader<>(readHeader(buffer), relay);
+            }
+            case OVERLAY_HEADER: {
+                Transport protocol = Transport.values()[buffer.get()];
+                BasicHeader<NatedAddress> base = new BasicHeader<>(AddressCodec.readOwn(buffer), AddressCodec.read(buffer), protocol);
+                return new OverlayHeaderImpl<>(base, Wire.readSignedVarint(buffer));
+            }
+            case BASIC_HEADER: {
+                Transport protocol = Transport.values()[buffer.get()];
+                return new BasicHeader<>(AddressCodec.readOwn(buffer), AddressCodec.read(buffer), protocol);
+            }
+            default:
+                throw new RuntimeException("unknown header kind " + kind);
+        }
+    }
+
+    private static void writePong(ByteBuffer buffer, Pong pong) {
+        Wire.writeVarint(buffer, pong.size());
+        for (int i = 0; i < pong.size(); i++) {
+            buffer.put(pong.getState(i));
+            AddressCodec.write(buffer, pong.getAddress(i));
+            writeIncarnation(buffer, pong.getIncarnationCounter(i));
+        }
+        Wire.writeVarint(buffer, pong.getPingNr());
+        writeIncarnation(buffer, pong.getIncarnationCounter());
+        writeCoordinate(buffer, pong.getCoordinate());
+
+        SizeSketch sizeSketch = pong.getSizeSketch();
+        Wire.writeVarint(buffer, sizeSketch.size());
+        for (int i = 0; i < sizeSketch.size(); i++) {
+            buffer.putLong(sizeSketch.getHash(i));
+            Wire.writeVarint(buffer, sizeSketch.getAge(i));
+        }
+
+        Map<Integer, Set<Integer>> deadObservers = pong.getDeadObservers();
+        Wire.writeVarint(buffer, deadObservers.size());
+        for (Map.Entry<Integer, Set<Integer>> entry : deadObservers.entrySet()) {
+            Wire.writeSignedVarint(buffer, entry.getKey());
+            Wire.writeVarint(buffer, entry.getValue().size());
+            for (Integer observer : entry.getValue()) {
+                Wire.writeSignedVarint(buffer, observer);
+            }
+        }
+
+        Map<Integer, MetadataDelta> metadataDeltas = pong.getMetadataDeltas();
+        Wire.writeVarint(buffer, metadataDeltas.size());
+        for (Map.Entry<Integer, MetadataDelta> entry : metadataDeltas.entrySet()) {
+            Wire.writeSignedVarint(buffer, entry.getKey());
+            writeMetadataDelta(buffer, entry.getValue());
+        }
+
+        Wire.writeVarint(buffer, pong.getMetadataVersion());
+    }
+
+    private static Pong readPong(ByteBuffer buffer) {
+        Pong.Builder pong = new Pong.Builder();
+
+        int entryCount = Wire.readCount(buffer);
+        for (int i = 0; i < entryCount; i++) {
+            byte state = buffer.get();
+            NatedAddress address = AddressCodec.read(buffer);
+            pong.add(state, address, readIncarnation(buffer));
+        }
+
+        int pingNr = Wire.readVarint(buffer);
+        int incarnationCounter = readIncarnation(buffer);
+        VivaldiCoordinate coordinate = readCoordinate(buffer);
+
+        int sketchSize = Wire.readCount(buffer);
+        long[] hashes = new long[sketchSize];
+        int[] ages = new int[sketchSize];
+        for (int i = 0; i < sketchSize; i++) {
+            hashes[i] = buffer.getLong();
+            ages[i] = Wire.readVarint(buffer);
+        }
+
+        int deadCount = Wire.readCount(buffer);
+        Map<Integer, Set<Integer>> deadObservers = new LinkedHashMap<>();
+        for (int i = 0; i < deadCount; i++) {
+            int id = Wire.readSignedVarint(buffer);
+            int observerCount = Wire.readCount(buffer);
+            Set<Integer> observers = new LinkedHashSet<>();
+            for (int j = 0; j < observerCount; j++) {
+                observers.add(Wire.readSignedVarint(buffer));
+            }
+            deadObservers.put(id, observers);
+        }
+
+        int metadataCount = Wire.readCount(buffer);
+        Map<Integer, MetadataDelta> metadataDeltas = new LinkedHashMap<>();
+        for (int i = 0; i < metadataCount; i++) {
+            int id = Wire.readSignedVarint(buffer);
+            metadataDeltas.put(id, readMetadataDelta(buffer));
+        }
+
+        int metadataVersion = Wire.readVarint(buffer);
+
+        return pong.pingNr(pingNr)
+                .incarnationCounter(incarnationCounter)
+                .coordinate(coordinate)
+                .sizeSketch(new SizeSketch(hashes, ages))
+                .deadObservers(deadObservers)
+                .metadata(metadataDeltas, metadataVersion)
+                .build();
+    }
+
+    /**
+     * Helper function. The epoch and the counter of an incarnation counter are written as separate varints,
+     * as a whole the epoch in the high bits would always take five bytes. Usually that leaves three or four bytes.
+     * The epoch is signed, a negative value is a special incarnation counter like Incarnation.UNKNOWN and takes one byte.
+     */
+    private static void writeIncarnation(ByteBuffer buffer, int incarnationCounter) {
+        if (incarnationCounter < 0) {
+            Wire.writeSignedVarint(buffer, incarnationCounter);
+            return;
+        }
+        Wire.writeSignedVarint(buffer, Incarnation.getEpoch(incarnationCounter));
+        Wire.writeVarint(buffer, Incarnation.getCounter(incarnationCounter));
+    }
+
+    private static int readIncarnation(ByteBuffer buffer) {
+        int epoch = Wire.readSignedVarint(buffer);
+        if (epoch < 0) {
+            return epoch;
+        }
+        return Incarnation.of(epoch, Wire.readVarint(buffer));
+    }
+
+    /**
+     * Helper function. Writes a map of node ids to incarnation counters.
+     */
+    private static void writeNodes(ByteBuffer buffer, Map<Integer, Integer> nodes) {
+        Wire.writeVarint(buffer, nodes.size());
+        for (Map.Entry<Integer, Integer> entry : nodes.entrySet()) {
+            Wire.writeSignedVarint(buffer, entry.getKey());
+            writeIncarnation(buffer, entry.getValue());
+        }
+    }
+
+    private static Map<Integer, Integer> readNodes(ByteBuffer buffer) {
+        int count = Wire.readCount(buffer);
+        Map<Integer, Integer> nodes = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            int id = Wire.readSignedVarint(buffer);
+            nodes.put(id, readIncarnation(buffer));
+        }
+        return nodes;
+    }
+
+    /**
+     * Helper function. Writes a map of node ids to incarnation counters with the address of every node, for a joining node that doesn't know them.
+     */
+    private static void writeNodes(ByteBuffer buffer, Map<Integer, Integer> nodes, MembershipChunk chunk) {
+        Wire.writeVarint(buffer, nodes.size());
+        for (Map.Entry<Integer, Integer> entry : nodes.entrySet()) {
+            AddressCodec.write(buffer, chunk.getAddress(entry.getKey()));
+            writeIncarnation(buffer, entry.getValue());
+        }
+    }
+
+    private static Map<Integer, Integer> readNodes(ByteBuffer buffer, Map<Integer, NatedAddress> addresses) {
+        int count = Wire.readCount(buffer);
+        Map<Integer, Integer> nodes = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            NatedAddress address = AddressCodec.read(buffer);
+            addresses.put(address.getId(), address);
+            nodes.put(address.getId(), readIncarnation(buffer));
+        }
+        return nodes;
+    }
+
+    private static void writeIds(ByteBuffer buffer, Set<Integer> ids) {
+        Wire.writeVarint(buffer, ids.size());
+        for (Integer id : ids) {
+            Wire.writeSignedVarint(buffer, id);
+        }
+    }
+
+    private static Set<Integer> readIds(ByteBuffer buffer) {
+        int count = Wire.readCount(buffer);
+        Set<Integer> ids = new LinkedHashSet<>();
+        for (int i = 0; i < count; i++) {
+            ids.add(Wire.readSignedVarint(buffer));
+        }
+        return ids;
+    }
+
+    /**
+     * Helper function. Coordinates are sent as floats, the precision is far below the noise of the measurements.
+     */
+    private static void writeCoordinate(ByteBuffer buffer, VivaldiCoordinate coordinate) {
+        buffer.putFloat((float) coordinate.getX());
+        buffer.putFloat((float) coordinate.getY());
+        buffer.putFloat((float) coordinate.getHeight());
+        buffer.putFloat((float) coordinate.getError());
+    }
+
+    private static VivaldiCoordinate readCoordinate(ByteBuffer buffer) {
+        return new VivaldiCoordinate(buffer.getFloat(), buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+    }
+
+    private static void writeMetadataDelta(ByteBuffer buffer, MetadataDelta delta) {
+        Wire.writeVarint(buffer, delta.getVersion());
+        Wire.writeVarint(buffer, delta.getBaseVersion());
+        Wire.writeVarint(buffer, delta.getChangedTags().size());
+        for (Map.Entry<String, String> entry : delta.getChangedTags().entrySet()) {
+            Wire.writeString(buffer, entry.getKey());
+            Wire.writeString(buffer, entry.getValue());
+        }
+        Wire.writeVarint(buffer, delta.getRemovedTags().size());
+        for (String key : delta.getRemovedTags()) {
+            Wire.writeString(buffer, key);
+        }
+    }
+
+    private static MetadataDelta readMetadataDelta(ByteBuffer buffer) {
+        int version = Wire.readVarint(buffer);
+        int baseVersion = Wire.readVarint(buffer);
+
+        int changedCount = Wire.readCount(buffer);
+        Map<String, String> changedTags = new LinkedHashMap<>();
+        for (int i = 0; i < changedCount; i++) {
+            String key = Wire.readString(buffer);
+            changedTags.put(key, Wire.readString(buffer));
+        }
+
+        int removedCount = Wire.readCount(buffer);
+        Set<String> removedTags = new LinkedHashSet<>();
+        for (int i = 0; i < removedCount; i++) {
+            removedTags.add(Wire.readString(buffer));
+        }
+
+        return new MetadataDelta(version, baseVersion, changedTags, removedTags);
+    }
+
+    private static void writeShuffle(ByteBuffer buffer, CroupierShuffle.Basic shuffle) {
+        buffer.putLong(shuffle.getId().getMostSignificantBits());
+        buffer.putLong(shuffle.getId().getLeastSignificantBits());
+        writeContainers(buffer, shuffle.publicNodes);
+        writeContainers(buffer, shuffle.privateNodes);
+    }
+
+    private static UUID readUuid(ByteBuffer buffer) {
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+
+    /**
+     * Helper function. Writes croupier descriptors, the only content croupier carries is a coordinate or nothing.
+     */
+    private static void writeContainers(ByteBuffer buffer, Set<CroupierContainer> containers) {
+        Wire.writeVarint(buffer, containers.size());
+        for (CroupierContainer container : containers) {
+            AddressCodec.write(buffer, container.getSource());
+            Wire.writeVarint(buffer, container.getAge());
+
+            Object content = container.getContent();
+            if (content == null) {
+                buffer.put(NO_CONTENT);
+            } else if (content instanceof VivaldiCoordinate) {
+                buffer.put(COORDINATE_CONTENT);
+                writeCoordinate(buffer, (VivaldiCoordinate) content);
+            } else if (content.getClass() == Object.class) {
+                buffer.put(EMPTY_CONTENT);
+            } else {
+                throw new RuntimeException("no wire format for croupier content " + content.getClass().getName());
+            }
+        }
+    }
+
+    private static Set<CroupierContainer> readContainers(ByteBuffer buffer) {
+        int count = Wire.readCount(buffer);
+        Set<CroupierContainer> containers = new LinkedHashSet<>();
+        for (int i = 0; i < count; i++) {
+            NatedAddress source = AddressCodec.read(buffer);
+            int age = Wire.readVarint(buffer);
+
+            Object content;
+            byte kind = buffer.get();
+            switch (kind) {
+                case NO_CONTENT:
+                    content = null;
+                    break;
+                case EMPTY_CONTENT:
+                    content = new Object();
+                    break;
+                case COORDINATE_CONTENT:
+                    content = readCoordinate(buffer);
+                    break;
+                default:
+                    throw new RuntimeException("unknown croupier content kind " + kind);
+            }
+            containers.add(new CroupierContainer(source, content, age));
+        }
+        return containers;
+    }
+}
@@ -0,0 +1,185 @@
+package se.kth.swim.codec;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Counts the messages a node sends and receives, with their encoded size, per message type and direction.
+ * Relayed traffic (through or from a parent of a NATed node) is counted separately, as each such message costs two hops.
+ * One instance per node id is kept in a JVM-wide registry, so the simulation can report all nodes at the end.
+ */
+public class MessageStats {
+
+    public enum Direction {
+        SENT, RECEIVED
+    }
+
+    private static final Map<Integer, MessageStats> nodes = new ConcurrentHashMap<>();
+
+    private final int nodeId;
+    private final Map<String, TypeStats> types = new TreeMap<>();
+    private long pongs, piggybackEntries;           //Pongs sent, and the node entries piggybacked on them.
+    private long firstRecordTime = -1, lastRecordTime;
+
+    private MessageStats(int nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    /**
+     * Returns the stats of a node, creating them if needed.
+     */
+    public static MessageStats forNode(int nodeId) {
+        MessageStats stats = nodes.get(nodeId);
+        if (stats == null) {
+            nodes.putIfAbsent(nodeId, new MessageStats(nodeId));
+            stats = nodes.get(nodeId);
+        }
+        return stats;
+    }
+
+    public static Map<Integer, MessageStats> getNodes() {
+        return Collections.unmodifiableMap(nodes);
+    }
+
+    /**
+     * Prints the stats of every node and the average bandwidth per node.
+     */
+    public static void printSummary() {
+        if (nodes.isEmpty()) {
+            return;
+        }
+
+        double sentPerSecond = 0, receivedPerSecond = 0;
+        for (MessageStats stats : new TreeMap<>(nodes).values()) {
+            System.out.println(stats);
+            sentPerSecond += stats.getBytesPerSecond(Direction.SENT);
+            receivedPerSecond += stats.getBytesPerSecond(Direction.RECEIVED);
+        }
+        System.out.println(String.format("Average per node over %d nodes: %.0f bytes/s sent, %.0f bytes/s received",
+                nodes.size(), sentPerSecond / nodes.size(), receivedPerSecond / nodes.size()));
+    }
+
+    /**
+     * Records one message of the given type and encoded size.
+     */
+    public void record(String type, Direction direction, boolean relayed, int bytes) {
+        long now = System.currentTimeMillis();
+        if (firstRecordTime < 0) {
+            firstRecordTime = now;
+        }
+        lastRecordTime = now;
+
+        String key = type + " " + direction;
+        TypeStats stats = types.get(key);
+        if (stats == null) {
+            stats = new TypeStats(direction);
+            types.put(key, stats);
+        }
+        stats.add(relayed, bytes);
+    }
+
+    /**
+     * Records the number of node entries piggybacked on a sent pong.
+     */
+    public void recordPiggyback(int entries) {
+        pongs++;
+        piggybackEntries += entries;
+    }
+
+    public Map<String, TypeStats> getTypes() {
+        return Collections.unmodifiableMap(types);
+    }
+
+    public double getPiggybackEntriesPerPong() {
+        return pongs == 0 ? 0 : (double) piggybackEntries / pongs;
+    }
+
+    public long getBytes(Direction direction) {
+        long bytes = 0;
+        for (TypeStats stats : types.values()) {
+            if (stats.direction == direction) {
+                bytes += stats.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns bytes per second between the first and the last recorded message.
+     */
+    public double getBytesPerSecond(Direction direction) {
+        long duration = lastRecordTime - firstRecordTime;
+        return duration <= 0 ? 0 : getBytes(direction) * 1000.0 / duration;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Node ").append(nodeId).append(String.format(": %.0f bytes/s sent, %.0f bytes/s received, %.1f piggybacked entries per pong",
+                getBytesPerSecond(Direction.SENT), getBytesPerSecond(Direction.RECEIVED), getPiggybackEntriesPerPong()));
+        for (Map.Entry<String, TypeStats> entry : types.entrySet()) {
+            sb.append("\n  ").append(entry.getKey()).append(": ").append(entry.getValue());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Counts and sizes of one message type in one direction.
+     * The size histogram has power of two buckets, bucket i counts messages of less than 2^i bytes and at least half that.
+     */
+    public static class TypeStats {
+
+        private final Direction direction;
+        private long count, bytes, relayedCount, relayedBytes;
+        private final long[] sizeHistogram = new long[17];
+
+        private TypeStats(Direction direction) {
+            this.direction = direction;
+        }
+
+        private void add(boolean relayed, int size) {
+            count++;
+            bytes += size;
+            if (relayed) {
+                relayedCount++;
+                relayedBytes += size;
+            }
+            sizeHistogram[Math.min(sizeHistogram.length - 1, 32 - Integer.numberOfLeadingZeros(size))]++;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getRelayedCount() {
+            return relayedCount;
+        }
+
+        public long getRelayedBytes() {
+            return relayedBytes;
+        }
+
+        public long[] getSizeHistogram() {
+            return sizeHistogram.clone();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(count).append(" messages, ").append(bytes).append(" bytes, ")
+                    .append(relayedCount).append(" relayed (").append(relayedBytes).append(" bytes), sizes");
+            for (int i = 0; i < sizeHistogram.length; i++) {
+                if (sizeHistogram[i] > 0) {
+                    sb.append(" <").append(1 << i).append(":").append(sizeHistogram[i]);
+                }
+            }
+            return sb.toString();
+        }
+    }
+}
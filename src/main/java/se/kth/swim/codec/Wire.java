@@ -0,0 +1,70 @@
+package se.kth.swim.codec;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Primitive encodings used by the wire codec.
+ * Non-negative ints are written as varints, 7 bits per byte, so small counters and ids take a single byte.
+ * Ints that may be negative are zigzag encoded first, so -1 takes one byte instead of five.
+ */
+public class Wire {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private Wire() {
+    }
+
+    public static void writeVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    public static int readVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new RuntimeException("malformed varint");
+    }
+
+    /**
+     * Reads a count or a length. Every counted item takes at least one byte, so a larger count than the bytes left
+     * comes from a malformed message and is rejected before anything is allocated for it.
+     */
+    public static int readCount(ByteBuffer buffer) {
+        int count = readVarint(buffer);
+        if (count < 0 || count > buffer.remaining()) {
+            throw new RuntimeException("malformed count " + count);
+        }
+        return count;
+    }
+
+    public static void writeSignedVarint(ByteBuffer buffer, int value) {
+        writeVarint(buffer, (value << 1) ^ (value >> 31));
+    }
+
+    public static int readSignedVarint(ByteBuffer buffer) {
+        int value = readVarint(buffer);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public static void writeString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(UTF8);
+        writeVarint(buffer, bytes.length);
+        buffer.put(bytes);
+    }
+
+    public static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[readCount(buffer)];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+}
@@ -21,22 +21,21 @@ package se.kth.swim.component;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import se.kth.swim.msg.Status;
-import se.kth.swim.msg.net.NetStatus;
+import se.kth.swim.msg.StatusDelta;
+import se.kth.swim.msg.StatusDigest;
+import se.kth.swim.msg.net.*;
+import se.kth.swim.timeout.DigestCheckTimeout;
 import se.sics.kompics.*;
-import se.sics.kompics.network.Address;
 import se.sics.kompics.network.Network;
+import se.sics.kompics.timer.CancelPeriodicTimeout;
+import se.sics.kompics.timer.SchedulePeriodicTimeout;
 import se.sics.kompics.timer.Timer;
 import se.sics.p2ptoolbox.util.network.NatedAddress;
-import se.sics.p2ptoolbox.util.network.impl.BasicAddress;
-import se.sics.p2ptoolbox.util.network.impl.BasicNatedAddress;
 
 import java.io.FileNotFoundException;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
 
 /**
  * @author Alex Ormenisan <aaor@sics.se>
@@ -44,6 +43,7 @@ import java.util.Set;
 public class AggregatorComp extends ComponentDefinition {
 
     private static final boolean ENABLE_LOGGING = false;
+    private static final int DIGEST_CHECK_PERIOD = 1000; //How often digests of finished rounds are compared.
 
     private static final Logger log = LoggerFactory.getLogger(AggregatorComp.class);
     private Positive<Network> network = requires(Network.class);
@@ -51,8 +51,16 @@ public class AggregatorComp extends ComponentDefinition {
 
     private final NatedAddress selfAddress;
 
-    //Nested hashmaps to hold status reports. Key to the outer is the status number. Key to inner is address who sent the report.
-    public static Map<Integer, Map<Address, Status>> statuses;
+    //Nested hashmaps to hold status reports. Key to the outer is the status number. Key to inner is the id of the node who sent the report.
+    public static Map<Integer, Map<Integer, Status>> statuses;
+
+    //Digests, keyed like the statuses. For every checked round we keep the nodes that agreed with the majority and the one we asked for the full status.
+    public static Map<Integer, Map<Integer, StatusDigest>> digests;
+    private static Map<Integer, Set<Integer>> digestMajorities;
+    private static Map<Integer, Integer> digestRepresentatives;
+
+    private UUID digestCheckTimeoutId;
+    private static Map<Integer, NatedAddress> digestSenders; //Latest address of each node sending digests, with its current parents.
 
     public AggregatorComp(AggregatorInit init) {
         this.selfAddress = init.selfAddress;
@@ -62,10 +70,17 @@ public class AggregatorComp extends ComponentDefinition {
         }
 
         statuses = new HashMap<>();
+        digests = new HashMap<>();
+        digestMajorities = new HashMap<>();
+        digestRepresentatives = new HashMap<>();
+        digestSenders = new HashMap<>();
 
         subscribe(handleStart, control);
         subscribe(handleStop, control);
         subscribe(handleStatus, network);
+        subscribe(handleStatusDelta, network);
+        subscribe(handleStatusDigest, network);
+        subscribe(handleDigestCheckTimeout, timer);
     }
 
     private Handler<Start> handleStart = new Handler<Start>() {
@@ -75,6 +90,12 @@ public class AggregatorComp extends ComponentDefinition {
             if (ENABLE_LOGGING) {
                 log.info("{} starting...", new Object[]{selfAddress});
             }
+
+            SchedulePeriodicTimeout spt = new SchedulePeriodicTimeout(DIGEST_CHECK_PERIOD, DIGEST_CHECK_PERIOD);
+            DigestCheckTimeout dct = new DigestCheckTimeout(spt);
+            spt.setTimeoutEvent(dct);
+            digestCheckTimeoutId = dct.getTimeoutId();
+            trigger(spt, timer);
         }
 
     };
@@ -85,6 +106,11 @@ public class AggregatorComp extends ComponentDefinition {
             if (ENABLE_LOGGING) {
                 log.info("{} stopping...", new Object[]{selfAddress});
             }
+
+            if (digestCheckTimeoutId != null) {
+                trigger(new CancelPeriodicTimeout(digestCheckTimeoutId), timer);
+                digestCheckTimeoutId = null;
+            }
         }
 
     };
@@ -97,21 +123,140 @@ public class AggregatorComp extends ComponentDefinition {
         @Override
         public void handle(NetStatus status) {
             if (ENABLE_LOGGING) {
-                log.info("{} status nr:{} from:{} received-pings:{} sent-pings:{}, Alive nodes: {}", new Object[]{selfAddress.getId(), status.getContent().statusNr, status.getHeader().getSource(), status.getContent().receivedPings, status.getContent().sentPings, status.getContent().getAliveNodes()});
+                log.info("{} status nr:{} from:{} received-pings:{} sent-pings:{}, Alive nodes: {}", new Object[]{selfAddress.getId(), status.getContent().getStatusNr(), status.getHeader().getSource(), status.getContent().getReceivedPings(), status.getContent().getSentPings(), status.getContent().getAliveNodes()});
+            }
+
+            storeStatus(status.getSource(), status.getContent(), status.isAckRequested());
+        }
+    };
+
+    /**
+     * Handler for delta status reports. The full status is rebuilt from the acknowledged status the delta is based on.
+     * If we don't have that status the delta is dropped, the node will send a full checkpoint later.
+     */
+    private Handler<NetStatusDelta> handleStatusDelta = new Handler<NetStatusDelta>() {
+
+        @Override
+        public void handle(NetStatusDelta statusDelta) {
+            StatusDelta delta = statusDelta.getContent();
+
+            Map<Integer, Status> baseStatuses = statuses.get(delta.getBaseStatusNr());
+            Status base = baseStatuses == null ? null : baseStatuses.get(statusDelta.getSource().getId());
+
+            if (base == null) {
+                if (ENABLE_LOGGING) {
+                    log.info("{} missing base status nr:{} for delta nr:{} from:{}", new Object[]{selfAddress.getId(), delta.getBaseStatusNr(), delta.getStatusNr(), statusDelta.getSource()});
+                }
+                return;
             }
 
-            //Put the status in the appropriate HashMap for later.
-            Map<Address, Status> statusesFromNode = statuses.get(status.getContent().getStatusNr());
+            if (ENABLE_LOGGING) {
+                log.info("{} status delta nr:{} from:{} with {} changes", new Object[]{selfAddress.getId(), delta.getStatusNr(), statusDelta.getSource(), delta.size()});
+            }
+
+            storeStatus(statusDelta.getSource(), delta.applyTo(base), true);
+        }
+    };
+
+    /**
+     * Handler for status digests. They are compared when the round is finished, see handleDigestCheckTimeout.
+     */
+    private Handler<NetStatusDigest> handleStatusDigest = new Handler<NetStatusDigest>() {
+
+        @Override
+        public void handle(NetStatusDigest statusDigest) {
+            StatusDigest digest = statusDigest.getContent();
+
+            Map<Integer, StatusDigest> digestsFromNode = digests.get(digest.getStatusNr());
+
+            if (digestsFromNode == null) {
+                digestsFromNode = new HashMap<>();
+                digests.put(digest.getStatusNr(), digestsFromNode);
+            }
+
+            digestsFromNode.put(statusDigest.getSource().getId(), digest);
+            digestSenders.put(statusDigest.getSource().getId(), statusDigest.getSource());
+        }
+    };
+
+    /**
+     * Handler for comparing the digests of finished rounds.
+     * Nodes are grouped by digest, the full status is requested from one node of the largest group and from every node outside it.
+     * A round is finished when digests of two later rounds have arrived.
+     */
+    private Handler<DigestCheckTimeout> handleDigestCheckTimeout = new Handler<DigestCheckTimeout>() {
 
-            if (statusesFromNode == null) {
-                statusesFromNode = new HashMap<>();
-                statuses.put(status.getContent().getStatusNr(), statusesFromNode);
+        @Override
+        public void handle(DigestCheckTimeout event) {
+            if (digests.isEmpty()) {
+                return;
             }
 
-            statusesFromNode.put(status.getSource().getBaseAdr(), status.getContent());
+            int latestStatusNr = Collections.max(digests.keySet());
+            List<Integer> statusNrs = new ArrayList<>(digests.keySet());
+            Collections.sort(statusNrs);
+
+            for (int statusNr : statusNrs) {
+                if (statusNr > latestStatusNr - 2 || digestMajorities.containsKey(statusNr)) {
+                    continue;
+                }
+
+                //Group the nodes by the alive list they reported.
+                Map<Long, Set<Integer>> nodesByView = new HashMap<>();
+                Map<Integer, StatusDigest> digestsForNr = digests.get(statusNr);
+                for (int id : digestsForNr.keySet()) {
+                    long viewKey = digestsForNr.get(id).getViewKey();
+                    Set<Integer> nodes = nodesByView.get(viewKey);
+                    if (nodes == null) {
+                        nodes = new HashSet<>();
+                        nodesByView.put(viewKey, nodes);
+                    }
+                    nodes.add(id);
+                }
+
+                Set<Integer> majority = null;
+                for (Set<Integer> nodes : nodesByView.values()) {
+                    if (majority == null || nodes.size() > majority.size()) {
+                        majority = nodes;
+                    }
+                }
+
+                int representative = majority.iterator().next();
+                digestMajorities.put(statusNr, majority);
+                digestRepresentatives.put(statusNr, representative);
+
+                if (ENABLE_LOGGING) {
+                    log.info("{} round:{} {} of {} nodes agree, {} views", new Object[]{selfAddress.getId(), statusNr, majority.size(), digestsForNr.size(), nodesByView.size()});
+                }
+
+                for (int id : digestsForNr.keySet()) {
+                    if (id == representative || !majority.contains(id)) {
+                        trigger(new NetStatusRequest(selfAddress, digestSenders.get(id), statusNr), network);
+                    }
+                }
+            }
         }
     };
 
+    /**
+     * Puts the status in the appropriate HashMap for later.
+     * Statuses of nodes in DELTA or DIGEST mode are acknowledged, so the node can send deltas based on it or forget the round.
+     */
+    private void storeStatus(NatedAddress source, Status status, boolean ack) {
+        Map<Integer, Status> statusesFromNode = statuses.get(status.getStatusNr());
+
+        if (statusesFromNode == null) {
+            statusesFromNode = new HashMap<>();
+            statuses.put(status.getStatusNr(), statusesFromNode);
+        }
+
+        statusesFromNode.put(source.getId(), status);
+
+        if (ack) {
+            trigger(new NetStatusAck(selfAddress, source, status.getStatusNr()), network);
+        }
+    }
+
     /**
      * Performs a convergence calculation based on the previously reported statuses.
      * This method is called after the simulation ended.
@@ -125,40 +270,41 @@ public class AggregatorComp extends ComponentDefinition {
             e.printStackTrace();
         }
 
+        addDigestMajorityStatuses();
+
         Map<Integer, Double> convergenceByStatusNr = new HashMap<>();
 
         //Loop through all status numbers (rounds)
         for (int statusNr : statuses.keySet()) {
-            Map<Address, Status> statusesForNr = statuses.get(statusNr);
+            Map<Integer, Status> statusesForNr = statuses.get(statusNr);
 
-            Set<Address> allAliveNodes = new HashSet<>();
-            Set<Address> commonAliveNodes = null;
+            Set<Integer> allAliveNodes = new HashSet<>();
+            Set<Integer> commonAliveNodes = null;
 
             int nrOfDisconnectedNodes = 0;
             //For every status, in the round...
-            for (Address address : statusesForNr.keySet()) {
-                Status status = statusesForNr.get(address);
-
+            for (int id : statusesForNr.keySet()) {
+                Status status = statusesForNr.get(id);
 
                 //Add the sender node to their own alive nodes list. This is important for the convergence calculation.
-                NatedAddress natedAddress = new BasicNatedAddress((BasicAddress) address);
-
-                status.getAliveNodes().put(natedAddress, 0);
+                //Statuses are immutable, so this works on a copy.
+                Set<Integer> aliveNodes = new HashSet<>(status.getAliveNodes().keySet());
+                aliveNodes.add(id);
 
                 //Add all alive nodes to a set
-                allAliveNodes.addAll(convertToAddress(status.getAliveNodes().keySet()));
+                allAliveNodes.addAll(aliveNodes);
 
-                if (status.getAliveNodes().isEmpty()) {
+                if (aliveNodes.isEmpty()) {
                     nrOfDisconnectedNodes++;
-                    System.out.println("Node nr " + ((BasicAddress) address).getId() + " doesn't have any alive nodes!");
+                    System.out.println("Node nr " + id + " doesn't have any alive nodes!");
                 }
                 else {
                     //Get the common alive nodes from all nodes.
                     if (commonAliveNodes == null) {
-                        commonAliveNodes = new HashSet<>(convertToAddress(status.getAliveNodes().keySet()));
+                        commonAliveNodes = new HashSet<>(aliveNodes);
                     }
                     else {
-                        commonAliveNodes.retainAll(convertToAddress(status.getAliveNodes().keySet()));
+                        commonAliveNodes.retainAll(aliveNodes);
                     }
                 }
 
@@ -184,15 +330,32 @@ public class AggregatorComp extends ComponentDefinition {
     }
 
     /**
-     * Converts a set of NatedAddresses to a set of Addresses.
-     * This is needed because the hashcode of the NatedAddress changes if the parents change.
+     * Fills in the statuses of nodes that agreed with the majority in digest rounds.
+     * Their alive list (including themselves) equals the one of the representative, so it can be rebuilt from its full status.
      */
-    private static Set<Address> convertToAddress(Set<NatedAddress> nodes) {
-        Set<Address> addresses = new HashSet<>();
-        for (NatedAddress node : nodes) {
-            addresses.add(node.getBaseAdr());
+    private static void addDigestMajorityStatuses() {
+        for (int statusNr : digestMajorities.keySet()) {
+            Map<Integer, Status> statusesForNr = statuses.get(statusNr);
+            int representative = digestRepresentatives.get(statusNr);
+            Status representativeStatus = statusesForNr == null ? null : statusesForNr.get(representative);
+
+            if (representativeStatus == null) {
+                continue; //The full status never arrived, the round can't be rebuilt.
+            }
+
+            for (int id : digestMajorities.get(statusNr)) {
+                if (statusesForNr.containsKey(id)) {
+                    continue;
+                }
+
+                Map<Integer, Integer> aliveNodes = new HashMap<>(representativeStatus.getAliveNodes());
+                aliveNodes.put(representative, 0);
+                aliveNodes.remove(id);
+
+                StatusDigest digest = digests.get(statusNr).get(id);
+                statusesForNr.put(id, new Status.Builder().statusNr(statusNr).pings(digest.getReceivedPings(), digest.getSentPings()).aliveNodes(aliveNodes).build());
+            }
         }
-        return addresses;
     }
 
     public static class AggregatorInit extends Init<AggregatorComp> {
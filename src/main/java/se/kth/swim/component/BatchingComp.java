@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * GVoD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.swim.component;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.kth.swim.component.init.BatchingInit;
+import se.kth.swim.msg.Batch;
+import se.kth.swim.msg.Ping;
+import se.kth.swim.msg.Pong;
+import se.kth.swim.msg.net.NetBatch;
+import se.kth.swim.msg.net.NetMsg;
+import se.kth.swim.timeout.BatchTimeout;
+import se.sics.kompics.*;
+import se.sics.kompics.network.Network;
+import se.sics.kompics.timer.CancelTimeout;
+import se.sics.kompics.timer.ScheduleTimeout;
+import se.sics.kompics.timer.Timer;
+import se.sics.p2ptoolbox.util.network.NatedAddress;
+import se.sics.p2ptoolbox.util.network.impl.BasicHeader;
+
+import java.util.*;
+
+/**
+ * Sits between SwimComp and NatTraversalComp and packs all messages to one node that are sent within a batch window
+ * into one envelope, so a K-ping, a K-pong and an alive to the same node cost one packet, and one relay hop for NATed nodes.
+ * Pings and pongs are never held back, the round trip times measured from them would include the window.
+ * Envelopes are unpacked on the receiving side, so every node has to run with batching.
+ */
+public class BatchingComp extends ComponentDefinition {
+
+    private static final boolean ENABLE_LOGGING = false;
+
+    private static final Logger log = LoggerFactory.getLogger(BatchingComp.class);
+    private Negative<Network> local = provides(Network.class);
+    private Positive<Network> network = requires(Network.class);
+    private Positive<Timer> timer = requires(Timer.class);
+
+    private final NatedAddress selfAddress;
+    private final NatedAddress aggregatorAddress;
+    private final int batchWindow;
+
+    private Map<Integer, List<NetMsg>> pendingMessages; //Messages waiting for the end of the window, per destination node id.
+    private UUID batchTimeoutId;
+    private int sentMessages, sentPackets;              //Counted for the log, to see how much batching saves.
+
+    public BatchingComp(BatchingInit init) {
+        this.selfAddress = init.selfAddress;
+        this.aggregatorAddress = init.aggregatorAddress;
+        this.batchWindow = init.batchWindow;
+
+        this.pendingMessages = new LinkedHashMap<>();
+
+        subscribe(handleStop, control);
+        subscribe(handleOutgoingMsg, local);
+        subscribe(handleIncomingMsg, network);
+        subscribe(handleBatchTimeout, timer);
+    }
+
+    /**
+     * Sends what is left in the window, so nothing is lost when the node stops.
+     */
+    private Handler<Stop> handleStop = new Handler<Stop>() {
+
+        @Override
+        public void handle(Stop event) {
+            if (batchTimeoutId != null) {
+                trigger(new CancelTimeout(batchTimeoutId), timer);
+                batchTimeoutId = null;
+            }
+            flush();
+
+            if (ENABLE_LOGGING) {
+                log.info("{} sent {} messages in {} packets", new Object[]{selfAddress.getId(), sentMessages, sentPackets});
+            }
+        }
+
+    };
+
+    /**
+     * Collects an outgoing message for its destination and starts the batch window if it isn't running.
+     * Pings, pongs, messages to the aggregator and messages with other than a basic header are sent right away.
+     */
+    private Handler<NetMsg<Object>> handleOutgoingMsg = new Handler<NetMsg<Object>>() {
+
+        @Override
+        public void handle(NetMsg<Object> msg) {
+            NatedAddress destination = msg.getHeader().getDestination();
+
+            if (msg.getContent() instanceof Ping || msg.getContent() instanceof Pong
+                    || !(msg.getHeader() instanceof BasicHeader) || destination.getBaseAdr().equals(aggregatorAddress.getBaseAdr())) {
+                send(msg);
+                return;
+            }
+
+            List<NetMsg> messages = pendingMessages.get(destination.getId());
+            if (messages == null) {
+                messages = new ArrayList<>();
+                pendingMessages.put(destination.getId(), messages);
+            }
+            messages.add(msg);
+
+            if (batchTimeoutId == null) {
+                scheduleBatchTimeout();
+            }
+        }
+
+    };
+
+    /**
+     * Unpacks envelopes and delivers every message in them as if it was received on its own.
+     */
+    private Handler<NetMsg<Object>> handleIncomingMsg = new Handler<NetMsg<Object>>() {
+
+        @Override
+        public void handle(NetMsg<Object> msg) {
+            if (msg.getContent() instanceof Batch) {
+                for (NetMsg batched : ((Batch) msg.getContent()).getMessages()) {
+                    trigger(batched, local);
+                }
+            }
+            else {
+                trigger(msg, local);
+            }
+        }
+
+    };
+
+    /**
+     * End of the batch window, send everything that was collected.
+     */
+    private Handler<BatchTimeout> handleBatchTimeout = new Handler<BatchTimeout>() {
+
+        @Override
+        public void handle(BatchTimeout event) {
+            batchTimeoutId = null;
+            flush();
+        }
+
+    };
+
+    /**
+     * Helper function. Sends the pending messages, in an envelope if there is more than one to a destination.
+     */
+    private void flush() {
+        for (List<NetMsg> messages : pendingMessages.values()) {
+            if (messages.size() == 1) {
+                send(messages.get(0));
+            }
+            else {
+                NatedAddress destination = (NatedAddress) messages.get(0).getHeader().getDestination();
+                trigger(new NetBatch(selfAddress, destination, new Batch(messages)), network);
+                sentMessages += messages.size();
+                sentPackets++;
+            }
+        }
+        pendingMessages.clear();
+    }
+
+    private void send(NetMsg msg) {
+        trigger(msg, network);
+        sentMessages++;
+        sentPackets++;
+    }
+
+    private void scheduleBatchTimeout() {
+        ScheduleTimeout st = new ScheduleTimeout(batchWindow);
+        BatchTimeout bt = new BatchTimeout(st);
+        st.setTimeoutEvent(bt);
+        batchTimeoutId = bt.getTimeoutId();
+        trigger(st, timer);
+    }
+}
@@ -21,12 +21,14 @@ package se.kth.swim.component;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import se.kth.swim.component.init.BatchingInit;
 import se.kth.swim.component.init.NatTraversalInit;
 import se.kth.swim.component.init.SwimInit;
 import se.kth.swim.croupier.CroupierComp;
 import se.kth.swim.croupier.CroupierConfig;
 import se.kth.swim.croupier.CroupierPort;
 import se.kth.swim.croupier.util.OverlayFilter;
+import se.kth.swim.msg.configport.ConfigPort;
 import se.kth.swim.msg.parentport.ParentPort;
 import se.sics.kompics.*;
 import se.sics.kompics.network.Network;
@@ -46,12 +48,14 @@ public class HostComp extends ComponentDefinition {
     private static final Logger log = LoggerFactory.getLogger(HostComp.class);
     private Positive<Network> network = requires(Network.class);
     private Positive<Timer> timer = requires(Timer.class);
+    private Negative<ConfigPort> configPort = provides(ConfigPort.class);
 
     private final NatedAddress selfAddress;
 
     private Component swim;
     private Component nat;
     private Component croupier;
+    private Component batching;
 
     public HostComp(HostInit init) {
         this.selfAddress = init.selfAddress;
@@ -68,15 +72,27 @@ public class HostComp extends ComponentDefinition {
         connect(croupier.getNegative(Timer.class), timer);
         connect(croupier.getNegative(Network.class), network, new OverlayFilter(overlayId));
 
-        nat = create(NatTraversalComp.class, new NatTraversalInit(selfAddress, init.seed));
+        nat = create(NatTraversalComp.class, new NatTraversalInit(selfAddress, init.seed, init.swimConfig.messageStats));
         connect(nat.getNegative(Timer.class), timer);
         connect(nat.getNegative(Network.class), network);
         connect(nat.getNegative(CroupierPort.class), croupier.getPositive(CroupierPort.class));
 
-        swim = create(SwimComp.class, new SwimInit(selfAddress, init.bootstrapNodes, init.aggregatorAddress, init.seed));
+        swim = create(SwimComp.class, new SwimInit(selfAddress, init.bootstrapNodes, init.aggregatorAddress, init.seed, init.swimConfig));
         connect(swim.getNegative(Timer.class), timer);
-        connect(swim.getNegative(Network.class), nat.getPositive(Network.class));
+
+        //With a batch window, messages from swim are collected into envelopes before the NAT traversal.
+        if (init.swimConfig.batchWindow > 0) {
+            batching = create(BatchingComp.class, new BatchingInit(selfAddress, init.aggregatorAddress, init.swimConfig.batchWindow));
+            connect(batching.getNegative(Timer.class), timer);
+            connect(batching.getNegative(Network.class), nat.getPositive(Network.class));
+            connect(swim.getNegative(Network.class), batching.getPositive(Network.class));
+        }
+        else {
+            connect(swim.getNegative(Network.class), nat.getPositive(Network.class));
+        }
         connect(swim.getNegative(ParentPort.class), nat.getPositive(ParentPort.class));
+        connect(swim.getNegative(CroupierPort.class), croupier.getPositive(CroupierPort.class));
+        connect(configPort, swim.getPositive(ConfigPort.class));
     }
 
     private Handler<Start> handleStart = new Handler<Start>() {
@@ -107,13 +123,15 @@ public class HostComp extends ComponentDefinition {
         public final NatedAddress aggregatorAddress;
         public final long seed;
         public final CroupierConfig croupierConfig;
+        public final SwimConfig swimConfig;
 
-        public HostInit(NatedAddress selfAddress, Set<NatedAddress> bootstrapNodes, NatedAddress aggregatorAddress, long seed, CroupierConfig croupierConfig) {
+        public HostInit(NatedAddress selfAddress, Set<NatedAddress> bootstrapNodes, NatedAddress aggregatorAddress, long seed, CroupierConfig croupierConfig, SwimConfig swimConfig) {
             this.selfAddress = selfAddress;
             this.bootstrapNodes = bootstrapNodes;
             this.aggregatorAddress = aggregatorAddress;
             this.seed = seed;
             this.croupierConfig = croupierConfig;
+            this.swimConfig = swimConfig;
         }
     }
 }
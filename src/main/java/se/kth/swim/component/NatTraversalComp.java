@@ -20,23 +20,28 @@ package se.kth.swim.component;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import se.kth.swim.codec.MessageCodec;
+import se.kth.swim.codec.MessageStats;
 import se.kth.swim.component.init.NatTraversalInit;
 import se.kth.swim.croupier.CroupierPort;
 import se.kth.swim.croupier.msg.CroupierSample;
+import se.kth.swim.croupier.msg.CroupierUpdate;
 import se.kth.swim.croupier.util.Container;
+import se.kth.swim.msg.Pong;
 import se.kth.swim.msg.net.NetMsg;
 import se.kth.swim.msg.net.NetNatPing;
 import se.kth.swim.msg.net.NetNatPong;
+import se.kth.swim.msg.parentport.CoordinateUpdate;
 import se.kth.swim.msg.parentport.NewParentAlert;
 import se.kth.swim.msg.parentport.ParentPort;
+import se.kth.swim.node.VivaldiCoordinate;
 import se.kth.swim.simulation.SwimScenario;
 import se.kth.swim.timeout.HeartbeatTimeout;
+import se.kth.swim.timeout.Jitter;
 import se.kth.swim.timeout.NatPingTimeout;
 import se.sics.kompics.*;
-import se.sics.kompics.network.Address;
 import se.sics.kompics.network.Header;
 import se.sics.kompics.network.Network;
-import se.sics.kompics.timer.SchedulePeriodicTimeout;
 import se.sics.kompics.timer.ScheduleTimeout;
 import se.sics.kompics.timer.Timer;
 import se.sics.p2ptoolbox.util.network.NatedAddress;
@@ -54,6 +59,7 @@ public class NatTraversalComp extends ComponentDefinition {
     private static final boolean ENABLE_OUR_LOGGING = false;
     private static final int HEARTBEAT_TIMEOUT = 500;   //Timeout between heartbeats
     private static final int PING_TIMEOUT = 500;        //Timeout to receive a pong
+    private static final double HEARTBEAT_JITTER = 0.1; //Max random deviation of the heartbeat period, as a fraction of it
 
     private static final Logger log = LoggerFactory.getLogger(NatTraversalComp.class);
     private Negative<Network> local = provides(Network.class);
@@ -64,11 +70,16 @@ public class NatTraversalComp extends ComponentDefinition {
 
     private final NatedAddress selfAddress;
     private final Random rand;
+    private final Jitter jitter;
 
     private int sentPings;                              //Number of times we have hearbeated
     private Set<Integer> pingedParents;                 //Set of parents we've pinged but not received a pong from
     private Set<NatedAddress> latestParentSample;       //Latest sample received from croupier
-    private Set<Address> deadParents;                   //Oh no! Set of parents declared dead
+    private Set<Integer> deadParents;                   //Oh no! Ids of parents declared dead
+    private VivaldiCoordinate selfCoordinate;           //Our network coordinate, as measured by SwimComp
+    private Map<Integer, VivaldiCoordinate> sampleCoordinates; //Coordinates of the nodes in the latest croupier sample, by node id
+    private final MessageStats messageStats;            //Messages sent and received by this node, null unless enabled in SwimConfig
+    private final MessageCodec codec;                   //Only used to measure the encoded size of messages, without compression
 
     public NatTraversalComp(NatTraversalInit init) {
         this.selfAddress = init.selfAddress;
@@ -78,10 +89,14 @@ public class NatTraversalComp extends ComponentDefinition {
         }
 
         this.rand = new Random(init.seed);
+        this.jitter = new Jitter(31 * init.seed + 11);
 
         this.pingedParents = new HashSet<>();
         this.deadParents = new HashSet<>();
         this.latestParentSample = new HashSet<>();
+        this.sampleCoordinates = new HashMap<>();
+        this.messageStats = init.messageStats ? MessageStats.forNode(selfAddress.getId()) : null;
+        this.codec = init.messageStats ? new MessageCodec(0) : null;
         subscribe(handleStart, control);
         subscribe(handleStop, control);
         subscribe(handleIncomingMsg, network);
@@ -89,6 +104,7 @@ public class NatTraversalComp extends ComponentDefinition {
         subscribe(handlePong, network);
         subscribe(handleOutgoingMsg, local);
         subscribe(handleCroupierSample, croupier);
+        subscribe(handleCoordinateUpdate, parentPort);
         subscribe(handleHeartbeatTimeout, timer);
         subscribe(handlePingTimeout, timer);
     }
@@ -111,6 +127,9 @@ public class NatTraversalComp extends ComponentDefinition {
             if (ENABLE_PROVIDED_LOGGING) {
                 log.info("{} stopping...", new Object[]{selfAddress.getId()});
             }
+            if (codec != null) {
+                codec.close();
+            }
         }
 
     };
@@ -122,6 +141,7 @@ public class NatTraversalComp extends ComponentDefinition {
             if (ENABLE_PROVIDED_LOGGING) {
                 log.trace("{} received msg:{}", new Object[]{selfAddress.getId(), msg});
             }
+            recordMessage(msg, MessageStats.Direction.RECEIVED);
             Header<NatedAddress> header = msg.getHeader();
             if (header instanceof SourceHeader) {
                 if (!selfAddress.isOpen()) {
@@ -133,7 +153,7 @@ public class NatTraversalComp extends ComponentDefinition {
                         log.info("{} relaying message for:{}", new Object[]{selfAddress.getId(), sourceHeader.getSource()});
                     }
                     RelayHeader<NatedAddress> relayHeader = sourceHeader.getRelayHeader();
-                    trigger(msg.copyMessage(relayHeader), network);
+                    send(msg.copyMessage(relayHeader));
                     return;
                 }
                 else {
@@ -178,7 +198,7 @@ public class NatTraversalComp extends ComponentDefinition {
                 if (ENABLE_PROVIDED_LOGGING) {
                     log.info("{} sending direct message:{} to:{}", new Object[]{selfAddress.getId(), msg, header.getDestination()});
                 }
-                trigger(msg, network);
+                send(msg);
                 return;
             }
             else {
@@ -190,7 +210,7 @@ public class NatTraversalComp extends ComponentDefinition {
                 if (ENABLE_PROVIDED_LOGGING) {
                     log.info("{} sending message:{} to relay:{}", new Object[]{selfAddress.getId(), msg, parent});
                 }
-                trigger(msg.copyMessage(sourceHeader), network);
+                send(msg.copyMessage(sourceHeader));
                 return;
             }
         }
@@ -202,6 +222,7 @@ public class NatTraversalComp extends ComponentDefinition {
         @Override
         public void handle(CroupierSample event) {
             latestParentSample.clear();
+            sampleCoordinates.clear();
 
             if (ENABLE_OUR_LOGGING) {
                 log.info("{} croupier public nodes:{}", selfAddress.getBaseAdr(), event.publicSample);
@@ -212,6 +233,9 @@ public class NatTraversalComp extends ComponentDefinition {
                 Set<Container<NatedAddress, Object>> publicSample = new HashSet<>(event.publicSample);
                 for (Container<NatedAddress, Object> container : publicSample) {
                     latestParentSample.add(container.getSource()); //Add all received sources to a set
+                    if (container.getContent() instanceof VivaldiCoordinate) {
+                        sampleCoordinates.put(container.getSource().getId(), (VivaldiCoordinate) container.getContent());
+                    }
                 }
                 if (ENABLE_OUR_LOGGING) {
                     if (latestParentSample.size() == 0) {
@@ -223,6 +247,41 @@ public class NatTraversalComp extends ComponentDefinition {
         }
     };
 
+    //Handler for coordinate updates from SwimComp. The coordinate is published through croupier, so nated nodes can see how close we are.
+    private Handler<CoordinateUpdate> handleCoordinateUpdate = new Handler<CoordinateUpdate>() {
+        @Override
+        public void handle(CoordinateUpdate event) {
+            selfCoordinate = event.getCoordinate();
+            trigger(new CroupierUpdate.View<>(selfCoordinate), croupier);
+        }
+    };
+
+    /**
+     * Helper function. Sends a message to the network, counting it in the message stats.
+     */
+    private void send(NetMsg msg) {
+        recordMessage(msg, MessageStats.Direction.SENT);
+        trigger(msg, network);
+    }
+
+    /**
+     * Helper function. Counts a message with its encoded size. Messages with a source or relay header are relayed traffic.
+     */
+    private void recordMessage(NetMsg msg, MessageStats.Direction direction) {
+        if (messageStats == null) {
+            return;
+        }
+
+        Header header = msg.getHeader();
+        boolean relayed = header instanceof SourceHeader || header instanceof RelayHeader;
+        messageStats.record(msg.getClass().getSimpleName(), direction, relayed, codec.encode(msg).remaining());
+
+        //Pongs forwarded for a NATed node have a relay header and aren't ours.
+        if (direction == MessageStats.Direction.SENT && !(header instanceof RelayHeader) && msg.getContent() instanceof Pong) {
+            messageStats.recordPiggyback(((Pong) msg.getContent()).size());
+        }
+    }
+
     /**
      * Takes a set of peers. Filters out those marked as dead and will send
      * new parents to the SWIM layer if needed.
@@ -231,22 +290,23 @@ public class NatTraversalComp extends ComponentDefinition {
     private void sendNewParents(Set<NatedAddress> inputPeers) {
         Set<NatedAddress> samplePeers = new HashSet<>();
         for (NatedAddress node : inputPeers) { //Filter out the dead parents
-            if (!deadParents.contains(node.getBaseAdr())) {
+            if (!deadParents.contains(node.getId())) {
                 samplePeers.add(node);
             }
         }
         for (NatedAddress node : selfAddress.getParents()) { //Filter out the dead parents
-            if (!deadParents.contains(node.getBaseAdr())) {
+            if (!deadParents.contains(node.getId())) {
                 samplePeers.add(node);
             }
         }
 
         List<NatedAddress> samplePeerList = new ArrayList<>(samplePeers); //Create a list to retrieve peers from
         Collections.shuffle(samplePeerList, rand);
+        sortByDistance(samplePeerList);                                    //Prefer close parents, the shuffle breaks ties
         Set<NatedAddress> aliveParents = new HashSet<NatedAddress>(selfAddress.getParents());
         Set<NatedAddress> addressesToRemove = new HashSet<>();
         for (NatedAddress node : aliveParents) {
-            if (deadParents.contains(node.getBaseAdr()))
+            if (deadParents.contains(node.getId()))
                 addressesToRemove.add(node);
         }
         aliveParents.removeAll(addressesToRemove);
@@ -261,7 +321,7 @@ public class NatTraversalComp extends ComponentDefinition {
                 break;
             }
 
-            if (!address.getBaseAdr().equals(selfAddress.getBaseAdr())) {
+            if (address.getId() != selfAddress.getId()) {
                 listUpdated = true;
                 aliveParents.add(address);
             }
@@ -286,7 +346,7 @@ public class NatTraversalComp extends ComponentDefinition {
                 log.info("Answering hearbeat from " + netNatPing.getSource() + ". I'm node " + selfAddress);
             }
 
-            trigger(new NetNatPong(selfAddress, netNatPing.getSource(), netNatPing.getContent().getPingNr()), network);
+            send(new NetNatPong(selfAddress, netNatPing.getSource(), netNatPing.getContent().getPingNr()));
         }
     };
 
@@ -306,13 +366,14 @@ public class NatTraversalComp extends ComponentDefinition {
     private Handler<HeartbeatTimeout> handleHeartbeatTimeout = new Handler<HeartbeatTimeout>() {
         @Override
         public void handle(HeartbeatTimeout heartbeatTimeout) {
+            scheduleHeartbeat(jitter.nextDelay(HEARTBEAT_TIMEOUT, HEARTBEAT_JITTER));
 
             for (NatedAddress address : selfAddress.getParents()) {
                 if (ENABLE_OUR_LOGGING) {
                     log.info("Sending a hearbeat from address " + selfAddress + " to address " + address);
                 }
 
-                trigger(new NetNatPing(selfAddress, address, sentPings), network);
+                send(new NetNatPing(selfAddress, address, sentPings));
 
                 pingedParents.add(sentPings);
 
@@ -334,19 +395,43 @@ public class NatTraversalComp extends ComponentDefinition {
                     log.info("Declaring node " + natPingTimeout.getAddress() + " dead. I'm node " + selfAddress);
                 }
 
-                deadParents.add(natPingTimeout.getAddress().getBaseAdr());
+                deadParents.add(natPingTimeout.getAddress().getId());
                 pingedParents.remove(natPingTimeout.getPingNr());
                 sendNewParents(latestParentSample);
             }
         }
     };
 
-    //Will start scheduling pings
+    //Will start scheduling pings, at a random phase of the period so nodes don't heartbeat in lockstep
     private void scheduleHeartbeating() {
-        SchedulePeriodicTimeout spt = new SchedulePeriodicTimeout(HEARTBEAT_TIMEOUT, HEARTBEAT_TIMEOUT);
-        HeartbeatTimeout sc = new HeartbeatTimeout(spt);
-        spt.setTimeoutEvent(sc);
-        trigger(spt, timer);
+        scheduleHeartbeat(HEARTBEAT_TIMEOUT + jitter.phaseOffset(HEARTBEAT_TIMEOUT));
+    }
+
+    //Schedules the next heartbeat. Heartbeats are a chain of timeouts so every period can get its own jitter.
+    private void scheduleHeartbeat(long delay) {
+        ScheduleTimeout st = new ScheduleTimeout(delay);
+        HeartbeatTimeout sc = new HeartbeatTimeout(st);
+        st.setTimeoutEvent(sc);
+        trigger(st, timer);
+    }
+
+    //Sorts the peers by predicted round trip time from us. Peers without a coordinate keep their order, after the others.
+    private void sortByDistance(List<NatedAddress> peers) {
+        if (selfCoordinate == null) {
+            return;
+        }
+
+        Collections.sort(peers, new Comparator<NatedAddress>() {
+            @Override
+            public int compare(NatedAddress o1, NatedAddress o2) {
+                return Double.compare(distanceOrMax(o1), distanceOrMax(o2));
+            }
+        });
+    }
+
+    private double distanceOrMax(NatedAddress peer) {
+        VivaldiCoordinate coordinate = sampleCoordinates.get(peer.getId());
+        return coordinate == null ? Double.MAX_VALUE : selfCoordinate.distanceTo(coordinate);
     }
 
     //Returns a random node from the set. Method provided.
@@ -21,17 +21,33 @@ package se.kth.swim.component;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import se.kth.swim.component.init.SwimInit;
+import se.kth.swim.croupier.CroupierPort;
+import se.kth.swim.croupier.msg.CroupierSample;
+import se.kth.swim.croupier.util.Container;
+import se.kth.swim.msg.MemberMetadata;
+import se.kth.swim.msg.MembershipChunk;
+import se.kth.swim.msg.MetadataDelta;
+import se.kth.swim.msg.Ping;
 import se.kth.swim.msg.Pong;
 import se.kth.swim.msg.Status;
+import se.kth.swim.msg.StatusDelta;
+import se.kth.swim.msg.StatusDigest;
+import se.kth.swim.msg.configport.ConfigPort;
+import se.kth.swim.msg.configport.ConfigUpdate;
+import se.kth.swim.msg.configport.MetadataChanged;
+import se.kth.swim.msg.configport.MetadataUpdate;
 import se.kth.swim.msg.net.*;
+import se.kth.swim.msg.parentport.CoordinateUpdate;
 import se.kth.swim.msg.parentport.NewParentAlert;
 import se.kth.swim.msg.parentport.ParentPort;
+import se.kth.swim.node.AddressRegistry;
+import se.kth.swim.node.Incarnation;
 import se.kth.swim.node.NodeHandler;
+import se.kth.swim.node.VivaldiCoordinate;
 import se.kth.swim.timeout.*;
 import se.sics.kompics.*;
 import se.sics.kompics.network.Network;
 import se.sics.kompics.timer.CancelTimeout;
-import se.sics.kompics.timer.SchedulePeriodicTimeout;
 import se.sics.kompics.timer.ScheduleTimeout;
 import se.sics.kompics.timer.Timer;
 import se.sics.p2ptoolbox.util.network.NatedAddress;
@@ -45,31 +61,34 @@ import java.util.*;
 public class SwimComp extends ComponentDefinition {
 
     private static final boolean ENABLE_LOGGING = false;
-    private static final int PING_TIMEOUT = 2000; //Time until a node will be K-pinged
-    private static final int SUSPECTED_TIMEOUT = 2000; //Time until it's declared suspected
-    private static final int DEAD_TIMEOUT = 2000; //Time until it's declared dead
-    private static final int AGGREGATOR_TIMEOUT = 1000; //Delay between sending info to aggregator
-    private static final int K = 4; //K value, how many nodes we K-ping if we suspect a node.
-    public static final int PIGGYBACK_MESSAGE_SIZE = 9999999; //How many nodes piggybacked in each pong.
-    public static final int LAMBDA = 3; //How many times the node change is piggybacked. Lambda * log(n)
+    private static final int JOIN_CHUNK_SIZE = 32; //How many nodes are sent in each chunk of the membership snapshot when a node joins.
+    private static final double COORDINATE_PUBLISH_DISTANCE = 5; //Milliseconds our coordinate must move before it is published to the parent again.
 
     public static final Logger log = LoggerFactory.getLogger(SwimComp.class);
     private Positive<Network> network = requires(Network.class);
     private Positive<Timer> timer = requires(Timer.class);
     private Positive<ParentPort> parentPort = requires(ParentPort.class);
+    private Positive<CroupierPort> croupier = requires(CroupierPort.class);
+    private Negative<ConfigPort> configPort = provides(ConfigPort.class);
 
     private final NatedAddress selfAddress;
     private final NatedAddress aggregatorAddress;
+    private final List<NatedAddress> bootstrapNodes;
+
+    //Current tuning parameters, can be replaced at runtime through the config port.
+    private SwimConfig config;
 
     private UUID pingTimeoutId;
     private UUID statusTimeoutId;
 
     private Random rand;
+    private Jitter jitter;
+    private VivaldiCoordinate publishedCoordinate; //Last coordinate sent to the parent, null if none yet.
 
     //Various counters
     private int sentPings = 0;
     private int receivedPings = 0;
-    private int incarnationCounter = 0;
+    private int incarnationCounter; //Starts in a new restart epoch, see Incarnation.
     private int sentStatuses = 0;
 
     //The NodeHandler is holding all information about nodes in the system.
@@ -78,28 +97,40 @@ public class SwimComp extends ComponentDefinition {
 
     //Collections holding information about what pings we sent.
     private List<Integer> sentPingNrs;
-    private Map<Integer, NatedAddress> sentIndirectPings;
+    private Map<Integer, Long> sentPingTimes;
+    private Map<Integer, Integer> sentIndirectPings; //Ping number to the id of the node that asked for the ping.
     private Map<Integer, Integer> kPingNrToPingNrMapping;
 
+    //Statuses sent to the aggregator but not yet acknowledged, and the latest acknowledged one which deltas are based on.
+    private Map<Integer, Status> unackedStatuses;
+    private Status ackedStatus;
+
     public SwimComp(SwimInit init) {
         if (ENABLE_LOGGING) {
             log.info("{} initiating...", init.selfAddress);
         }
 
         selfAddress = init.selfAddress;
+        AddressRegistry.publish(AddressRegistry.snapshot(selfAddress));
+        incarnationCounter = Incarnation.initial(selfAddress.getId());
         aggregatorAddress = init.aggregatorAddress;
+        bootstrapNodes = new ArrayList<>(init.bootstrapNodes);
+        config = init.config;
 
         this.rand = new Random(init.seed);
+        this.jitter = new Jitter(31 * init.seed + 3);
 
-        nodeHandler = new NodeHandler(selfAddress, init.seed);
+        nodeHandler = new NodeHandler(selfAddress, init.seed, config);
 
         sentPingNrs = new ArrayList<>();
+        sentPingTimes = new HashMap<>();
         sentIndirectPings = new HashMap<>();
         kPingNrToPingNrMapping = new HashMap<>();
+        unackedStatuses = new HashMap<>();
 
         // Add all bootstrap nodes to our alive list.
         for (NatedAddress address : init.bootstrapNodes) {
-            nodeHandler.addAlive(address, 0);
+            nodeHandler.addAlive(address, Incarnation.UNKNOWN);
         }
 
         if (ENABLE_LOGGING) {
@@ -111,9 +142,19 @@ public class SwimComp extends ComponentDefinition {
         subscribe(handlePing, network);
         subscribe(handlePong, network);
         subscribe(handleAlive, network);
+        subscribe(handleLeave, network);
+        subscribe(handleJoin, network);
+        subscribe(handleMembershipChunk, network);
+        subscribe(handleStatusAck, network);
+        subscribe(handleStatusRequest, network);
         subscribe(handleNetKPing, network);
         subscribe(handleNetKPong, network);
         subscribe(handleNewParent, parentPort);
+        subscribe(handleCroupierSample, croupier);
+        subscribe(handleConfigUpdate, configPort);
+        subscribe(handleMetadataUpdate, configPort);
+        subscribe(handleMetadataRequest, network);
+        subscribe(handleMetadata, network);
         subscribe(handlePingTimeout, timer);
         subscribe(handleStatusTimeout, timer);
         subscribe(handlePongTimeout, timer);
@@ -123,7 +164,7 @@ public class SwimComp extends ComponentDefinition {
 
     /**
      * Handler for starting the component.
-     * Will schedule the periodic pings and status messages.
+     * Will ask a bootstrap node for the membership list and schedule the periodic pings and status messages.
      */
     private Handler<Start> handleStart = new Handler<Start>() {
 
@@ -133,8 +174,11 @@ public class SwimComp extends ComponentDefinition {
                 log.info("{} starting...", new Object[]{selfAddress.getId()});
             }
 
-            schedulePeriodicPing();
-            schedulePeriodicStatus();
+            sendJoin();
+
+            //Start at a random phase of the periods, so the nodes don't ping and report in lockstep.
+            schedulePing(config.protocolPeriod + jitter.phaseOffset(config.protocolPeriod));
+            scheduleStatus(config.aggregatorTimeout + jitter.phaseOffset(config.aggregatorTimeout));
         }
 
     };
@@ -157,6 +201,10 @@ public class SwimComp extends ComponentDefinition {
             if (statusTimeoutId != null) {
                 cancelPeriodicStatus();
             }
+
+            if (config.leaveOnStop) {
+                announceLeave();
+            }
         }
 
     };
@@ -176,52 +224,87 @@ public class SwimComp extends ComponentDefinition {
             //If the ping number of the pong was in the list of sent pings, it was a regular ping.
             boolean wasRegularPing = sentPingNrs.remove(Integer.valueOf(event.getContent().getPingNr()));
             if (wasRegularPing) {
-                //Add all new nodes to our alive list, taking incarnation numbers into account.
-                for (NatedAddress address : event.getContent().getNewNodes().keySet()) {
-                    nodeHandler.addAlive(address, event.getContent().getNewNodes().get(address));
-                }
-
-                //Add all suspected nodes to our suspected list, taking incarnation numbers into account.
-                for (NatedAddress address : event.getContent().getSuspectedNodes().keySet()) {
-                    nodeHandler.addSuspected(address, event.getContent().getSuspectedNodes().get(address));
+                //Measure the round trip time, used to pick fast K-ping helpers.
+                //The round trip time also moves our network coordinate, which the NAT traversal uses to pick close parents.
+                Long sentTime = sentPingTimes.remove(event.getContent().getPingNr());
+                if (sentTime != null) {
+                    long roundTripTime = System.currentTimeMillis() - sentTime;
+                    nodeHandler.updateRoundTripTime(event.getSource(), roundTripTime);
+                    nodeHandler.updateCoordinate(event.getSource(), event.getContent().getCoordinate(), roundTripTime);
+                    publishCoordinate();
                 }
 
-                //Add all dead nodes to the dead list.
-                for (NatedAddress address : event.getContent().getDeadNodes().keySet()) {
-                    if (ENABLE_LOGGING) {
-                        log.info("{} Declared node {} dead from pong", new Object[]{selfAddress.getId(), address});
+                nodeHandler.mergeSizeSketch(event.getContent().getSizeSketch());
+
+                //Apply the piggybacked entries, taking incarnation numbers into account.
+                Pong pong = event.getContent();
+                for (int i = 0; i < pong.size(); i++) {
+                    NatedAddress address = pong.getAddress(i);
+                    int entryIncarnationCounter = pong.getIncarnationCounter(i);
+
+                    switch (pong.getState(i)) {
+                        case Pong.NEW:
+                            nodeHandler.addAlive(address, entryIncarnationCounter);
+                            break;
+                        case Pong.SUSPECTED:
+                            nodeHandler.addSuspected(address, entryIncarnationCounter);
+                            break;
+                        case Pong.LEFT:
+                            //Nodes that left on purpose go to the dead list.
+                            nodeHandler.addLeft(address, entryIncarnationCounter);
+                            break;
+                        case Pong.DEAD:
+                            if (ENABLE_LOGGING) {
+                                log.info("{} Declared node {} dead from pong", new Object[]{selfAddress.getId(), address});
+                            }
+
+                            nodeHandler.addDead(address, entryIncarnationCounter, pong.getDeadObservers().get(pong.getId(i)));
+                            break;
                     }
-
-                    nodeHandler.addDead(address, event.getContent().getDeadNodes().get(address));
                 }
 
                 //Add the node who sent the pong to the alive list.
                 nodeHandler.addDefinatelyAlive(event.getSource(), event.getContent().getIncarnationCounter());
 
+                //Apply piggybacked metadata. If we missed a version the delta can't be applied, ask the node for all of it.
+                //Deltas of nodes we don't know are skipped, we couldn't apply them anyway.
+                for (Map.Entry<Integer, MetadataDelta> entry : event.getContent().getMetadataDeltas().entrySet()) {
+                    NatedAddress address = nodeHandler.getAddress(entry.getKey());
+                    MetadataDelta delta = entry.getValue();
+                    if (address != null && !applyMetadata(address, delta) && nodeHandler.shouldRequestMetadata(address, delta.getVersion())) {
+                        trigger(new NetMetadataRequest(selfAddress, address, nodeHandler.getMetadata(address).getVersion()), network);
+                    }
+                }
+                if (nodeHandler.shouldRequestMetadata(event.getSource(), event.getContent().getMetadataVersion())) {
+                    trigger(new NetMetadataRequest(selfAddress, event.getSource(), nodeHandler.getMetadata(event.getSource()).getVersion()), network);
+                }
+
                 //If we find ourself in the suspected list
-                if (event.getContent().getSuspectedNodes().containsKey(selfAddress)) {
+                if (pong.contains(selfAddress.getId(), Pong.SUSPECTED)) {
                     if (ENABLE_LOGGING) {
                         log.info("{} Found self in suspected list from node: {}", new Object[]{selfAddress.getId(), event.getSource()});
                     }
 
-                    //Increase the incarnation number and send Alive messages to all alive nodes.
-                    incarnationCounter++;
-
-                    for (NatedAddress address : nodeHandler.getAliveNodes().keySet()) {
-                        trigger(new NetAlive(selfAddress, address, incarnationCounter), network);
-                    }
+                    refuteSuspicion();
                 }
             }
             //Otherwise, if not a regular ping it was a K-ping. Check if it is still in sent list.
             else if (sentIndirectPings.containsKey(event.getContent().getPingNr())) {
+                nodeHandler.updateCoordinate(event.getSource(), event.getContent().getCoordinate(), -1);
+
+                int requesterId = sentIndirectPings.remove(event.getContent().getPingNr());
+                int requesterPingNr = kPingNrToPingNrMapping.remove(event.getContent().getPingNr());
+
                 if (ENABLE_LOGGING) {
-                    log.info("{} forwarding KPing result for suspected node {} to: {}", new Object[]{selfAddress.getId(), event.getSource(), sentIndirectPings.get(event.getContent().getPingNr())});
+                    log.info("{} forwarding KPing result for suspected node {} to: {}", new Object[]{selfAddress.getId(), event.getSource(), requesterId});
                 }
 
                 //If this was a response to a k-ping, forward the result to the requester node.
-                trigger(new NetKPong(selfAddress, sentIndirectPings.get(event.getContent().getPingNr()), event.getSource(), event.getContent().getIncarnationCounter(), kPingNrToPingNrMapping.get(event.getContent().getPingNr())), network);
-                sentIndirectPings.remove(event.getContent().getPingNr());
-                kPingNrToPingNrMapping.remove(event.getContent().getPingNr());
+                //The requester published its own address, see AddressRegistry.publish.
+                NatedAddress requester = AddressRegistry.get(requesterId);
+                if (requester != null) {
+                    trigger(new NetKPong(selfAddress, requester, event.getSource(), event.getContent().getIncarnationCounter(), requesterPingNr), network);
+                }
             }
 
             if (ENABLE_LOGGING) {
@@ -247,6 +330,18 @@ public class SwimComp extends ComponentDefinition {
 
             //Add the sender node to the alive list
             nodeHandler.addDefinatelyAlive(event.getSource(), event.getContent().getIncarnationCounter());
+            nodeHandler.updateCoordinate(event.getSource(), event.getContent().getCoordinate(), -1);
+
+            //The sender suspects us. Refute right away, the pong carries the new incarnation counter.
+            //A suspicion at UNKNOWN is older than any incarnation, but the sender still suspects us.
+            Ping ping = event.getContent();
+            if (ping.isSuspected() && (ping.getSuspectedIncarnation() == Incarnation.UNKNOWN || Incarnation.compare(ping.getSuspectedIncarnation(), incarnationCounter) >= 0)) {
+                if (ENABLE_LOGGING) {
+                    log.info("{} Suspected by pinging node: {}", new Object[]{selfAddress.getId(), event.getSource()});
+                }
+
+                refuteSuspicion();
+            }
 
             if (ENABLE_LOGGING) {
                 log.info("{} sending pong nr {} to :{}", new Object[]{selfAddress.getId(), event.getContent().getPingNr(), event.getSource()});
@@ -277,12 +372,13 @@ public class SwimComp extends ComponentDefinition {
             //and then add the updated information to the alive list.
             selfAddress.getParents().clear();
             selfAddress.getParents().addAll(event.getParents());
+            AddressRegistry.publish(AddressRegistry.snapshot(selfAddress));
 
             if (ENABLE_LOGGING) {
                 log.info("{} New parents arrived: {}", new Object[]{selfAddress.getId(), event.getParents()});
             }
 
-            incarnationCounter++;
+            incarnationCounter = Incarnation.increment(incarnationCounter);
 
             //Add self to the send buffer as a new node, so it will be propagated the next time someone ping us.
             nodeHandler.addNewNodeToSendBuffer(selfAddress, incarnationCounter);
@@ -290,6 +386,64 @@ public class SwimComp extends ComponentDefinition {
 
     };
 
+    /**
+     * Handler for receiving a new configuration at runtime.
+     * New timeouts and periods apply to timers scheduled from now on.
+     */
+    private Handler<ConfigUpdate> handleConfigUpdate = new Handler<ConfigUpdate>() {
+
+        @Override
+        public void handle(ConfigUpdate event) {
+            if (ENABLE_LOGGING) {
+                log.info("{} New config: {}", new Object[]{selfAddress.getId(), event.getConfig()});
+            }
+
+            config = event.getConfig();
+            nodeHandler.setConfig(config);
+        }
+
+    };
+
+    /**
+     * Handler for replacing our own metadata tags at runtime. The change is gossiped as a delta.
+     */
+    private Handler<MetadataUpdate> handleMetadataUpdate = new Handler<MetadataUpdate>() {
+
+        @Override
+        public void handle(MetadataUpdate event) {
+            nodeHandler.setSelfMetadata(event.getTags());
+
+            if (ENABLE_LOGGING) {
+                log.info("{} New metadata: {}", new Object[]{selfAddress.getId(), nodeHandler.getSelfMetadata()});
+            }
+        }
+
+    };
+
+    /**
+     * Handler for metadata requests, from nodes that missed a version of our metadata.
+     */
+    private Handler<NetMetadataRequest> handleMetadataRequest = new Handler<NetMetadataRequest>() {
+
+        @Override
+        public void handle(NetMetadataRequest event) {
+            trigger(new NetMetadata(selfAddress, event.getSource(), MetadataDelta.full(nodeHandler.getSelfMetadata())), network);
+        }
+
+    };
+
+    /**
+     * Handler for full metadata, the answer to our metadata request.
+     */
+    private Handler<NetMetadata> handleMetadata = new Handler<NetMetadata>() {
+
+        @Override
+        public void handle(NetMetadata event) {
+            applyMetadata(event.getSource(), event.getContent());
+        }
+
+    };
+
     /**
      * Handler for receiving alive messages.
      * Will add the sender to our alive nodes.
@@ -308,6 +462,66 @@ public class SwimComp extends ComponentDefinition {
 
     };
 
+    /**
+     * Handler for receiving leave messages.
+     * The sender is shutting down on purpose, so it is moved straight to the dead list.
+     */
+    private Handler<NetLeave> handleLeave = new Handler<NetLeave>() {
+
+        @Override
+        public void handle(NetLeave netLeave) {
+            if (ENABLE_LOGGING) {
+                log.info("{} Node {} left the cluster", new Object[]{selfAddress.getId(), netLeave.getSource()});
+            }
+
+            nodeHandler.addLeft(netLeave.getSource(), netLeave.getContent().getIncarnationCounter());
+        }
+
+    };
+
+    /**
+     * Handler for receiving join messages.
+     * A new node has us as bootstrap node. Add it as alive and send it our whole membership list.
+     */
+    private Handler<NetJoin> handleJoin = new Handler<NetJoin>() {
+
+        @Override
+        public void handle(NetJoin netJoin) {
+            if (ENABLE_LOGGING) {
+                log.info("{} received join from: {}", new Object[]{selfAddress.getId(), netJoin.getSource()});
+            }
+
+            nodeHandler.addDefinatelyAlive(netJoin.getSource(), netJoin.getContent().getIncarnationCounter());
+
+            sendMembershipSnapshot(netJoin.getSource());
+        }
+
+    };
+
+    /**
+     * Handler for receiving a chunk of the membership snapshot from our bootstrap node.
+     * The nodes are added without being piggybacked again, as the rest of the cluster already knows them.
+     */
+    private Handler<NetMembershipChunk> handleMembershipChunk = new Handler<NetMembershipChunk>() {
+
+        @Override
+        public void handle(NetMembershipChunk netChunk) {
+            if (ENABLE_LOGGING) {
+                log.info("{} received membership chunk {}/{} from: {}", new Object[]{selfAddress.getId(), netChunk.getContent().getChunkNr() + 1, netChunk.getContent().getChunkCount(), netChunk.getSource()});
+            }
+
+            MembershipChunk chunk = netChunk.getContent();
+            for (Map.Entry<Integer, Integer> entry : chunk.getDeadNodes().entrySet()) {
+                nodeHandler.addDeadFromSnapshot(chunk.getAddress(entry.getKey()), entry.getValue());
+            }
+
+            for (Map.Entry<Integer, Integer> entry : chunk.getAliveNodes().entrySet()) {
+                nodeHandler.addAliveFromSnapshot(chunk.getAddress(entry.getKey()), entry.getValue());
+            }
+        }
+
+    };
+
     /**
      * Handler for receiving K-ping messages.
      * Some node requests us to ping a node for them. Will send a ping to the requested node.
@@ -321,8 +535,8 @@ public class SwimComp extends ComponentDefinition {
             }
 
             //When we get a K-ping request, send a ping to the node someone requests us to ping.
-            trigger(new NetPing(selfAddress, netKPing.getContent().getAddressToPing(), sentPings, incarnationCounter), network);
-            sentIndirectPings.put(sentPings, netKPing.getSource());
+            trigger(new NetPing(selfAddress, netKPing.getContent().getAddressToPing(), sentPings, incarnationCounter, nodeHandler.getCoordinate(), Ping.NOT_SUSPECTED), network);
+            sentIndirectPings.put(sentPings, netKPing.getSource().getId());
             kPingNrToPingNrMapping.put(sentPings, netKPing.getContent().getPingNr());
             sentPings++;
         }
@@ -361,6 +575,14 @@ public class SwimComp extends ComponentDefinition {
 
         @Override
         public void handle(PingTimeout event) {
+            schedulePing(jitter.nextDelay(config.protocolPeriod, config.periodJitter));
+
+            nodeHandler.flushHeldSuspicions();
+            nodeHandler.expireTombstones();
+
+            //With cut detection, unstable reports time out, which can let a waiting cut through.
+            nodeHandler.checkCut();
+
             NatedAddress partnerAddress = nodeHandler.getRandomAliveNode();
 
             if (partnerAddress != null) {
@@ -369,10 +591,11 @@ public class SwimComp extends ComponentDefinition {
                 }
 
                 //Periodically send pings to a random alive node.
-                trigger(new NetPing(selfAddress, partnerAddress, sentPings, incarnationCounter), network);
+                trigger(new NetPing(selfAddress, partnerAddress, sentPings, incarnationCounter, nodeHandler.getCoordinate(), nodeHandler.getSuspectedIncarnation(partnerAddress)), network);
 
                 //Start a timer for when the ping will timeout and we will suspect the node being dead.
-                ScheduleTimeout scheduleTimeout = new ScheduleTimeout(PING_TIMEOUT);
+                //Nodes we know are close get a shorter timeout.
+                ScheduleTimeout scheduleTimeout = new ScheduleTimeout(nodeHandler.getProbeTimeout(partnerAddress, config.pingTimeout));
                 PongTimeout pongTimeout = new PongTimeout(scheduleTimeout, sentPings, partnerAddress);
                 scheduleTimeout.setTimeoutEvent(pongTimeout);
                 trigger(scheduleTimeout, timer);
@@ -381,6 +604,7 @@ public class SwimComp extends ComponentDefinition {
                 //Ping numbers will be included in the pong, so we can know which pong is
                 //answering to which ping.
                 sentPingNrs.add(sentPings);
+                sentPingTimes.put(sentPings, System.currentTimeMillis());
 
                 sentPings++;
             }
@@ -397,19 +621,129 @@ public class SwimComp extends ComponentDefinition {
 
         @Override
         public void handle(StatusTimeout event) {
+            scheduleStatus(jitter.nextDelay(config.aggregatorTimeout, config.periodJitter));
+
             if (ENABLE_LOGGING) {
                 log.info("{} sending status nr:{} to aggregator:{}", new Object[]{selfAddress.getId(), sentStatuses, aggregatorAddress});
             }
 
             //Send a status with our alive, suspected and dead nodes to the aggregator component periodically.
-            Map<NatedAddress, Integer> sendAliveNodes = new HashMap<>(nodeHandler.getAliveNodes());
-            trigger(new NetStatus(selfAddress, aggregatorAddress, new Status(sentStatuses, receivedPings, sentPings, sendAliveNodes, nodeHandler.getSuspectedNodes(), nodeHandler.getDeadNodes())), network);
+            Status status = createStatus(sentStatuses);
+
+            if (config.statusMode == SwimConfig.StatusMode.DELTA) {
+                //Only the changes since the last acknowledged status are sent, with a full checkpoint every statusCheckpointInterval statuses.
+                //The checkpoint lets the aggregator recover if it missed statuses or acks were lost.
+                boolean checkpoint = ackedStatus == null || sentStatuses % Math.max(1, config.statusCheckpointInterval) == 0;
+                unackedStatuses.put(sentStatuses, status);
+                unackedStatuses.remove(sentStatuses - Math.max(1, config.statusCheckpointInterval)); //Don't keep statuses the aggregator will never ack.
+
+                StatusDelta delta = checkpoint ? null : StatusDelta.between(ackedStatus, status);
+
+                //A delta with at least as many entries as the status itself is sent as a checkpoint instead.
+                if (delta == null || delta.size() >= status.getAliveNodes().size() + status.getSuspectedNodes().size() + status.getDeadNodes().size()) {
+                    trigger(new NetStatus(selfAddress, aggregatorAddress, status, true), network);
+                }
+                else {
+                    trigger(new NetStatusDelta(selfAddress, aggregatorAddress, delta), network);
+                }
+            }
+            else if (config.statusMode == SwimConfig.StatusMode.DIGEST) {
+                //Only a fingerprint of the alive list is sent. The status is kept in case the aggregator asks for it.
+                unackedStatuses.put(sentStatuses, status);
+                unackedStatuses.remove(sentStatuses - Math.max(1, config.statusCheckpointInterval));
+
+                List<Integer> aliveIds = new ArrayList<>();
+                aliveIds.add(selfAddress.getId());
+                aliveIds.addAll(status.getAliveNodes().keySet());
+                trigger(new NetStatusDigest(selfAddress, aggregatorAddress, StatusDigest.of(sentStatuses, receivedPings, sentPings, aliveIds)), network);
+            }
+            else {
+                trigger(new NetStatus(selfAddress, aggregatorAddress, status), network);
+            }
 
             sentStatuses++;
         }
 
     };
 
+    /**
+     * Handler for croupier samples. They feed the size estimate, and in partial view mode they are how we find nodes to monitor.
+     */
+    private Handler<CroupierSample<Object>> handleCroupierSample = new Handler<CroupierSample<Object>>() {
+
+        @Override
+        public void handle(CroupierSample<Object> event) {
+            List<NatedAddress> sample = new ArrayList<>();
+            for (Container<NatedAddress, Object> container : event.publicSample) {
+                sample.add(container.getSource());
+            }
+            for (Container<NatedAddress, Object> container : event.privateSample) {
+                sample.add(container.getSource());
+            }
+
+            nodeHandler.addFromSample(sample);
+        }
+
+    };
+
+    /**
+     * Handler for status requests from the aggregator, sent when our digest differs from the majority.
+     * We answer with the status we had at that time. If it's no longer kept the request is dropped,
+     * our current lists would be wrong for that round.
+     */
+    private Handler<NetStatusRequest> handleStatusRequest = new Handler<NetStatusRequest>() {
+
+        @Override
+        public void handle(NetStatusRequest event) {
+            int statusNr = event.getContent().getStatusNr();
+            Status status = unackedStatuses.get(statusNr);
+
+            if (status == null) {
+                if (ENABLE_LOGGING) {
+                    log.info("{} status nr:{} requested by aggregator is no longer kept", new Object[]{selfAddress.getId(), statusNr});
+                }
+                return;
+            }
+
+            trigger(new NetStatus(selfAddress, aggregatorAddress, status, true), network);
+        }
+
+    };
+
+    /**
+     * Handler for status acknowledgements from the aggregator.
+     * The acknowledged status becomes the base for the following deltas.
+     */
+    private Handler<NetStatusAck> handleStatusAck = new Handler<NetStatusAck>() {
+
+        @Override
+        public void handle(NetStatusAck event) {
+            int statusNr = event.getContent().getStatusNr();
+            Status status = unackedStatuses.get(statusNr);
+
+            if (status == null) {
+                return; //Already acknowledged a newer status.
+            }
+
+            ackedStatus = status;
+
+            if (config.statusMode == SwimConfig.StatusMode.DELTA) {
+                //Older statuses can never become a base again.
+                Iterator<Integer> iterator = unackedStatuses.keySet().iterator();
+                while (iterator.hasNext()) {
+                    if (iterator.next() <= statusNr) {
+                        iterator.remove();
+                    }
+                }
+            }
+            else {
+                //The digest check may still ask for older rounds, they are dropped when they get too old.
+                unackedStatuses.remove(statusNr);
+            }
+        }
+
+    };
+
     /**
      * Handler for receiving pong timeout.
      * This is the timeout we scheduled when sending a ping.
@@ -420,6 +754,9 @@ public class SwimComp extends ComponentDefinition {
 
         @Override
         public void handle(PongTimeout pongTimeout) {
+            //A pong arriving after this is too late to say anything useful about the round trip time.
+            sentPingTimes.remove(pongTimeout.getPingNr());
+
             //If ping timed out without any pong as response...
             if (sentPingNrs.contains(pongTimeout.getPingNr())) {
                 if (ENABLE_LOGGING) {
@@ -429,22 +766,24 @@ public class SwimComp extends ComponentDefinition {
                 //Add the node to our suspected list.
                 nodeHandler.addSuspected(pongTimeout.getAddress());
 
-                //Get a random selection of our alive nodes to K-ping.
-                List<NatedAddress> aliveNodes = new ArrayList<>(nodeHandler.getAliveNodes().keySet());
-                aliveNodes.remove(pongTimeout.getAddress());
-                Collections.shuffle(aliveNodes, rand);
+                //Get K helpers to K-ping through. Open nodes with low round trip time are preferred,
+                //so the K-pings don't have to race the suspected timeout through relays.
+                //A flaky node is probed often, so a single helper is enough to confirm it's unreachable.
+                int k = nodeHandler.isFlaky(pongTimeout.getAddress()) ? 1 : config.k;
+                List<NatedAddress> helpers = nodeHandler.getIndirectPingHelpers(pongTimeout.getAddress(), k);
 
                 //Send K indirect pings.
-                for (int i = 0; i < K && i < aliveNodes.size(); i++) {
+                for (NatedAddress helper : helpers) {
                     if (ENABLE_LOGGING) {
-                        log.info("{} sending KPing for suspected node {} to: {}", new Object[]{selfAddress.getId(), pongTimeout.getAddress(), aliveNodes.get(i)});
+                        log.info("{} sending KPing for suspected node {} to: {}", new Object[]{selfAddress.getId(), pongTimeout.getAddress(), helper});
                     }
 
-                    trigger(new NetKPing(selfAddress, aliveNodes.get(i), pongTimeout.getAddress(), pongTimeout.getPingNr()), network);
+                    trigger(new NetKPing(selfAddress, helper, pongTimeout.getAddress(), pongTimeout.getPingNr()), network);
                 }
 
                 //Start another timer for the K-pings to finnish before we declare the node suspected.
-                ScheduleTimeout scheduleTimeout = new ScheduleTimeout(SUSPECTED_TIMEOUT);
+                //Larger clusters get more time, the suspicion has to reach more nodes before the suspect can refute it.
+                ScheduleTimeout scheduleTimeout = new ScheduleTimeout(nodeHandler.scaleWithClusterSize(config.suspectedTimeout));
                 SuspectedTimeout suspectedTimeout = new SuspectedTimeout(scheduleTimeout, pongTimeout.getAddress(), pongTimeout.getPingNr());
                 scheduleTimeout.setTimeoutEvent(suspectedTimeout);
                 trigger(scheduleTimeout, timer);
@@ -468,7 +807,7 @@ public class SwimComp extends ComponentDefinition {
                 }
 
                 //Start another timer for the K-pings to finnish before we declare the node suspected.
-                ScheduleTimeout scheduleTimeout = new ScheduleTimeout(DEAD_TIMEOUT);
+                ScheduleTimeout scheduleTimeout = new ScheduleTimeout(config.deadTimeout);
                 DeadTimeout deadTimeout = new DeadTimeout(scheduleTimeout, suspectedTimeout.getAddress(), suspectedTimeout.getPingNr());
                 scheduleTimeout.setTimeoutEvent(deadTimeout);
                 trigger(scheduleTimeout, timer);
@@ -494,12 +833,148 @@ public class SwimComp extends ComponentDefinition {
         }
     };
 
-    private void schedulePeriodicPing() {
-        SchedulePeriodicTimeout spt = new SchedulePeriodicTimeout(1000, 1000);
-        PingTimeout sc = new PingTimeout(spt);
-        spt.setTimeoutEvent(sc);
+    /**
+     * Sends our coordinate to the parent, which gossips it through croupier, but only once it has moved noticeably.
+     * Every pong moves it a little, publishing each step would flood croupier with view updates.
+     */
+    private void publishCoordinate() {
+        VivaldiCoordinate coordinate = nodeHandler.getCoordinate();
+
+        if (publishedCoordinate == null || coordinate.movedFrom(publishedCoordinate) > COORDINATE_PUBLISH_DISTANCE) {
+            publishedCoordinate = coordinate;
+            trigger(new CoordinateUpdate(coordinate), parentPort);
+        }
+    }
+
+    /**
+     * Asks one of our bootstrap nodes for its membership list, so we don't have to
+     * learn about the other nodes one piggyback at a time.
+     */
+    private void sendJoin() {
+        if (bootstrapNodes.isEmpty()) {
+            return;
+        }
+
+        NatedAddress bootstrapNode = bootstrapNodes.get(rand.nextInt(bootstrapNodes.size()));
+
+        if (ENABLE_LOGGING) {
+            log.info("{} sending join to: {}", new Object[]{selfAddress.getId(), bootstrapNode});
+        }
+
+        trigger(new NetJoin(selfAddress, bootstrapNode, incarnationCounter), network);
+    }
+
+    /**
+     * Sends our alive and dead nodes to a joining node, split in chunks of JOIN_CHUNK_SIZE nodes.
+     */
+    private void sendMembershipSnapshot(NatedAddress joiner) {
+        Map<Integer, Integer> aliveNodes = nodeHandler.getAliveNodes();
+        Map<Integer, Integer> deadNodes = nodeHandler.getDeadNodes();
+
+        //Only nodes we have an address for can be sent, it's looked up here, when sending.
+        List<NatedAddress> entries = new ArrayList<>();
+        for (Integer id : aliveNodes.keySet()) {
+            NatedAddress address = nodeHandler.getAddress(id);
+            if (address != null && id != joiner.getId()) {
+                entries.add(address);
+            }
+        }
+        for (Integer id : deadNodes.keySet()) {
+            NatedAddress address = nodeHandler.getAddress(id);
+            if (address != null) {
+                entries.add(address);
+            }
+        }
+
+        int chunkCount = Math.max(1, (entries.size() + JOIN_CHUNK_SIZE - 1) / JOIN_CHUNK_SIZE);
+
+        for (int chunkNr = 0; chunkNr < chunkCount; chunkNr++) {
+            Map<Integer, Integer> aliveInChunk = new HashMap<>();
+            Map<Integer, Integer> deadInChunk = new HashMap<>();
+            Map<Integer, NatedAddress> addresses = new HashMap<>();
+
+            for (int i = chunkNr * JOIN_CHUNK_SIZE; i < entries.size() && i < (chunkNr + 1) * JOIN_CHUNK_SIZE; i++) {
+                NatedAddress address = entries.get(i);
+                addresses.put(address.getId(), address);
+
+                if (aliveNodes.containsKey(address.getId())) {
+                    aliveInChunk.put(address.getId(), aliveNodes.get(address.getId()));
+                }
+                else {
+                    deadInChunk.put(address.getId(), deadNodes.get(address.getId()));
+                }
+            }
+
+            trigger(new NetMembershipChunk(selfAddress, joiner, new MembershipChunk(aliveInChunk, deadInChunk, addresses, chunkNr, chunkCount)), network);
+        }
+    }
+
+    /**
+     * Tells K of our alive nodes that we are leaving. They put us straight in their dead lists
+     * and piggyback the leave ahead of everything else, so nobody has to suspect us first.
+     */
+    private void announceLeave() {
+        for (NatedAddress address : nodeHandler.getIndirectPingHelpers(selfAddress, config.k)) {
+            if (ENABLE_LOGGING) {
+                log.info("{} sending leave to: {}", new Object[]{selfAddress.getId(), address});
+            }
+
+            trigger(new NetLeave(selfAddress, address, incarnationCounter), network);
+        }
+    }
+
+    /**
+     * Applies a metadata delta about a node and tells the services on the config port if it changed.
+     * Returns false if the delta couldn't be applied.
+     */
+    private boolean applyMetadata(NatedAddress address, MetadataDelta delta) {
+        MemberMetadata metadata = nodeHandler.applyMetadata(address, delta);
+
+        if (metadata == null) {
+            return false;
+        }
+
+        trigger(new MetadataChanged(address, metadata), configPort);
+        return true;
+    }
+
+    /**
+     * Increases our incarnation counter and sends Alive messages to all alive nodes, overriding a suspicion about us.
+     */
+    private void refuteSuspicion() {
+        incarnationCounter = Incarnation.increment(incarnationCounter);
+
+        for (Integer id : nodeHandler.getAliveNodes().keySet()) {
+            NatedAddress address = nodeHandler.getAddress(id);
+            if (address != null) {
+                trigger(new NetAlive(selfAddress, address, incarnationCounter), network);
+            }
+        }
+    }
+
+    /**
+     * Creates a status with our alive, suspected and dead lists.
+     */
+    private Status createStatus(int statusNr) {
+        return new Status.Builder()
+                .statusNr(statusNr)
+                .pings(receivedPings, sentPings)
+                .aliveNodes(nodeHandler.getAliveNodes())
+                .suspectedNodes(nodeHandler.getSuspectedNodes())
+                .deadNodes(nodeHandler.getDeadNodes())
+                .build();
+    }
+
+    /**
+     * Pings and statuses are scheduled as a chain of timeouts instead of a periodic timeout,
+     * so every period can get its own jitter.
+     */
+    private void schedulePing(long delay) {
+        ScheduleTimeout st = new ScheduleTimeout(delay);
+        PingTimeout sc = new PingTimeout(st);
+        st.setTimeoutEvent(sc);
         pingTimeoutId = sc.getTimeoutId();
-        trigger(spt, timer);
+        trigger(st, timer);
     }
 
     private void cancelPeriodicPing() {
@@ -508,12 +983,12 @@ public class SwimComp extends ComponentDefinition {
         pingTimeoutId = null;
     }
 
-    private void schedulePeriodicStatus() {
-        SchedulePeriodicTimeout spt = new SchedulePeriodicTimeout(1000, AGGREGATOR_TIMEOUT);
-        StatusTimeout sc = new StatusTimeout(spt);
-        spt.setTimeoutEvent(sc);
+    private void scheduleStatus(long delay) {
+        ScheduleTimeout st = new ScheduleTimeout(delay);
+        StatusTimeout sc = new StatusTimeout(st);
+        st.setTimeoutEvent(sc);
         statusTimeoutId = sc.getTimeoutId();
-        trigger(spt, timer);
+        trigger(st, timer);
     }
 
     private void cancelPeriodicStatus() {
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * GVoD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.swim.component;
+
+/**
+ * Tuning parameters of the SWIM component.
+ * Created with the Builder. Passed to SwimComp through SwimInit and can be replaced on a running node through the ConfigPort.
+ */
+public class SwimConfig {
+
+    /**
+     * How statuses are reported to the aggregator.
+     * FULL sends all lists every time, DELTA sends the changes since the last acknowledged status
+     * and DIGEST sends a fingerprint of the alive list, with full statuses only on request by the aggregator.
+     */
+    public enum StatusMode {
+        FULL, DELTA, DIGEST
+    }
+
+    public final int pingTimeout;           //Time until a node will be K-pinged
+    public final int suspectedTimeout;      //Time until it's declared suspected
+    public final int deadTimeout;           //Time until it's declared dead
+    public final int aggregatorTimeout;     //Delay between sending info to aggregator
+    public final int k;                     //K value, how many nodes we K-ping if we suspect a node.
+    public final int lambda;                //How many times the node change is piggybacked. Lambda * log(n)
+    public final int piggybackMessageSize;  //How many nodes piggybacked in each pong.
+    public final boolean leaveOnStop;       //Announce a graceful leave when the component is stopped. Off by default, so stopped nodes look crashed.
+    public final int protocolPeriod;        //Delay between pings
+    public final double periodJitter;       //Max random deviation of the ping and status periods, as a fraction of the period.
+    public final StatusMode statusMode;     //How statuses are reported to the aggregator.
+    public final int statusCheckpointInterval; //In delta mode, every Nth status is sent in full.
+    public final int partialViewSize;       //Max number of alive nodes tracked, fed by croupier samples. 0 tracks every node.
+    public final int cutHighWatermark;      //Observers needed before a dead node is part of a view change. 0 applies dead reports one at a time.
+    public final int cutLowWatermark;       //Observers at which a dead node holds back the view change until it reaches the high watermark.
+    public final int batchWindow;           //Time outgoing messages to one node are collected into one envelope. 0 sends them one by one. Read when the host is created.
+    public final boolean messageStats;      //Count messages and their uncompressed encoded size in NatTraversalComp, see MessageStats. Read when the host is created.
+
+    private SwimConfig(Builder builder) {
+        this.pingTimeout = builder.pingTimeout;
+        this.suspectedTimeout = builder.suspectedTimeout;
+        this.deadTimeout = builder.deadTimeout;
+        this.aggregatorTimeout = builder.aggregatorTimeout;
+        this.k = builder.k;
+        this.lambda = builder.lambda;
+        this.piggybackMessageSize = builder.piggybackMessageSize;
+        this.leaveOnStop = builder.leaveOnStop;
+        this.protocolPeriod = builder.protocolPeriod;
+        this.periodJitter = builder.periodJitter;
+        this.statusMode = builder.statusMode;
+        this.statusCheckpointInterval = builder.statusCheckpointInterval;
+        this.partialViewSize = builder.partialViewSize;
+        this.cutHighWatermark = builder.cutHighWatermark;
+        this.cutLowWatermark = builder.cutLowWatermark;
+        this.batchWindow = builder.batchWindow;
+        this.messageStats = builder.messageStats;
+    }
+
+    /**
+     * Builds a SwimConfig. Parameters that are not set keep the defaults used by SwimScenario and UdpMain.
+     */
+    public static class Builder {
+        private int pingTimeout = 2000;
+        private int suspectedTimeout = 2000;
+        private int deadTimeout = 2000;
+        private int aggregatorTimeout = 1000;
+        private int k = 4;
+        private int lambda = 3;
+        private int piggybackMessageSize = 9999999;
+        private boolean leaveOnStop = false;
+        private int protocolPeriod = 1000;
+        private double periodJitter = 0.1;
+        private StatusMode statusMode = StatusMode.FULL;
+        private int statusCheckpointInterval = 20;
+        private int partialViewSize = 0;
+        private int cutHighWatermark = 0;
+        private int cutLowWatermark = 0;
+        private int batchWindow = 0;
+        private boolean messageStats = false;
+
+        public Builder() {
+        }
+
+        /**
+         * Starts from the parameters of an existing config, used to change a few of them on a running node.
+         */
+        public Builder(SwimConfig config) {
+            this.pingTimeout = config.pingTimeout;
+            this.suspectedTimeout = config.suspectedTimeout;
+            this.deadTimeout = config.deadTimeout;
+            this.aggregatorTimeout = config.aggregatorTimeout;
+            this.k = config.k;
+            this.lambda = config.lambda;
+            this.piggybackMessageSize = config.piggybackMessageSize;
+            this.leaveOnStop = config.leaveOnStop;
+            this.protocolPeriod = config.protocolPeriod;
+            this.periodJitter = config.periodJitter;
+            this.statusMode = config.statusMode;
+            this.statusCheckpointInterval = config.statusCheckpointInterval;
+            this.partialViewSize = config.partialViewSize;
+            this.cutHighWatermark = config.cutHighWatermark;
+            this.cutLowWatermark = config.cutLowWatermark;
+            this.batchWindow = config.batchWindow;
+            this.messageStats = config.messageStats;
+        }
+
+        public Builder pingTimeout(int pingTimeout) {
+            this.pingTimeout = pingTimeout;
+            return this;
+        }
+
+        public Builder suspectedTimeout(int suspectedTimeout) {
+            this.suspectedTimeout = suspectedTimeout;
+            return this;
+        }
+
+        public Builder deadTimeout(int deadTimeout) {
+            this.deadTimeout = deadTimeout;
+            return this;
+        }
+
+        public Builder aggregatorTimeout(int aggregatorTimeout) {
+            this.aggregatorTimeout = aggregatorTimeout;
+            return this;
+        }
+
+        public Builder k(int k) {
+            this.k = k;
+            return this;
+        }
+
+        public Builder lambda(int lambda) {
+            this.lambda = lambda;
+            return this;
+        }
+
+        public Builder piggybackMessageSize(int piggybackMessageSize) {
+            this.piggybackMessageSize = piggybackMessageSize;
+            return this;
+        }
+
+        public Builder leaveOnStop(boolean leaveOnStop) {
+            this.leaveOnStop = leaveOnStop;
+            return this;
+        }
+
+        public Builder protocolPeriod(int protocolPeriod) {
+            this.protocolPeriod = protocolPeriod;
+            return this;
+        }
+
+        public Builder periodJitter(double periodJitter) {
+            this.periodJitter = periodJitter;
+            return this;
+        }
+
+        public Builder statusMode(StatusMode statusMode) {
+            this.statusMode = statusMode;
+            return this;
+        }
+
+        public Builder statusCheckpointInterval(int statusCheckpointInterval) {
+            this.statusCheckpointInterval = statusCheckpointInterval;
+            return this;
+        }
+
+        public Builder partialViewSize(int partialViewSize) {
+            this.partialViewSize = partialViewSize;
+            return this;
+        }
+
+        public Builder cutHighWatermark(int cutHighWatermark) {
+            this.cutHighWatermark = cutHighWatermark;
+            return this;
+        }
+
+        public Builder cutLowWatermark(int cutLowWatermark) {
+            this.cutLowWatermark = cutLowWatermark;
+            return this;
+        }
+
+        public Builder batchWindow(int batchWindow) {
+            this.batchWindow = batchWindow;
+            return this;
+        }
+
+        public Builder messageStats(boolean messageStats) {
+            this.messageStats = messageStats;
+            return this;
+        }
+
+        public SwimConfig build() {
+            return new SwimConfig(this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SwimConfig{pingTimeout=" + pingTimeout + ", suspectedTimeout=" + suspectedTimeout + ", deadTimeout=" + deadTimeout
+                + ", aggregatorTimeout=" + aggregatorTimeout + ", k=" + k + ", lambda=" + lambda
+                + ", piggybackMessageSize=" + piggybackMessageSize + ", leaveOnStop=" + leaveOnStop
+                + ", protocolPeriod=" + protocolPeriod + ", periodJitter=" + periodJitter
+                + ", statusMode=" + statusMode + ", statusCheckpointInterval=" + statusCheckpointInterval
+                + ", partialViewSize=" + partialViewSize + ", cutHighWatermark=" + cutHighWatermark + ", cutLowWatermark=" + cutLowWatermark
+                + ", batchWindow=" + batchWindow + ", messageStats=" + messageStats + "}";
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * GVoD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.swim.component;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.kth.swim.codec.MessageCodec;
+import se.kth.swim.component.init.UdpNetworkInit;
+import se.kth.swim.msg.Batch;
+import se.kth.swim.msg.net.NetBatch;
+import se.kth.swim.msg.net.NetMsg;
+import se.sics.kompics.*;
+import se.sics.kompics.network.Network;
+import se.sics.p2ptoolbox.util.network.NatedAddress;
+import se.sics.p2ptoolbox.util.network.impl.BasicHeader;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Network for running a node outside the simulator. Messages are encoded with MessageCodec and sent as UDP datagrams
+ * over a non-blocking DatagramChannel, which one I/O thread per node reads and writes.
+ * Outgoing messages are queued and written once per tick. Messages with a basic header to the same node within a tick
+ * travel in one NetBatch datagram, and received batches are unpacked before delivery.
+ */
+public class UdpNetworkComp extends ComponentDefinition {
+
+    private static final boolean ENABLE_LOGGING = false;
+    private static final int STOP_TIMEOUT = 1000; //Max time the stop handler waits for the I/O thread to write what is left.
+    private static final int MAX_ERROR_BACKOFF = 1000; //Max pause of the I/O thread after consecutive errors, doubled from one tick.
+
+    private static final Logger log = LoggerFactory.getLogger(UdpNetworkComp.class);
+    private Negative<Network> network = provides(Network.class);
+
+    private final NatedAddress selfAddress;
+    private final int tick;
+    private final int reportInterval;
+
+    private final MessageCodec codec; //Only used by the I/O thread, the codec reuses its buffer.
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(MessageCodec.MAX_MESSAGE_SIZE);
+    private final Queue<NetMsg> outgoing = new ConcurrentLinkedQueue<>(); //Filled by the handler, drained by the I/O thread every tick.
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private Thread ioThread;
+    private volatile boolean running;
+
+    //Counted by the I/O thread since the last report.
+    private long sentDatagrams, sentBytes, receivedDatagrams, receivedBytes, droppedDatagrams;
+    private long lastReport, lastCpuTime;
+
+    public UdpNetworkComp(UdpNetworkInit init) {
+        this.selfAddress = init.selfAddress;
+        this.tick = init.tick;
+        this.reportInterval = init.reportInterval;
+        this.codec = new MessageCodec(init.compressionThreshold);
+
+        //Bound right away, so a port that is taken fails the launch instead of the first send.
+        try {
+            channel = DatagramChannel.open();
+            channel.configureBlocking(false);
+            channel.bind(new InetSocketAddress(selfAddress.getIp(), selfAddress.getPort()));
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException ex) {
+            throw new RuntimeException("cannot bind to " + selfAddress.getIp() + ":" + selfAddress.getPort(), ex);
+        }
+
+        subscribe(handleStart, control);
+        subscribe(handleStop, control);
+        subscribe(handleOutgoingMsg, network);
+    }
+
+    private Handler<Start> handleStart = new Handler<Start>() {
+
+        @Override
+        public void handle(Start event) {
+            if (ENABLE_LOGGING) {
+                log.info("{} listening on {}:{}", new Object[]{selfAddress.getId(), selfAddress.getIp(), selfAddress.getPort()});
+            }
+
+            running = true;
+            lastReport = System.currentTimeMillis();
+            lastCpuTime = getProcessCpuTime();
+            ioThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    eventLoop();
+                }
+            }, "udp-" + selfAddress.getId());
+            ioThread.setDaemon(true);
+            ioThread.start();
+        }
+
+    };
+
+    /**
+     * Stops the I/O thread, which writes what is left in the queue before the channel is closed.
+     * The component thread waits at most STOP_TIMEOUT for it, the channel is closed anyway after that.
+     */
+    private Handler<Stop> handleStop = new Handler<Stop>() {
+
+        @Override
+        public void handle(Stop event) {
+            running = false;
+            selector.wakeup();
+
+            try {
+                if (ioThread != null) {
+                    ioThread.join(STOP_TIMEOUT);
+                }
+                if (ioThread == null || !ioThread.isAlive()) {
+                    codec.close(); //Still used by the I/O thread otherwise.
+                }
+                else {
+                    log.warn("{} I/O thread didn't stop within {} ms", selfAddress.getId(), STOP_TIMEOUT);
+                }
+                selector.close();
+                channel.close();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (IOException ex) {
+                log.warn("{} error closing the channel: {}", selfAddress.getId(), ex.getMessage());
+            }
+        }
+
+    };
+
+    /**
+     * Queues an outgoing message, it is written at the next tick.
+     */
+    private Handler<NetMsg<Object>> handleOutgoingMsg = new Handler<NetMsg<Object>>() {
+
+        @Override
+        public void handle(NetMsg<Object> msg) {
+            outgoing.add(msg);
+        }
+
+    };
+
+    /**
+     * Runs on the I/O thread. Delivers datagrams as they arrive and writes the queued messages once every tick.
+     */
+    private void eventLoop() {
+        long nextTick = System.currentTimeMillis() + tick;
+        long backoff = 0;
+
+        while (running) {
+            try {
+                long wait = nextTick - System.currentTimeMillis();
+                if (wait > 0) {
+                    selector.select(wait);
+                    selector.selectedKeys().clear();
+                }
+
+                receive();
+
+                long now = System.currentTimeMillis();
+                if (now >= nextTick) {
+                    flush();
+                    report(now);
+                    nextTick = now + tick;
+                }
+                backoff = 0;
+            } catch (Exception ex) {
+                //An exception must not end the loop while the node runs, it would silently cut the node off the network.
+                //Repeated errors back off, so a broken channel doesn't spin and flood the log.
+                backoff = Math.min(MAX_ERROR_BACKOFF, backoff == 0 ? Math.max(1, tick) : 2 * backoff);
+                log.error("{} network error, retrying in {} ms", new Object[]{selfAddress.getId(), backoff, ex});
+                pause(backoff);
+            } catch (Error error) {
+                log.error("{} fatal error, the network is stopped", selfAddress.getId(), error);
+                running = false;
+                return;
+            }
+        }
+
+        try {
+            flush();
+        } catch (Exception ex) {
+            log.error("{} error writing the last messages", selfAddress.getId(), ex);
+        }
+    }
+
+    private void pause(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+
+    /**
+     * Helper function. Reads and delivers every datagram waiting in the channel.
+     * Datagrams that can't be decoded are dropped, they can't be from a node running the same version.
+     */
+    private void receive() throws IOException {
+        while (true) {
+            receiveBuffer.clear();
+            if (channel.receive(receiveBuffer) == null) {
+                return;
+            }
+            receivedDatagrams++;
+            receivedBytes += receiveBuffer.position();
+            receiveBuffer.flip();
+
+            NetMsg msg;
+            try {
+                msg = MessageCodec.read(receiveBuffer);
+            } catch (RuntimeException ex) {
+                log.warn("{} dropped a datagram that could not be decoded: {}", selfAddress.getId(), ex.toString());
+                continue;
+            }
+
+            if (msg.getContent() instanceof Batch) {
+                for (NetMsg batched : ((Batch) msg.getContent()).getMessages()) {
+                    trigger(batched, network);
+                }
+            }
+            else {
+                trigger(msg, network);
+            }
+        }
+    }
+
+    /**
+     * Helper function. Writes the queued messages, in a batch if there is more than one to a destination.
+     * Only messages we send ourselves with a basic header are batched, the batch header replaces theirs.
+     */
+    private void flush() {
+        Map<InetSocketAddress, List<NetMsg>> pendingMessages = new LinkedHashMap<>();
+
+        NetMsg msg;
+        while ((msg = outgoing.poll()) != null) {
+            NatedAddress source = (NatedAddress) msg.getHeader().getSource();
+            NatedAddress destination = (NatedAddress) msg.getHeader().getDestination();
+            InetSocketAddress target = new InetSocketAddress(destination.getIp(), destination.getPort());
+
+            if (!(msg.getHeader() instanceof BasicHeader) || source.getId() != selfAddress.getId()) {
+                send(msg, target);
+                continue;
+            }
+
+            List<NetMsg> messages = pendingMessages.get(target);
+            if (messages == null) {
+                messages = new ArrayList<>();
+                pendingMessages.put(target, messages);
+            }
+            messages.add(msg);
+        }
+
+        for (Map.Entry<InetSocketAddress, List<NetMsg>> entry : pendingMessages.entrySet()) {
+            List<NetMsg> messages = entry.getValue();
+            if (messages.size() == 1) {
+                send(messages.get(0), entry.getKey());
+                continue;
+            }
+
+            NatedAddress destination = (NatedAddress) messages.get(0).getHeader().getDestination();
+            ByteBuffer buffer;
+            try {
+                buffer = codec.encode(new NetBatch(selfAddress, destination, new Batch(messages)));
+            } catch (RuntimeException ex) {
+                //Too large for one datagram, send them one by one.
+                for (NetMsg message : messages) {
+                    send(message, entry.getKey());
+                }
+                continue;
+            }
+            write(buffer, entry.getKey());
+        }
+    }
+
+    private void send(NetMsg msg, InetSocketAddress target) {
+        ByteBuffer buffer;
+        try {
+            buffer = codec.encode(msg);
+        } catch (RuntimeException ex) {
+            log.warn("{} dropped {}: {}", new Object[]{selfAddress.getId(), msg.getClass().getSimpleName(), ex.getMessage()});
+            droppedDatagrams++;
+            return;
+        }
+        write(buffer, target);
+    }
+
+    /**
+     * Helper function. A datagram the socket buffer has no room for is dropped, as the network would do.
+     */
+    private void write(ByteBuffer buffer, InetSocketAddress target) {
+        int length = buffer.remaining();
+        try {
+            if (channel.send(buffer, target) == 0) {
+                droppedDatagrams++;
+            }
+            else {
+                sentDatagrams++;
+                sentBytes += length;
+            }
+        } catch (IOException ex) {
+            droppedDatagrams++;
+            if (ENABLE_LOGGING) {
+                log.info("{} could not send to {}: {}", new Object[]{selfAddress.getId(), target, ex.getMessage()});
+            }
+        }
+    }
+
+    /**
+     * Helper function. Logs the bandwidth and the CPU used by the process since the last report.
+     * One node runs per process, so the CPU time is the cost of the node.
+     */
+    private void report(long now) {
+        if (reportInterval <= 0 || now - lastReport < reportInterval) {
+            return;
+        }
+
+        double seconds = (now - lastReport) / 1000.0;
+        long cpuTime = getProcessCpuTime();
+        double cpuPercent = cpuTime < 0 ? -1 : 100.0 * (cpuTime - lastCpuTime) / ((now - lastReport) * 1000000.0);
+
+        log.info("{} sent {} datagrams/s {} bytes/s, received {} datagrams/s {} bytes/s, dropped {}, cpu {}%", new Object[]{selfAddress.getId(),
+                Math.round(sentDatagrams / seconds), Math.round(sentBytes / seconds),
+                Math.round(receivedDatagrams / seconds), Math.round(receivedBytes / seconds),
+                droppedDatagrams, String.format("%.1f", cpuPercent)});
+
+        sentDatagrams = sentBytes = receivedDatagrams = receivedBytes = droppedDatagrams = 0;
+        lastReport = now;
+        lastCpuTime = cpuTime;
+    }
+
+    /**
+     * Helper function. Returns the CPU time used by the process in nanoseconds, or -1 if the JVM doesn't tell.
+     */
+    private static long getProcessCpuTime() {
+        OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        if (bean instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) bean).getProcessCpuTime();
+        }
+        return -1;
+    }
+}
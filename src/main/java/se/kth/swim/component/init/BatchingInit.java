@@ -0,0 +1,21 @@
+package se.kth.swim.component.init;
+
+import se.kth.swim.component.BatchingComp;
+import se.sics.kompics.Init;
+import se.sics.p2ptoolbox.util.network.NatedAddress;
+
+/**
+ * Init of the batching component. Messages to the aggregator are never batched, as it doesn't unpack envelopes.
+ */
+public class BatchingInit extends Init<BatchingComp> {
+
+    public final NatedAddress selfAddress;
+    public final NatedAddress aggregatorAddress;
+    public final int batchWindow;
+
+    public BatchingInit(NatedAddress selfAddress, NatedAddress aggregatorAddress, int batchWindow) {
+        this.selfAddress = selfAddress;
+        this.aggregatorAddress = aggregatorAddress;
+        this.batchWindow = batchWindow;
+    }
+}
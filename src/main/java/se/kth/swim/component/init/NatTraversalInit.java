@@ -11,9 +11,11 @@ public class NatTraversalInit extends Init<NatTraversalComp> {
 
     public final NatedAddress selfAddress;
     public final long seed;
+    public final boolean messageStats;
 
-    public NatTraversalInit(NatedAddress selfAddress, long seed) {
+    public NatTraversalInit(NatedAddress selfAddress, long seed, boolean messageStats) {
         this.selfAddress = selfAddress;
         this.seed = seed;
+        this.messageStats = messageStats;
     }
 }
@@ -1,6 +1,7 @@
 package se.kth.swim.component.init;
 
 import se.kth.swim.component.SwimComp;
+import se.kth.swim.component.SwimConfig;
 import se.sics.kompics.Init;
 import se.sics.p2ptoolbox.util.network.NatedAddress;
 
@@ -15,11 +16,13 @@ public class SwimInit extends Init<SwimComp> {
     public final Set<NatedAddress> bootstrapNodes;
     public final NatedAddress aggregatorAddress;
     public final long seed;
+    public final SwimConfig config;
 
-    public SwimInit(NatedAddress selfAddress, Set<NatedAddress> bootstrapNodes, NatedAddress aggregatorAddress, long seed) {
+    public SwimInit(NatedAddress selfAddress, Set<NatedAddress> bootstrapNodes, NatedAddress aggregatorAddress, long seed, SwimConfig config) {
         this.selfAddress = selfAddress;
         this.bootstrapNodes = bootstrapNodes;
         this.aggregatorAddress = aggregatorAddress;
         this.seed = seed;
+        this.config = config;
     }
 }
@@ -0,0 +1,24 @@
+package se.kth.swim.component.init;
+
+import se.kth.swim.component.UdpNetworkComp;
+import se.sics.kompics.Init;
+import se.sics.p2ptoolbox.util.network.NatedAddress;
+
+/**
+ * Init of the UDP network. The node binds to the ip and port of its own address.
+ * Tick and report interval are in milliseconds, a report interval of 0 disables the bandwidth and CPU log.
+ */
+public class UdpNetworkInit extends Init<UdpNetworkComp> {
+
+    public final NatedAddress selfAddress;
+    public final int tick;
+    public final int compressionThreshold;
+    public final int reportInterval;
+
+    public UdpNetworkInit(NatedAddress selfAddress, int tick, int compressionThreshold, int reportInterval) {
+        this.selfAddress = selfAddress;
+        this.tick = tick;
+        this.compressionThreshold = compressionThreshold;
+        this.reportInterval = reportInterval;
+    }
+}
@@ -31,13 +31,13 @@ import se.kth.swim.croupier.msg.CroupierJoin;
 import se.kth.swim.croupier.msg.CroupierSample;
 import se.kth.swim.croupier.msg.CroupierUpdate;
 import se.kth.swim.croupier.util.OverlayHeaderImpl;
+import se.kth.swim.timeout.Jitter;
 import se.sics.kompics.*;
 import se.sics.kompics.network.Network;
 import se.sics.kompics.network.Transport;
 import se.sics.kompics.timer.*;
 import se.sics.kompics.timer.Timer;
 import se.sics.p2ptoolbox.util.network.NatedAddress;
-import se.sics.p2ptoolbox.util.network.impl.BasicAddress;
 import se.sics.p2ptoolbox.util.network.impl.BasicHeader;
 
 import java.util.*;
@@ -67,6 +67,8 @@ public class CroupierComp extends ComponentDefinition {
     private UUID shuffleCycleId;
     private UUID shuffleTimeoutId;
 
+    private final Jitter jitter;
+
     public CroupierComp(CroupierInit init) {
         this.self = init.self;
         this.croupierConfig = init.croupierConfig;
@@ -81,8 +83,9 @@ public class CroupierComp extends ComponentDefinition {
         this.shuffleTimeoutId = null;
 
         Random rand = new Random(init.seed + overlayId);
-        this.publicView = new CroupierView((BasicAddress) self.getBaseAdr(), croupierConfig.viewSize, rand);
-        this.privateView = new CroupierView((BasicAddress) self.getBaseAdr(), croupierConfig.viewSize, rand);
+        this.jitter = new Jitter(31 * (init.seed + overlayId) + 7);
+        this.publicView = new CroupierView(self.getId(), croupierConfig.viewSize, rand);
+        this.privateView = new CroupierView(self.getId(), croupierConfig.viewSize, rand);
 
         subscribe(handleStart, control);
         subscribe(handleStop, control);
@@ -204,6 +207,10 @@ public class CroupierComp extends ComponentDefinition {
 //            log.trace("{} {}", logPrefix, event);
 //            log.debug("{} public view size:{}, private view size:{}, bootstrap nodes size:{}", new Object[]{logPrefix, publicView.size(), privateView.size(), bootstrapNodes.size()});
 
+            //The shuffle cycle is a chain of timeouts with jitter, schedule the next one.
+            shuffleCycleId = null;
+            scheduleShuffleCycle(jitter.nextDelay(croupierConfig.shufflePeriod, croupierConfig.shuffleJitter));
+
             if (!haveShufflePartners()) {
 //                log.warn("{} no shuffle partners - disconnected", logPrefix);
                 stopShuffle();
@@ -347,11 +354,16 @@ public class CroupierComp extends ComponentDefinition {
 //            log.warn("{} double starting periodic shuffle", logPrefix);
             return;
         }
-        SchedulePeriodicTimeout spt = new SchedulePeriodicTimeout(croupierConfig.shufflePeriod, croupierConfig.shufflePeriod);
-        ShuffleCycle sc = new ShuffleCycle(spt);
-        spt.setTimeoutEvent(sc);
+        //Start at a random phase of the period, so nodes started together don't shuffle in lockstep.
+        scheduleShuffleCycle(croupierConfig.shufflePeriod + jitter.phaseOffset(croupierConfig.shufflePeriod));
+    }
+
+    private void scheduleShuffleCycle(long delay) {
+        ScheduleTimeout st = new ScheduleTimeout(delay);
+        ShuffleCycle sc = new ShuffleCycle(st);
+        st.setTimeoutEvent(sc);
         shuffleCycleId = sc.getTimeoutId();
-        trigger(spt, timer);
+        trigger(st, timer);
     }
 
     private void cancelPeriodicShuffle() {
@@ -359,7 +371,7 @@ public class CroupierComp extends ComponentDefinition {
 //            log.warn("{} double stopping periodic shuffle", logPrefix);
             return;
         }
-        CancelPeriodicTimeout cpt = new CancelPeriodicTimeout(shuffleCycleId);
+        CancelTimeout cpt = new CancelTimeout(shuffleCycleId);
         shuffleCycleId = null;
         trigger(cpt, timer);
     }
@@ -408,6 +420,10 @@ public class CroupierComp extends ComponentDefinition {
             super(request);
         }
 
+        public ShuffleCycle(ScheduleTimeout request) {
+            super(request);
+        }
+
         @Override
         public String toString() {
             return "SHUFFLE_CYCLE";
@@ -34,13 +34,22 @@ public class CroupierConfig {
     public final long shufflePeriod;
     public final long shuffleTimeout;
     public final double softMaxTemperature;
+    public final double shuffleJitter;
+
+    //Used by the simulation scenarios and the UDP launcher.
+    public static final CroupierConfig DEFAULT = new CroupierConfig(10, 5, 1000, 500, 0.1);
 
     public CroupierConfig(int viewSize, int shuffleSize, long shufflePeriod, long shuffleTimeout) {
+        this(viewSize, shuffleSize, shufflePeriod, shuffleTimeout, 0);
+    }
+
+    public CroupierConfig(int viewSize, int shuffleSize, long shufflePeriod, long shuffleTimeout, double shuffleJitter) {
         this.policy = CroupierSelectionPolicy.RANDOM;
         this.viewSize = viewSize;
         this.shuffleSize = shuffleSize;
         this.shufflePeriod = shufflePeriod;
         this.shuffleTimeout = shuffleTimeout;
         this.softMaxTemperature = 0;
+        this.shuffleJitter = shuffleJitter;
     }
 }
@@ -22,7 +22,6 @@ package se.kth.swim.croupier.internal;
 
 import se.kth.swim.croupier.CroupierSelectionPolicy;
 import se.sics.p2ptoolbox.util.network.NatedAddress;
-import se.sics.p2ptoolbox.util.network.impl.BasicAddress;
 
 import java.util.*;
 
@@ -32,8 +31,8 @@ import java.util.*;
 public class CroupierView<C extends Object> {
 
     private final int viewSize;
-    private final BasicAddress selfAddress;
-    private final HashMap<BasicAddress, CroupierViewEntry<C>> d2e;
+    private final int selfId;
+    private final HashMap<Integer, CroupierViewEntry<C>> d2e; //Keyed by node id.
     private final Random rand;
 
     private Comparator<CroupierViewEntry> comparatorByAge = new Comparator<CroupierViewEntry>() {
@@ -51,11 +50,11 @@ public class CroupierView<C extends Object> {
         }
     };
 
-    public CroupierView(BasicAddress selfAddress, int viewSize, Random rand) {
+    public CroupierView(int selfId, int viewSize, Random rand) {
         super();
-        this.selfAddress = selfAddress;
+        this.selfId = selfId;
         this.viewSize = viewSize;
-        this.d2e = new HashMap<BasicAddress, CroupierViewEntry<C>>();
+        this.d2e = new HashMap<Integer, CroupierViewEntry<C>>();
         this.rand = rand;
     }
 
@@ -117,7 +116,7 @@ public class CroupierView<C extends Object> {
         List<CroupierViewEntry> randomEntries = generateRandomSample(count);
         Set<CroupierContainer<C>> descriptors = new HashSet<CroupierContainer<C>>();
         for (CroupierViewEntry cacheEntry : randomEntries) {
-            cacheEntry.sentTo((BasicAddress) destinationPeer.getBaseAdr());
+            cacheEntry.sentTo(destinationPeer.getId());
             descriptors.add(cacheEntry.getDescriptor().getCopy());
         }
         return descriptors;
@@ -127,38 +126,38 @@ public class CroupierView<C extends Object> {
         List<CroupierViewEntry> randomEntries = generateRandomSample(count);
         Set<CroupierContainer<C>> descriptors = new HashSet<CroupierContainer<C>>();
         for (CroupierViewEntry cacheEntry : randomEntries) {
-            cacheEntry.sentTo((BasicAddress) destinationPeer.getBaseAdr());
+            cacheEntry.sentTo(destinationPeer.getId());
             descriptors.add(cacheEntry.getDescriptor().getCopy());
         }
         return descriptors;
     }
 
     public void selectToKeep(NatedAddress from, Set<CroupierContainer<C>> descriptors) {
-        BasicAddress baseFrom = (BasicAddress) from.getBaseAdr();
-        if (baseFrom.equals(selfAddress)) {
+        int fromId = from.getId();
+        if (fromId == selfId) {
             return;
         }
 
         LinkedList<CroupierViewEntry> entriesSentToThisPeer = new LinkedList<CroupierViewEntry>();
         for (CroupierViewEntry cacheEntry : d2e.values()) {
-            if (cacheEntry.wasSentTo(baseFrom)) {
+            if (cacheEntry.wasSentTo(fromId)) {
                 entriesSentToThisPeer.add(cacheEntry);
             }
         }
         //TODO Alex policy for removing the descriptor of the shuffle target - should it be the first i remove or last?
-        if (d2e.containsKey(baseFrom)) {
-            entriesSentToThisPeer.add(d2e.get(baseFrom));
+        if (d2e.containsKey(fromId)) {
+            entriesSentToThisPeer.add(d2e.get(fromId));
         }
 
         for (CroupierContainer<C> descriptor : descriptors) {
-            BasicAddress baseSrc = (BasicAddress) descriptor.getSource().getBaseAdr();
-            if (selfAddress.equals(baseSrc)) {
+            int srcId = descriptor.getSource().getId();
+            if (srcId == selfId) {
                 continue; // do not keep descriptor of self
             }
-            if (d2e.containsKey(baseSrc)) {
+            if (d2e.containsKey(srcId)) {
                 // we already have an entry for this peer. keep the youngest one
 
-                CroupierViewEntry entry = d2e.get(baseSrc);
+                CroupierViewEntry entry = d2e.get(srcId);
                 if (entry.getDescriptor().getAge() > descriptor.getAge()) {
                     // we keep the lowest age descriptor
                     CroupierViewEntry newCVE = new CroupierViewEntry(descriptor);
@@ -169,7 +168,7 @@ public class CroupierView<C extends Object> {
                         entriesSentToThisPeer.set(index, newCVE);
                     }
 
-                    removeEntry(baseSrc);
+                    removeEntry(srcId);
                     addEntry(newCVE);
                 }
             }
@@ -181,7 +180,7 @@ public class CroupierView<C extends Object> {
                 // replace one slot out of those sent to this peer
                 CroupierViewEntry sentEntry = entriesSentToThisPeer.poll();
                 if (sentEntry != null) {
-                    removeEntry((BasicAddress) sentEntry.getDescriptor().getSource().getBaseAdr());
+                    removeEntry(sentEntry.getDescriptor().getSource().getId());
                     addEntry(new CroupierViewEntry(descriptor));
                 }
             }
@@ -222,15 +221,15 @@ public class CroupierView<C extends Object> {
     }
 
     private void addEntry(CroupierViewEntry entry) {
-        d2e.put((BasicAddress) entry.getDescriptor().getSource().getBaseAdr(), entry);
+        d2e.put(entry.getDescriptor().getSource().getId(), entry);
     }
 
-    private boolean removeEntry(BasicAddress src) {
-        return d2e.remove(src) != null;
+    private boolean removeEntry(int srcId) {
+        return d2e.remove(srcId) != null;
     }
 
     public void timedOut(NatedAddress src) {
-        removeEntry((BasicAddress) src.getBaseAdr());
+        removeEntry(src.getId());
     }
 
     public boolean isEmpty() {
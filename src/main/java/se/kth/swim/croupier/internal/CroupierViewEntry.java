@@ -20,8 +20,6 @@
  */
 package se.kth.swim.croupier.internal;
 
-import se.sics.p2ptoolbox.util.network.impl.BasicAddress;
-
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Set;
@@ -59,7 +57,7 @@ public class CroupierViewEntry<C extends Object> {
     private final CroupierContainer<C> cc;
     private final long addedAt;
     private long sentAt;
-    private final Set<BasicAddress> sentTo = new HashSet<BasicAddress>();
+    private final Set<Integer> sentTo = new HashSet<Integer>(); //Node ids.
 
     public CroupierViewEntry(CroupierContainer<C> cc) {
         this.cc = cc;
@@ -68,8 +66,8 @@ public class CroupierViewEntry<C extends Object> {
     }
 
 
-    public void sentTo(BasicAddress peer) {
-        sentTo.add(peer);
+    public void sentTo(int peerId) {
+        sentTo.add(peerId);
         sentAt = System.currentTimeMillis();
     }
 
@@ -85,8 +83,8 @@ public class CroupierViewEntry<C extends Object> {
         return sentAt;
     }
 
-    public boolean wasSentTo(BasicAddress peer) {
-        return sentTo == null ? false : sentTo.contains(peer);
+    public boolean wasSentTo(int peerId) {
+        return sentTo == null ? false : sentTo.contains(peerId);
     }
 
     @Override
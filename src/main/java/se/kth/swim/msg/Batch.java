@@ -0,0 +1,23 @@
+package se.kth.swim.msg;
+
+import se.kth.swim.msg.net.NetMsg;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Messages to the same node that were sent within one batch window, delivered together in one envelope.
+ */
+public class Batch {
+
+    private final List<NetMsg> messages;
+
+    public Batch(List<NetMsg> messages) {
+        this.messages = Collections.unmodifiableList(new ArrayList<>(messages));
+    }
+
+    public List<NetMsg> getMessages() {
+        return messages;
+    }
+}
@@ -0,0 +1,16 @@
+package se.kth.swim.msg;
+
+/**
+ * Sent by a starting node to one of its bootstrap nodes, asking for the full membership list.
+ */
+public class Join {
+    int incarnationCounter;
+
+    public Join(int incarnationCounter) {
+        this.incarnationCounter = incarnationCounter;
+    }
+
+    public int getIncarnationCounter() {
+        return incarnationCounter;
+    }
+}
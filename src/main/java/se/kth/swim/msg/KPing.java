@@ -7,8 +7,8 @@ import se.sics.p2ptoolbox.util.network.NatedAddress;
  */
 public class KPing {
 
-    private NatedAddress addressToPing;
-    private int pingNr;
+    private final NatedAddress addressToPing;
+    private final int pingNr;
 
     public KPing(NatedAddress addressToPing, int pingNr) {
         this.addressToPing = addressToPing;
@@ -19,15 +19,7 @@ public class KPing {
         return addressToPing;
     }
 
-    public void setAddressToPing(NatedAddress addressToPing) {
-        this.addressToPing = addressToPing;
-    }
-
     public int getPingNr() {
         return pingNr;
     }
-
-    public void setPingNr(int pingNr) {
-        this.pingNr = pingNr;
-    }
 }
@@ -7,9 +7,9 @@ import se.sics.p2ptoolbox.util.network.NatedAddress;
  */
 public class KPong {
 
-    private NatedAddress address;
-    private int incarnationCounter;
-    private int pingNr;
+    private final NatedAddress address;
+    private final int incarnationCounter;
+    private final int pingNr;
 
     public KPong(NatedAddress address, int incarnationCounter, int pingNr) {
         this.address = address;
@@ -21,24 +21,11 @@ public class KPong {
         return address;
     }
 
-    public void setAddress(NatedAddress address) {
-        this.address = address;
-    }
-
     public int getIncarnationCounter() {
         return incarnationCounter;
     }
 
-    public void setIncarnationCounter(int incarnationCounter) {
-        this.incarnationCounter = incarnationCounter;
-    }
-
     public int getPingNr() {
         return pingNr;
     }
-
-    public void setPingNr(int pingNr) {
-        this.pingNr = pingNr;
-    }
-
 }
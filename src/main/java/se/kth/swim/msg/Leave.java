@@ -0,0 +1,17 @@
+package se.kth.swim.msg;
+
+/**
+ * Sent by a node that is shutting down on purpose, so it can be moved
+ * straight to the dead list instead of going through suspicion.
+ */
+public class Leave {
+    int incarnationCounter;
+
+    public Leave(int incarnationCounter) {
+        this.incarnationCounter = incarnationCounter;
+    }
+
+    public int getIncarnationCounter() {
+        return incarnationCounter;
+    }
+}
@@ -0,0 +1,59 @@
+package se.kth.swim.msg;
+
+import java.util.*;
+
+/**
+ * Versioned key-value tags of a member, such as role, shard or load.
+ * Stored as sorted parallel arrays, as there are few tags per node and they are read far more often than written.
+ * Immutable, a change creates a new version.
+ */
+public class MemberMetadata {
+
+    public static final MemberMetadata EMPTY = new MemberMetadata(0, new String[0], new String[0]);
+
+    private final int version;
+    private final String[] keys;
+    private final String[] values;
+
+    private MemberMetadata(int version, String[] keys, String[] values) {
+        this.version = version;
+        this.keys = keys;
+        this.values = values;
+    }
+
+    /**
+     * Creates metadata with the given version and tags.
+     */
+    public static MemberMetadata of(int version, Map<String, String> tags) {
+        TreeMap<String, String> sorted = new TreeMap<>(tags);
+        return new MemberMetadata(version, sorted.keySet().toArray(new String[sorted.size()]), sorted.values().toArray(new String[sorted.size()]));
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the value of a tag, or null if it isn't set.
+     */
+    public String get(String key) {
+        int index = Arrays.binarySearch(keys, key);
+        return index < 0 ? null : values[index];
+    }
+
+    /**
+     * Returns the tags as a map.
+     */
+    public Map<String, String> asMap() {
+        Map<String, String> tags = new TreeMap<>();
+        for (int i = 0; i < keys.length; i++) {
+            tags.put(keys[i], values[i]);
+        }
+        return tags;
+    }
+
+    @Override
+    public String toString() {
+        return "v" + version + asMap();
+    }
+}
@@ -0,0 +1,51 @@
+package se.kth.swim.msg;
+
+import se.sics.p2ptoolbox.util.network.NatedAddress;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * One part of the membership snapshot a bootstrap node sends to a joining node.
+ * The snapshot is split in chunks so every message fits in a datagram.
+ * Nodes are keyed by id, with the address of every node in a side table, as in Pong.
+ * Immutable like Status, the maps are copied when it is created.
+ */
+public class MembershipChunk {
+
+    private final Map<Integer, Integer> aliveNodes;
+    private final Map<Integer, Integer> deadNodes;
+    private final Map<Integer, NatedAddress> addresses; //Address of every alive and dead node, holding the parents of NATed nodes.
+    private final int chunkNr;
+    private final int chunkCount;
+
+    public MembershipChunk(Map<Integer, Integer> aliveNodes, Map<Integer, Integer> deadNodes, Map<Integer, NatedAddress> addresses, int chunkNr, int chunkCount) {
+        this.aliveNodes = Collections.unmodifiableMap(new LinkedHashMap<>(aliveNodes));
+        this.deadNodes = Collections.unmodifiableMap(new LinkedHashMap<>(deadNodes));
+        this.addresses = Collections.unmodifiableMap(new HashMap<>(addresses));
+        this.chunkNr = chunkNr;
+        this.chunkCount = chunkCount;
+    }
+
+    public Map<Integer, Integer> getAliveNodes() {
+        return aliveNodes;
+    }
+
+    public Map<Integer, Integer> getDeadNodes() {
+        return deadNodes;
+    }
+
+    public NatedAddress getAddress(int id) {
+        return addresses.get(id);
+    }
+
+    public int getChunkNr() {
+        return chunkNr;
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+}
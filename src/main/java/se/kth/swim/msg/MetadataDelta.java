@@ -0,0 +1,88 @@
+package se.kth.swim.msg;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Changes to the metadata of a member between two versions. This is what is gossiped, not the full metadata.
+ * A delta with base version 0 holds every tag and can be applied by anyone.
+ * Immutable, the same delta is piggybacked on many pongs.
+ */
+public class MetadataDelta {
+
+    private final int version, baseVersion;
+    private final Map<String, String> changedTags;
+    private final Set<String> removedTags;
+
+    public MetadataDelta(int version, int baseVersion, Map<String, String> changedTags, Set<String> removedTags) {
+        this.version = version;
+        this.baseVersion = baseVersion;
+        this.changedTags = Collections.unmodifiableMap(new LinkedHashMap<>(changedTags));
+        this.removedTags = Collections.unmodifiableSet(new LinkedHashSet<>(removedTags));
+    }
+
+    /**
+     * Creates the delta that turns the base metadata into the current metadata.
+     */
+    public static MetadataDelta between(MemberMetadata base, MemberMetadata current) {
+        Map<String, String> baseTags = base.asMap();
+        Map<String, String> currentTags = current.asMap();
+
+        Map<String, String> changedTags = new HashMap<>();
+        for (String key : currentTags.keySet()) {
+            if (!currentTags.get(key).equals(baseTags.get(key))) {
+                changedTags.put(key, currentTags.get(key));
+            }
+        }
+
+        Set<String> removedTags = new HashSet<>(baseTags.keySet());
+        removedTags.removeAll(currentTags.keySet());
+
+        return new MetadataDelta(current.getVersion(), base.getVersion(), changedTags, removedTags);
+    }
+
+    /**
+     * Creates a delta holding all of the metadata.
+     */
+    public static MetadataDelta full(MemberMetadata metadata) {
+        return between(MemberMetadata.EMPTY, metadata);
+    }
+
+    /**
+     * Returns true if the delta can be applied to metadata of the given version.
+     */
+    public boolean appliesTo(MemberMetadata metadata) {
+        return baseVersion == 0 || baseVersion == metadata.getVersion();
+    }
+
+    /**
+     * Returns the metadata after applying the delta. Check appliesTo first.
+     */
+    public MemberMetadata applyTo(MemberMetadata metadata) {
+        Map<String, String> tags = baseVersion == 0 ? new HashMap<String, String>() : metadata.asMap();
+        tags.keySet().removeAll(removedTags);
+        tags.putAll(changedTags);
+        return MemberMetadata.of(version, tags);
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getBaseVersion() {
+        return baseVersion;
+    }
+
+    public Map<String, String> getChangedTags() {
+        return changedTags;
+    }
+
+    public Set<String> getRemovedTags() {
+        return removedTags;
+    }
+}
@@ -0,0 +1,16 @@
+package se.kth.swim.msg;
+
+/**
+ * Asks a node for its full metadata, sent when we missed a version and can't apply the latest delta.
+ */
+public class MetadataRequest {
+    int knownVersion;
+
+    public MetadataRequest(int knownVersion) {
+        this.knownVersion = knownVersion;
+    }
+
+    public int getKnownVersion() {
+        return knownVersion;
+    }
+}
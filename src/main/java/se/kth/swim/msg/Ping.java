@@ -19,32 +19,47 @@
 
 package se.kth.swim.msg;
 
+import se.kth.swim.node.VivaldiCoordinate;
+
 /**
  * @author Alex Ormenisan <aaor@sics.se>
  */
 public class Ping {
 
-    private int pingNr;
-    private int incarnationCounter;
+    public static final int NOT_SUSPECTED = -2; //Suspected incarnation of a ping whose sender doesn't suspect the receiver, as -1 is Incarnation.UNKNOWN.
+
+    private final int pingNr;
+    private final int incarnationCounter;
+    private final VivaldiCoordinate coordinate; //Network coordinate of the sender.
+    private final int suspectedIncarnation;     //Incarnation counter the sender suspects the receiver at, or NOT_SUSPECTED.
 
-    public Ping(int pingNr, int incarnationCounter) {
+    public Ping(int pingNr, int incarnationCounter, VivaldiCoordinate coordinate, int suspectedIncarnation) {
         this.pingNr = pingNr;
         this.incarnationCounter = incarnationCounter;
+        this.coordinate = coordinate;
+        this.suspectedIncarnation = suspectedIncarnation;
     }
 
-    public int getPingNr() {
-        return pingNr;
+    public int getSuspectedIncarnation() {
+        return suspectedIncarnation;
     }
 
-    public void setPingNr(int pingNr) {
-        this.pingNr = pingNr;
+    /**
+     * Returns true if the sender suspects the receiver, possibly at Incarnation.UNKNOWN.
+     */
+    public boolean isSuspected() {
+        return suspectedIncarnation != NOT_SUSPECTED;
     }
 
-    public int getIncarnationCounter() {
-        return incarnationCounter;
+    public VivaldiCoordinate getCoordinate() {
+        return coordinate;
     }
 
-    public void setIncarnationCounter(int incarnationCounter) {
-        this.incarnationCounter = incarnationCounter;
+    public int getPingNr() {
+        return pingNr;
+    }
+
+    public int getIncarnationCounter() {
+        return incarnationCounter;
     }
 }
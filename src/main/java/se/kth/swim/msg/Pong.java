@@ -1,66 +1,244 @@
 package se.kth.swim.msg;
 
+import se.kth.swim.node.VivaldiCoordinate;
+
 import se.sics.p2ptoolbox.util.network.NatedAddress;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Created by Mattias on 2015-04-11.
+ * Immutable, so relaying or caching a pong never needs a copy. Create it with a Builder.
+ * The piggybacked node updates are stored as parallel arrays of id, incarnation counter and state, with the
+ * address of each entry in a side table, so building and reading them needs no hashing or boxing.
  */
 public class Pong {
 
-    private Map<NatedAddress, Integer> newNodes;
-    private Map<NatedAddress, Integer> suspectedNodes;
-    private Map<NatedAddress, Integer> deadNodes;
-    private int pingNr;
-    private int incarnationCounter;
-
-    public Pong(Map<NatedAddress, Integer> newNodes, Map<NatedAddress, Integer> suspectedNodes, Map<NatedAddress, Integer> deadNodes, int pingNr, int incarnationCounter) {
-        this.newNodes = newNodes;
-        this.suspectedNodes = suspectedNodes;
-        this.deadNodes = deadNodes;
-        this.pingNr = pingNr;
-        this.incarnationCounter = incarnationCounter;
+    //States of piggybacked entries.
+    public static final byte NEW = 0;
+    public static final byte SUSPECTED = 1;
+    public static final byte DEAD = 2;
+    public static final byte LEFT = 3;
+
+    private final int[] ids;
+    private final int[] incarnationCounters;
+    private final byte[] states;
+    private final NatedAddress[] addresses;     //Address of each entry, holding the parents of NATed nodes.
+    private final int pingNr;
+    private final int incarnationCounter;
+    private final VivaldiCoordinate coordinate; //Network coordinate of the sender.
+    private final SizeSketch sizeSketch;        //Sketch for estimating the cluster size, see SizeEstimator.
+    private final Map<Integer, Set<Integer>> deadObservers; //Node id of dead nodes to ids of the nodes that declared them dead.
+    private final Map<Integer, MetadataDelta> metadataDeltas; //Piggybacked metadata changes of other nodes, by node id.
+    private final int metadataVersion;          //Version of the sender's own metadata, so receivers notice if they missed it.
+
+    private Pong(Builder builder) {
+        this.ids = Arrays.copyOf(builder.ids, builder.size);
+        this.incarnationCounters = Arrays.copyOf(builder.incarnationCounters, builder.size);
+        this.states = Arrays.copyOf(builder.states, builder.size);
+        this.addresses = Arrays.copyOf(builder.addresses, builder.size);
+        this.pingNr = builder.pingNr;
+        this.incarnationCounter = builder.incarnationCounter;
+        this.coordinate = builder.coordinate;
+        this.sizeSketch = builder.sizeSketch;
+        this.metadataVersion = builder.metadataVersion;
+
+        //Most pongs carry no dead reports or metadata, those share the empty map.
+        if (builder.metadataDeltas.isEmpty()) {
+            this.metadataDeltas = Collections.emptyMap();
+        }
+        else {
+            this.metadataDeltas = Collections.unmodifiableMap(new LinkedHashMap<>(builder.metadataDeltas));
+        }
+
+        if (builder.deadObservers.isEmpty()) {
+            this.deadObservers = Collections.emptyMap();
+        }
+        else {
+            Map<Integer, Set<Integer>> observers = new LinkedHashMap<>();
+            for (Map.Entry<Integer, Set<Integer>> entry : builder.deadObservers.entrySet()) {
+                observers.put(entry.getKey(), Collections.unmodifiableSet(new LinkedHashSet<>(entry.getValue())));
+            }
+            this.deadObservers = Collections.unmodifiableMap(observers);
+        }
     }
 
-    public Map<NatedAddress, Integer> getNewNodes() {
-        return newNodes;
+    public Map<Integer, MetadataDelta> getMetadataDeltas() {
+        return metadataDeltas;
     }
 
-    public void setNewNodes(Map<NatedAddress, Integer> newNodes) {
-        this.newNodes = newNodes;
+    public int getMetadataVersion() {
+        return metadataVersion;
     }
 
-    public Map<NatedAddress, Integer> getSuspectedNodes() {
-        return suspectedNodes;
+    public Map<Integer, Set<Integer>> getDeadObservers() {
+        return deadObservers;
     }
 
-    public void setSuspectedNodes(Map<NatedAddress, Integer> suspectedNodes) {
-        this.suspectedNodes = suspectedNodes;
+    public SizeSketch getSizeSketch() {
+        return sizeSketch;
     }
 
-    public Map<NatedAddress, Integer> getDeadNodes() {
-        return deadNodes;
+    public VivaldiCoordinate getCoordinate() {
+        return coordinate;
     }
 
-    public void setDeadNodes(Map<NatedAddress, Integer> deadNodes) {
-        this.deadNodes = deadNodes;
+    /**
+     * Returns the number of piggybacked entries.
+     */
+    public int size() {
+        return ids.length;
     }
 
-    public int getPingNr() {
-        return pingNr;
+    public int getId(int index) {
+        return ids[index];
+    }
+
+    public int getIncarnationCounter(int index) {
+        return incarnationCounters[index];
+    }
+
+    public byte getState(int index) {
+        return states[index];
     }
 
-    public void setPingNr(int pingNr) {
-        this.pingNr = pingNr;
+    public NatedAddress getAddress(int index) {
+        return addresses[index];
+    }
+
+    /**
+     * Returns true if the node with the given id is piggybacked with the given state.
+     */
+    public boolean contains(int id, byte state) {
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] == id && states[i] == state) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getPingNr() {
+        return pingNr;
     }
 
     public int getIncarnationCounter() {
         return incarnationCounter;
     }
 
-    public void setIncarnationCounter(int incarnationCounter) {
-        this.incarnationCounter = incarnationCounter;
+    /**
+     * Collects the fields of a pong. The entries and maps are copied when the pong is built, so the builder can be reused.
+     */
+    public static class Builder {
+        private int size;
+        private int[] ids = new int[8];
+        private int[] incarnationCounters = new int[8];
+        private byte[] states = new byte[8];
+        private NatedAddress[] addresses = new NatedAddress[8];
+        private int pingNr;
+        private int incarnationCounter;
+        private VivaldiCoordinate coordinate = VivaldiCoordinate.origin();
+        private SizeSketch sizeSketch = SizeSketch.EMPTY;
+        private final Map<Integer, Set<Integer>> deadObservers = new HashMap<>();
+        private final Map<Integer, MetadataDelta> metadataDeltas = new HashMap<>();
+        private int metadataVersion;
+
+        /**
+         * Adds a piggybacked entry with one of the states NEW, SUSPECTED, DEAD or LEFT.
+         */
+        public Builder add(byte state, NatedAddress address, int incarnationCounter) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                incarnationCounters = Arrays.copyOf(incarnationCounters, size * 2);
+                states = Arrays.copyOf(states, size * 2);
+                addresses = Arrays.copyOf(addresses, size * 2);
+            }
+            ids[size] = address.getId();
+            incarnationCounters[size] = incarnationCounter;
+            states[size] = state;
+            addresses[size] = address;
+            size++;
+            return this;
+        }
+
+        public Builder pingNr(int pingNr) {
+            this.pingNr = pingNr;
+            return this;
+        }
+
+        public Builder incarnationCounter(int incarnationCounter) {
+            this.incarnationCounter = incarnationCounter;
+            return this;
+        }
+
+        public Builder coordinate(VivaldiCoordinate coordinate) {
+            this.coordinate = coordinate;
+            return this;
+        }
+
+        public Builder sizeSketch(SizeSketch sizeSketch) {
+            this.sizeSketch = sizeSketch;
+            return this;
+        }
+
+        public Builder deadObservers(Map<Integer, Set<Integer>> deadObservers) {
+            this.deadObservers.clear();
+            this.deadObservers.putAll(deadObservers);
+            return this;
+        }
+
+        /**
+         * Adds the ids of the nodes that declared a piggybacked dead node dead.
+         */
+        public Builder deadObservers(int id, Set<Integer> observers) {
+            deadObservers.put(id, observers);
+            return this;
+        }
+
+        public Builder metadata(Map<Integer, MetadataDelta> metadataDeltas, int metadataVersion) {
+            this.metadataDeltas.clear();
+            this.metadataDeltas.putAll(metadataDeltas);
+            this.metadataVersion = metadataVersion;
+            return this;
+        }
+
+        /**
+         * Adds a piggybacked metadata change of another node.
+         */
+        public Builder metadataDelta(int id, MetadataDelta delta) {
+            metadataDeltas.put(id, delta);
+            return this;
+        }
+
+        public Builder metadataVersion(int metadataVersion) {
+            this.metadataVersion = metadataVersion;
+            return this;
+        }
+
+        public Pong build() {
+            return new Pong(this);
+        }
+
+        /**
+         * Clears the builder so it can build the next pong, keeping the entry arrays and maps it has grown.
+         */
+        public Builder reset() {
+            Arrays.fill(addresses, 0, size, null);
+            size = 0;
+            pingNr = 0;
+            incarnationCounter = 0;
+            coordinate = VivaldiCoordinate.origin();
+            sizeSketch = SizeSketch.EMPTY;
+            deadObservers.clear();
+            metadataDeltas.clear();
+            metadataVersion = 0;
+            return this;
+        }
     }
 }
-
@@ -0,0 +1,31 @@
+package se.kth.swim.msg;
+
+/**
+ * The smallest node id hashes known by a node, piggybacked on pongs for estimating the cluster size.
+ * Each hash comes with its age, the time in milliseconds since the node was last seen alive.
+ * Ages instead of timestamps keep the sketch independent of the clocks of the nodes.
+ */
+public class SizeSketch {
+
+    public static final SizeSketch EMPTY = new SizeSketch(new long[0], new int[0]);
+
+    private final long[] hashes;
+    private final int[] ages;
+
+    public SizeSketch(long[] hashes, int[] ages) {
+        this.hashes = hashes;
+        this.ages = ages;
+    }
+
+    public int size() {
+        return hashes.length;
+    }
+
+    public long getHash(int index) {
+        return hashes[index];
+    }
+
+    public int getAge(int index) {
+        return ages[index];
+    }
+}
@@ -19,71 +19,90 @@
 
 package se.kth.swim.msg;
 
-import se.sics.p2ptoolbox.util.network.NatedAddress;
-
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
  * @author Alex Ormenisan <aaor@sics.se>
+ * Immutable, so it can be shared between messages and components without copying. Create it with a Builder.
+ * Nodes are keyed by id with their incarnation counters, the aggregator has no use for their addresses.
  */
 public class Status {
-    public int statusNr, receivedPings, sentPings;
-    private Map<NatedAddress, Integer> aliveNodes, suspectedNodes, deadNodes;
-
-    public Status(int statusNr, int receivedPings, int sentPings, Map<NatedAddress, Integer> aliveNodes, Map<NatedAddress, Integer> suspectedNodes, Map<NatedAddress, Integer> deadNodes) {
-        this.statusNr = statusNr;
-        this.receivedPings = receivedPings;
-        this.sentPings = sentPings;
-        this.aliveNodes = aliveNodes;
-        this.suspectedNodes = suspectedNodes;
-        this.deadNodes = deadNodes;
+    private final int statusNr, receivedPings, sentPings;
+    private final Map<Integer, Integer> aliveNodes, suspectedNodes, deadNodes;
+
+    private Status(Builder builder) {
+        this.statusNr = builder.statusNr;
+        this.receivedPings = builder.receivedPings;
+        this.sentPings = builder.sentPings;
+        this.aliveNodes = Collections.unmodifiableMap(new LinkedHashMap<>(builder.aliveNodes));
+        this.suspectedNodes = Collections.unmodifiableMap(new LinkedHashMap<>(builder.suspectedNodes));
+        this.deadNodes = Collections.unmodifiableMap(new LinkedHashMap<>(builder.deadNodes));
     }
 
     public int getStatusNr() {
         return statusNr;
     }
 
-    public void setStatusNr(int statusNr) {
-        this.statusNr = statusNr;
-    }
-
     public int getReceivedPings() {
         return receivedPings;
     }
 
-    public void setReceivedPings(int receivedPings) {
-        this.receivedPings = receivedPings;
-    }
-
     public int getSentPings() {
         return sentPings;
     }
 
-    public void setSentPings(int sentPings) {
-        this.sentPings = sentPings;
-    }
-
-    public Map<NatedAddress, Integer> getAliveNodes() {
+    public Map<Integer, Integer> getAliveNodes() {
         return aliveNodes;
     }
 
-    public void setAliveNodes(Map<NatedAddress, Integer> aliveNodes) {
-        this.aliveNodes = aliveNodes;
-    }
-
-    public Map<NatedAddress, Integer> getSuspectedNodes() {
+    public Map<Integer, Integer> getSuspectedNodes() {
         return suspectedNodes;
     }
 
-    public void setSuspectedNodes(Map<NatedAddress, Integer> suspectedNodes) {
-        this.suspectedNodes = suspectedNodes;
-    }
-
-    public Map<NatedAddress, Integer> getDeadNodes() {
+    public Map<Integer, Integer> getDeadNodes() {
         return deadNodes;
     }
 
-    public void setDeadNodes(Map<NatedAddress, Integer> deadNodes) {
-        this.deadNodes = deadNodes;
+    /**
+     * Collects the fields of a status. The maps are copied when the status is built, so the builder can be reused.
+     */
+    public static class Builder {
+        private int statusNr, receivedPings, sentPings;
+        private Map<Integer, Integer> aliveNodes = new HashMap<>();
+        private Map<Integer, Integer> suspectedNodes = new HashMap<>();
+        private Map<Integer, Integer> deadNodes = new HashMap<>();
+
+        public Builder statusNr(int statusNr) {
+            this.statusNr = statusNr;
+            return this;
+        }
+
+        public Builder pings(int receivedPings, int sentPings) {
+            this.receivedPings = receivedPings;
+            this.sentPings = sentPings;
+            return this;
+        }
+
+        public Builder aliveNodes(Map<Integer, Integer> aliveNodes) {
+            this.aliveNodes = aliveNodes;
+            return this;
+        }
+
+        public Builder suspectedNodes(Map<Integer, Integer> suspectedNodes) {
+            this.suspectedNodes = suspectedNodes;
+            return this;
+        }
+
+        public Builder deadNodes(Map<Integer, Integer> deadNodes) {
+            this.deadNodes = deadNodes;
+            return this;
+        }
+
+        public Status build() {
+            return new Status(this);
+        }
     }
 }
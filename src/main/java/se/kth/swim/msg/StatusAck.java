@@ -0,0 +1,16 @@
+package se.kth.swim.msg;
+
+/**
+ * Sent by the aggregator when it has stored a status, so the node can send later statuses as deltas to it.
+ */
+public class StatusAck {
+    int statusNr;
+
+    public StatusAck(int statusNr) {
+        this.statusNr = statusNr;
+    }
+
+    public int getStatusNr() {
+        return statusNr;
+    }
+}
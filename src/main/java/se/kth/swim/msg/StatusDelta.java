@@ -0,0 +1,144 @@
+package se.kth.swim.msg;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Status holding only the changes since a status the aggregator has acknowledged.
+ * The aggregator rebuilds the full status by applying the delta to the acknowledged one.
+ * Immutable like Status, the collections are copied when it is created.
+ */
+public class StatusDelta {
+
+    private final int statusNr, baseStatusNr, receivedPings, sentPings;
+
+    //Nodes that were added or got a new incarnation counter, per list.
+    private final Map<Integer, Integer> changedAliveNodes, changedSuspectedNodes, changedDeadNodes;
+
+    //Nodes that were removed, per list.
+    private final Set<Integer> removedAliveNodes, removedSuspectedNodes, removedDeadNodes;
+
+    public StatusDelta(int statusNr, int baseStatusNr, int receivedPings, int sentPings,
+                       Map<Integer, Integer> changedAliveNodes, Map<Integer, Integer> changedSuspectedNodes, Map<Integer, Integer> changedDeadNodes,
+                       Set<Integer> removedAliveNodes, Set<Integer> removedSuspectedNodes, Set<Integer> removedDeadNodes) {
+        this.statusNr = statusNr;
+        this.baseStatusNr = baseStatusNr;
+        this.receivedPings = receivedPings;
+        this.sentPings = sentPings;
+        this.changedAliveNodes = Collections.unmodifiableMap(new LinkedHashMap<>(changedAliveNodes));
+        this.changedSuspectedNodes = Collections.unmodifiableMap(new LinkedHashMap<>(changedSuspectedNodes));
+        this.changedDeadNodes = Collections.unmodifiableMap(new LinkedHashMap<>(changedDeadNodes));
+        this.removedAliveNodes = Collections.unmodifiableSet(new LinkedHashSet<>(removedAliveNodes));
+        this.removedSuspectedNodes = Collections.unmodifiableSet(new LinkedHashSet<>(removedSuspectedNodes));
+        this.removedDeadNodes = Collections.unmodifiableSet(new LinkedHashSet<>(removedDeadNodes));
+    }
+
+    /**
+     * Creates the delta that turns the base status into the current status.
+     */
+    public static StatusDelta between(Status base, Status current) {
+        Map<Integer, Integer> changedAliveNodes = new HashMap<>(), changedSuspectedNodes = new HashMap<>(), changedDeadNodes = new HashMap<>();
+        Set<Integer> removedAliveNodes = new HashSet<>(), removedSuspectedNodes = new HashSet<>(), removedDeadNodes = new HashSet<>();
+
+        diff(base.getAliveNodes(), current.getAliveNodes(), changedAliveNodes, removedAliveNodes);
+        diff(base.getSuspectedNodes(), current.getSuspectedNodes(), changedSuspectedNodes, removedSuspectedNodes);
+        diff(base.getDeadNodes(), current.getDeadNodes(), changedDeadNodes, removedDeadNodes);
+
+        return new StatusDelta(current.getStatusNr(), base.getStatusNr(), current.getReceivedPings(), current.getSentPings(),
+                changedAliveNodes, changedSuspectedNodes, changedDeadNodes, removedAliveNodes, removedSuspectedNodes, removedDeadNodes);
+    }
+
+    /**
+     * Rebuilds the full status from the status this delta was based on.
+     */
+    public Status applyTo(Status base) {
+        return new Status.Builder()
+                .statusNr(statusNr)
+                .pings(receivedPings, sentPings)
+                .aliveNodes(apply(base.getAliveNodes(), changedAliveNodes, removedAliveNodes))
+                .suspectedNodes(apply(base.getSuspectedNodes(), changedSuspectedNodes, removedSuspectedNodes))
+                .deadNodes(apply(base.getDeadNodes(), changedDeadNodes, removedDeadNodes))
+                .build();
+    }
+
+    /**
+     * Returns the number of node entries in the delta, used to decide if it's worth sending instead of a full status.
+     */
+    public int size() {
+        return changedAliveNodes.size() + changedSuspectedNodes.size() + changedDeadNodes.size()
+                + removedAliveNodes.size() + removedSuspectedNodes.size() + removedDeadNodes.size();
+    }
+
+    /**
+     * Helper function. Collects the nodes that are new or have another incarnation counter, and the nodes that are gone.
+     */
+    private static void diff(Map<Integer, Integer> base, Map<Integer, Integer> current, Map<Integer, Integer> changed, Set<Integer> removed) {
+        for (Map.Entry<Integer, Integer> entry : current.entrySet()) {
+            if (!entry.getValue().equals(base.get(entry.getKey()))) {
+                changed.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        for (Integer id : base.keySet()) {
+            if (!current.containsKey(id)) {
+                removed.add(id);
+            }
+        }
+    }
+
+    /**
+     * Helper function. Applies changes and removals to a copy of the base map.
+     */
+    private static Map<Integer, Integer> apply(Map<Integer, Integer> base, Map<Integer, Integer> changed, Set<Integer> removed) {
+        Map<Integer, Integer> result = new HashMap<>(base);
+        result.keySet().removeAll(removed);
+        result.putAll(changed);
+
+        return result;
+    }
+
+    public int getStatusNr() {
+        return statusNr;
+    }
+
+    public int getBaseStatusNr() {
+        return baseStatusNr;
+    }
+
+    public int getReceivedPings() {
+        return receivedPings;
+    }
+
+    public int getSentPings() {
+        return sentPings;
+    }
+
+    public Map<Integer, Integer> getChangedAliveNodes() {
+        return changedAliveNodes;
+    }
+
+    public Map<Integer, Integer> getChangedSuspectedNodes() {
+        return changedSuspectedNodes;
+    }
+
+    public Map<Integer, Integer> getChangedDeadNodes() {
+        return changedDeadNodes;
+    }
+
+    public Set<Integer> getRemovedAliveNodes() {
+        return removedAliveNodes;
+    }
+
+    public Set<Integer> getRemovedSuspectedNodes() {
+        return removedSuspectedNodes;
+    }
+
+    public Set<Integer> getRemovedDeadNodes() {
+        return removedDeadNodes;
+    }
+}
@@ -0,0 +1,67 @@
+package se.kth.swim.msg;
+
+import se.kth.swim.node.IdHash;
+import java.util.Collection;
+
+/**
+ * Fixed size fingerprint of a node's alive list, sent to the aggregator instead of the full status.
+ * Nodes whose alive lists (including themselves) are equal send equal count and hash, regardless of list order.
+ */
+public class StatusDigest {
+
+    private int statusNr, receivedPings, sentPings, aliveCount;
+    private long aliveHash;
+
+    public StatusDigest(int statusNr, int receivedPings, int sentPings, int aliveCount, long aliveHash) {
+        this.statusNr = statusNr;
+        this.receivedPings = receivedPings;
+        this.sentPings = sentPings;
+        this.aliveCount = aliveCount;
+        this.aliveHash = aliveHash;
+    }
+
+    /**
+     * Creates the digest of a set of node ids. The hash is a sum of mixed ids, so the order doesn't matter.
+     */
+    public static StatusDigest of(int statusNr, int receivedPings, int sentPings, Collection<Integer> aliveIds) {
+        long hash = 0;
+        for (int id : aliveIds) {
+            hash += IdHash.mix(id);
+        }
+        return new StatusDigest(statusNr, receivedPings, sentPings, aliveIds.size(), hash);
+    }
+
+    /**
+     * Returns true if the other digest describes the same alive list.
+     */
+    public boolean sameView(StatusDigest other) {
+        return aliveCount == other.aliveCount && aliveHash == other.aliveHash;
+    }
+
+    /**
+     * Key to group digests describing the same alive list.
+     */
+    public long getViewKey() {
+        return aliveHash * 31 + aliveCount;
+    }
+
+    public int getStatusNr() {
+        return statusNr;
+    }
+
+    public int getReceivedPings() {
+        return receivedPings;
+    }
+
+    public int getSentPings() {
+        return sentPings;
+    }
+
+    public int getAliveCount() {
+        return aliveCount;
+    }
+
+    public long getAliveHash() {
+        return aliveHash;
+    }
+}
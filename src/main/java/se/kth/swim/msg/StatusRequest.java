@@ -0,0 +1,16 @@
+package se.kth.swim.msg;
+
+/**
+ * Sent by the aggregator to ask a node for its full status, when its digest differs from the majority.
+ */
+public class StatusRequest {
+    int statusNr;
+
+    public StatusRequest(int statusNr) {
+        this.statusNr = statusNr;
+    }
+
+    public int getStatusNr() {
+        return statusNr;
+    }
+}
@@ -0,0 +1,14 @@
+package se.kth.swim.msg.configport;
+
+import se.sics.kompics.PortType;
+
+/**
+ * Port for changing the SwimConfig of a running node.
+ */
+public class ConfigPort extends PortType {
+    {
+        request(ConfigUpdate.class);
+        request(MetadataUpdate.class);
+        indication(MetadataChanged.class);
+    }
+}
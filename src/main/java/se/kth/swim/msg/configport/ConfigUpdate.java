@@ -0,0 +1,21 @@
+package se.kth.swim.msg.configport;
+
+import se.kth.swim.component.SwimConfig;
+import se.sics.kompics.KompicsEvent;
+
+/**
+ * Replaces the SwimConfig of a running SwimComp.
+ */
+public class ConfigUpdate implements KompicsEvent {
+    SwimConfig config;
+
+    public ConfigUpdate(SwimConfig config) {
+        super();
+        this.config = config;
+    }
+
+    public SwimConfig getConfig() {
+        return config;
+    }
+
+}
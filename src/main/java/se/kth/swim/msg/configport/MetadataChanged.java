@@ -0,0 +1,27 @@
+package se.kth.swim.msg.configport;
+
+import se.kth.swim.msg.MemberMetadata;
+import se.sics.kompics.KompicsEvent;
+import se.sics.p2ptoolbox.util.network.NatedAddress;
+
+/**
+ * Indicates that we learned a new version of the metadata of another member.
+ */
+public class MetadataChanged implements KompicsEvent {
+    NatedAddress address;
+    MemberMetadata metadata;
+
+    public MetadataChanged(NatedAddress address, MemberMetadata metadata) {
+        this.address = address;
+        this.metadata = metadata;
+    }
+
+    public NatedAddress getAddress() {
+        return address;
+    }
+
+    public MemberMetadata getMetadata() {
+        return metadata;
+    }
+
+}
@@ -0,0 +1,21 @@
+package se.kth.swim.msg.configport;
+
+import se.sics.kompics.KompicsEvent;
+
+import java.util.Map;
+
+/**
+ * Replaces the metadata tags the node advertises about itself.
+ */
+public class MetadataUpdate implements KompicsEvent {
+    Map<String, String> tags;
+
+    public MetadataUpdate(Map<String, String> tags) {
+        this.tags = tags;
+    }
+
+    public Map<String, String> getTags() {
+        return tags;
+    }
+
+}
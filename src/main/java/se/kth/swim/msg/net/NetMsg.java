@@ -37,5 +37,8 @@ public abstract class NetMsg<C extends Object> extends BasicContentMsg<NatedAddr
         super(header, content);
     }
 
+    /**
+     * Returns the message with a new header. Contents are immutable, so the copy shares the content.
+     */
     public abstract NetMsg copyMessage(Header<NatedAddress> newHeader);
 }
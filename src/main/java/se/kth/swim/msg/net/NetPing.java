@@ -19,6 +19,7 @@
 package se.kth.swim.msg.net;
 
 import se.kth.swim.msg.Ping;
+import se.kth.swim.node.VivaldiCoordinate;
 import se.sics.kompics.network.Header;
 import se.sics.p2ptoolbox.util.network.NatedAddress;
 
@@ -27,8 +28,8 @@ import se.sics.p2ptoolbox.util.network.NatedAddress;
  */
 public class NetPing extends NetMsg<Ping> {
 
-    public NetPing(NatedAddress src, NatedAddress dst, int pingNr, int incarnationCounter) {
-        super(src, dst, new Ping(pingNr, incarnationCounter));
+    public NetPing(NatedAddress src, NatedAddress dst, int pingNr, int incarnationCounter, VivaldiCoordinate coordinate, int suspectedIncarnation) {
+        super(src, dst, new Ping(pingNr, incarnationCounter, coordinate, suspectedIncarnation));
     }
 
     private NetPing(Header<NatedAddress> header, Ping content) {
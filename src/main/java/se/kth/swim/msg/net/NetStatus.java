@@ -28,17 +28,29 @@ import se.sics.p2ptoolbox.util.network.NatedAddress;
  */
 public class NetStatus extends NetMsg<Status> {
 
+    private final boolean ackRequested; //Delta checkpoints and requested digest rounds are acknowledged by the aggregator.
+
     public NetStatus(NatedAddress src, NatedAddress dst, Status status) {
+        this(src, dst, status, false);
+    }
+
+    public NetStatus(NatedAddress src, NatedAddress dst, Status status, boolean ackRequested) {
         super(src, dst, status);
+        this.ackRequested = ackRequested;
     }
 
-    private NetStatus(Header<NatedAddress> header, Status content) {
+    private NetStatus(Header<NatedAddress> header, Status content, boolean ackRequested) {
         super(header, content);
+        this.ackRequested = ackRequested;
     }
 
     @Override
     public NetMsg copyMessage(Header<NatedAddress> newHeader) {
-        return new NetStatus(newHeader, getContent());
+        return new NetStatus(newHeader, getContent(), ackRequested);
+    }
+
+    public boolean isAckRequested() {
+        return ackRequested;
     }
 
 }
@@ -0,0 +1,20 @@
+package se.kth.swim.msg.parentport;
+
+import se.kth.swim.node.VivaldiCoordinate;
+import se.sics.kompics.KompicsEvent;
+
+/**
+ * Sent by SwimComp when its network coordinate has moved, so parents can be picked close to us.
+ */
+public class CoordinateUpdate implements KompicsEvent {
+    VivaldiCoordinate coordinate;
+
+    public CoordinateUpdate(VivaldiCoordinate coordinate) {
+        this.coordinate = coordinate;
+    }
+
+    public VivaldiCoordinate getCoordinate() {
+        return coordinate;
+    }
+
+}
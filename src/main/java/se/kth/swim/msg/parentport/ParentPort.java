@@ -8,5 +8,6 @@ import se.sics.kompics.PortType;
 public class ParentPort extends PortType {
     {
         indication(NewParentAlert.class);
+        request(CoordinateUpdate.class);
     }
 }
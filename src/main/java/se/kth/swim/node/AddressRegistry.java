@@ -0,0 +1,89 @@
+package se.kth.swim.node;
+
+import se.sics.p2ptoolbox.util.network.NatedAddress;
+import se.sics.p2ptoolbox.util.network.impl.BasicAddress;
+import se.sics.p2ptoolbox.util.network.impl.BasicNatedAddress;
+
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * JVM-wide registry of canonical addresses, one per node id.
+ * In a simulation every node holds addresses of every other node, interning them makes all nodes share one instance
+ * (with one parents set) per node instead of a copy per holder.
+ * Only the node itself knows its current parents, so only its own address replaces the canonical one, see publish.
+ * Addresses learned from others may be stale and never replace it, holders of an old version keep a valid but
+ * stale address until they learn about the new parents, as before.
+ */
+public class AddressRegistry {
+
+    private static final ConcurrentHashMap<Integer, NatedAddress> addresses = new ConcurrentHashMap<>();
+
+    private AddressRegistry() {
+    }
+
+    /**
+     * Returns the canonical instance if it has the same ip, port, NAT type and parents as the address, or null. Allocates nothing.
+     */
+    public static NatedAddress lookup(NatedAddress address) {
+        NatedAddress canonical = addresses.get(address.getId());
+        return canonical != null && sameAddress(canonical, address) ? canonical : null;
+    }
+
+    /**
+     * Returns the canonical address of the node with the given id, or null if no address of it was seen.
+     */
+    public static NatedAddress get(int id) {
+        return addresses.get(id);
+    }
+
+    /**
+     * Returns the canonical instance of an address learned from another node.
+     * The address becomes canonical if the node has none yet, but never replaces a different canonical address.
+     */
+    public static NatedAddress intern(NatedAddress address) {
+        NatedAddress canonical = addresses.putIfAbsent(address.getId(), address);
+        if (canonical != null && sameAddress(canonical, address)) {
+            return canonical;
+        }
+        return address;
+    }
+
+    /**
+     * Makes the address of a node the canonical one, replacing an older version. Called by the node itself when its parents
+     * change, or with the source address of a received message, which the sender fills in with its own address.
+     * The address must not change afterwards, see snapshot.
+     */
+    public static NatedAddress publish(NatedAddress address) {
+        NatedAddress canonical = lookup(address);
+        if (canonical != null) {
+            return canonical;
+        }
+
+        addresses.put(address.getId(), address);
+        return address;
+    }
+
+    /**
+     * Returns a copy of the address that doesn't change with the parents of the original.
+     */
+    public static NatedAddress snapshot(NatedAddress address) {
+        return new BasicNatedAddress(new BasicAddress(address.getIp(), address.getPort(), address.getId()), address.getNatType(), new HashSet<NatedAddress>(address.getParents()));
+    }
+
+    /**
+     * Returns the number of interned addresses.
+     */
+    public static int size() {
+        return addresses.size();
+    }
+
+    /**
+     * Helper function. Compares the parts of the addresses that matter for reaching the node.
+     */
+    private static boolean sameAddress(NatedAddress a, NatedAddress b) {
+        return a.getBaseAdr().equals(b.getBaseAdr())
+                && a.getNatType() == b.getNatType()
+                && a.getParents().equals(b.getParents());
+    }
+}
@@ -0,0 +1,142 @@
+package se.kth.swim.node;
+
+import se.sics.p2ptoolbox.util.network.NatedAddress;
+
+import java.util.*;
+
+/**
+ * Batches dead reports into multi-node view changes, as in Rapid.
+ * A report about a node is counted once per observer, a node that declared it dead after its own probes failed.
+ * A node is stable when at least high observers reported it, and unstable between low and high.
+ * A cut of all stable nodes is only taken when no node is unstable, so nodes failing together leave the view together.
+ * An unstable node that stays unstable for maxWait milliseconds is counted as stable, so a lost report can't block the view.
+ */
+public class CutDetector {
+
+    private int high, low;
+    private long maxWait;
+
+    private Map<Integer, Report> reports; //Keyed by node id.
+
+    //Number of the current view, incremented for every cut.
+    private int viewNumber;
+
+    public CutDetector(int high, int low, long maxWait) {
+        this.high = high;
+        this.low = low;
+        this.maxWait = maxWait;
+        this.reports = new HashMap<>();
+    }
+
+    public void setThresholds(int high, int low, long maxWait) {
+        this.high = high;
+        this.low = low;
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * Adds observers of a dead node. Returns true if we learned about a new observer, meaning the report should be gossiped further.
+     */
+    public boolean report(NatedAddress address, int incarnationCounter, Collection<Integer> observers, long now) {
+        Report report = reports.get(address.getId());
+
+        if (report == null || Incarnation.compare(report.incarnationCounter, incarnationCounter) < 0) {
+            report = new Report(address, incarnationCounter, now);
+            reports.put(address.getId(), report);
+        }
+        else if (Incarnation.compare(report.incarnationCounter, incarnationCounter) > 0) {
+            return false; //About an older incarnation, which is already refuted.
+        }
+
+        boolean changed = false;
+        for (int observer : observers) {
+            if (report.observers.size() >= high) {
+                break; //More observers don't change anything.
+            }
+            changed |= report.observers.add(observer);
+        }
+
+        return changed;
+    }
+
+    /**
+     * Returns the observers we know of for the node, or an empty set.
+     */
+    public Set<Integer> getObservers(int id) {
+        Report report = reports.get(id);
+        return report == null ? Collections.<Integer>emptySet() : report.observers;
+    }
+
+    /**
+     * Drops the reports about a node, used when it has shown it is alive.
+     */
+    public void clear(int id) {
+        reports.remove(id);
+    }
+
+    /**
+     * Returns the next cut, or an empty list if there is no stable node or some node is still unstable.
+     * Reports below the low watermark that got too old are dropped.
+     */
+    public List<Report> takeCut(long now) {
+        List<Report> stable = new ArrayList<>();
+        boolean blocked = false;
+
+        Iterator<Report> iterator = reports.values().iterator();
+        while (iterator.hasNext()) {
+            Report report = iterator.next();
+            boolean expired = now - report.firstReport > maxWait;
+            int count = report.observers.size();
+
+            if (count >= high || (count >= low && expired)) {
+                stable.add(report);
+            }
+            else if (count >= low) {
+                blocked = true;
+            }
+            else if (expired) {
+                iterator.remove();
+            }
+        }
+
+        if (blocked || stable.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        for (Report report : stable) {
+            reports.remove(report.address.getId());
+        }
+        viewNumber++;
+
+        return stable;
+    }
+
+    public int getViewNumber() {
+        return viewNumber;
+    }
+
+    /**
+     * Observers reporting one node as dead.
+     */
+    public static class Report {
+        private final NatedAddress address;
+        private final int incarnationCounter;
+        private final long firstReport;
+        private final Set<Integer> observers;
+
+        private Report(NatedAddress address, int incarnationCounter, long firstReport) {
+            this.address = address;
+            this.incarnationCounter = incarnationCounter;
+            this.firstReport = firstReport;
+            this.observers = new HashSet<>();
+        }
+
+        public NatedAddress getAddress() {
+            return address;
+        }
+
+        public int getIncarnationCounter() {
+            return incarnationCounter;
+        }
+    }
+}
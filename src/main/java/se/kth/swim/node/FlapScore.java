@@ -0,0 +1,33 @@
+package se.kth.swim.node;
+
+/**
+ * Counts how often a node was suspected and then turned out to be alive.
+ * The score decays exponentially, halving every halfLife milliseconds, so a node that stops flapping is trusted again.
+ */
+public class FlapScore {
+
+    private final long halfLife;
+
+    private double score;
+    private long lastUpdate;
+
+    public FlapScore(long halfLife, long now) {
+        this.halfLife = halfLife;
+        this.lastUpdate = now;
+    }
+
+    /**
+     * Records one flap, a suspicion that was refuted.
+     */
+    public void flap(long now) {
+        score = getScore(now) + 1;
+        lastUpdate = now;
+    }
+
+    /**
+     * Returns the score decayed to the given time.
+     */
+    public double getScore(long now) {
+        return score * Math.pow(0.5, (double) (now - lastUpdate) / halfLife);
+    }
+}
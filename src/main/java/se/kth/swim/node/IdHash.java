@@ -0,0 +1,27 @@
+package se.kth.swim.node;
+
+/**
+ * Helper functions for hashing node ids.
+ */
+public class IdHash {
+
+    private IdHash() {
+    }
+
+    /**
+     * Spreads the bits of an id over a long (splitmix64 finalizer), so close ids get unrelated hashes.
+     */
+    public static long mix(long value) {
+        long z = value + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Returns the hash of the id as a uniformly distributed value in [0, 1).
+     */
+    public static double uniform(long hash) {
+        return (hash >>> 11) * 0x1.0p-53;
+    }
+}
@@ -0,0 +1,146 @@
+package se.kth.swim.node;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Helper functions for incarnation counters.
+ * An incarnation counter is split in a restart epoch (high bits) and a counter (low bits).
+ * Every run of a node gets an epoch strictly after the epoch of its previous run, so a restarted node always
+ * has a newer incarnation than anything the cluster remembers about its previous run.
+ * Epochs wrap around, so they are compared with serial number arithmetic (RFC 1982): an epoch is newer than
+ * the epochs up to half the epoch space before it, about four and a half hours. NodeHandler drops tombstones long before that.
+ */
+public class Incarnation {
+
+    public static final int UNKNOWN = -1; //Incarnation of a node we know nothing about, older than any incarnation.
+
+    private static final Logger log = LoggerFactory.getLogger(Incarnation.class);
+
+    private static final int COUNTER_BITS = 16;
+    private static final int COUNTER_MASK = (1 << COUNTER_BITS) - 1;
+    private static final int EPOCH_BITS = 15; //15 bits, so the incarnation counter never becomes negative.
+    private static final int EPOCH_MASK = (1 << EPOCH_BITS) - 1;
+    private static final int EPOCH_HALF = 1 << (EPOCH_BITS - 1);
+
+    //Last epoch handed out per node id, for the lifetime of the JVM. Also kept in a file per node if a directory is set.
+    private static final Map<Integer, Integer> lastEpochs = new HashMap<>();
+    private static File epochDirectory;
+
+    private Incarnation() {
+    }
+
+    /**
+     * Keeps the last epoch of every node in this directory, so a node restarted in a new process still gets a newer epoch.
+     */
+    public static synchronized void setEpochDirectory(File directory) {
+        epochDirectory = directory;
+    }
+
+    /**
+     * Returns the first incarnation counter of a new run of the node.
+     * The epoch is the start time in seconds, or the epoch after the last run if that is not newer, e.g. after a restart within the same second.
+     */
+    public static synchronized int initial(int nodeId) {
+        int epoch = (int) (System.currentTimeMillis() / 1000) & EPOCH_MASK;
+
+        Integer lastEpoch = loadEpoch(nodeId);
+        if (lastEpoch != null && !isNewerEpochNumber(epoch, lastEpoch)) {
+            epoch = (lastEpoch + 1) & EPOCH_MASK;
+        }
+        storeEpoch(nodeId, epoch);
+
+        return epoch << COUNTER_BITS;
+    }
+
+    /**
+     * Returns the next incarnation counter in the same epoch.
+     * The counter stops at its maximum instead of carrying into the epoch, which would look like a restart.
+     */
+    public static int increment(int incarnationCounter) {
+        if (getCounter(incarnationCounter) == COUNTER_MASK) {
+            return incarnationCounter;
+        }
+        return incarnationCounter + 1;
+    }
+
+    public static int getEpoch(int incarnationCounter) {
+        return (incarnationCounter >>> COUNTER_BITS) & EPOCH_MASK;
+    }
+
+    public static int getCounter(int incarnationCounter) {
+        return incarnationCounter & COUNTER_MASK;
+    }
+
+    /**
+     * Returns the incarnation counter with the given epoch and counter, the reverse of getEpoch and getCounter.
+     */
+    public static int of(int epoch, int counter) {
+        return ((epoch & EPOCH_MASK) << COUNTER_BITS) | (counter & COUNTER_MASK);
+    }
+
+    /**
+     * Compares two incarnation counters of one node, by epoch and then by counter. UNKNOWN is older than any counter.
+     */
+    public static int compare(int incarnationCounter, int otherIncarnationCounter) {
+        if (incarnationCounter < 0 || otherIncarnationCounter < 0 || getEpoch(incarnationCounter) == getEpoch(otherIncarnationCounter)) {
+            return Integer.compare(incarnationCounter, otherIncarnationCounter);
+        }
+        return isNewerEpoch(incarnationCounter, otherIncarnationCounter) ? 1 : -1;
+    }
+
+    /**
+     * Returns true if the first incarnation counter belongs to a later run of the node than the second.
+     */
+    public static boolean isNewerEpoch(int incarnationCounter, int otherIncarnationCounter) {
+        if (incarnationCounter < 0 || otherIncarnationCounter < 0) {
+            return false;
+        }
+        return isNewerEpochNumber(getEpoch(incarnationCounter), getEpoch(otherIncarnationCounter));
+    }
+
+    private static boolean isNewerEpochNumber(int epoch, int otherEpoch) {
+        int distance = (epoch - otherEpoch) & EPOCH_MASK;
+        return distance != 0 && distance < EPOCH_HALF;
+    }
+
+    private static Integer loadEpoch(int nodeId) {
+        Integer epoch = lastEpochs.get(nodeId);
+        if (epoch != null || epochDirectory == null) {
+            return epoch;
+        }
+
+        File file = new File(epochDirectory, nodeId + ".epoch");
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            return Integer.parseInt(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim());
+        } catch (IOException | NumberFormatException e) {
+            log.warn("{} can't read the last restart epoch from {}, a restart within the same second may look older: {}", new Object[]{nodeId, file, e.getMessage()});
+            return null;
+        }
+    }
+
+    private static void storeEpoch(int nodeId, int epoch) {
+        lastEpochs.put(nodeId, epoch);
+        if (epochDirectory == null) {
+            return;
+        }
+
+        File file = new File(epochDirectory, nodeId + ".epoch");
+        try {
+            Files.createDirectories(epochDirectory.toPath());
+            Files.write(file.toPath(), Integer.toString(epoch).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            log.warn("{} can't write the restart epoch to {}, it will not survive a restart of the process: {}", new Object[]{nodeId, file, e.getMessage()});
+        }
+    }
+}
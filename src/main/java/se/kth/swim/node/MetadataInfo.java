@@ -0,0 +1,36 @@
+package se.kth.swim.node;
+
+import se.kth.swim.msg.MetadataDelta;
+import se.sics.p2ptoolbox.util.network.NatedAddress;
+
+/**
+ * A metadata delta waiting in the metadata send buffer, with the number of times it has been piggybacked.
+ */
+public class MetadataInfo {
+
+    private NatedAddress address;
+    private MetadataDelta delta;
+    private int sendCounter;
+
+    public MetadataInfo(NatedAddress address, MetadataDelta delta) {
+        this.address = address;
+        this.delta = delta;
+        this.sendCounter = 0;
+    }
+
+    public NatedAddress getAddress() {
+        return address;
+    }
+
+    public MetadataDelta getDelta() {
+        return delta;
+    }
+
+    public int getSendCounter() {
+        return sendCounter;
+    }
+
+    public void setSendCounter(int sendCounter) {
+        this.sendCounter = sendCounter;
+    }
+}
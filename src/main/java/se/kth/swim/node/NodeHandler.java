@@ -1,50 +1,149 @@
 package se.kth.swim.node;
 
 import se.kth.swim.component.SwimComp;
+import se.kth.swim.component.SwimConfig;
+import se.kth.swim.msg.MemberMetadata;
+import se.kth.swim.msg.MetadataDelta;
+import se.kth.swim.msg.Ping;
 import se.kth.swim.msg.Pong;
-import se.sics.kompics.network.Address;
+import se.kth.swim.msg.SizeSketch;
 import se.sics.p2ptoolbox.util.network.NatedAddress;
-import se.sics.p2ptoolbox.util.network.impl.BasicAddress;
-import se.sics.p2ptoolbox.util.network.impl.BasicNatedAddress;
 
-import java.net.InetAddress;
-import java.net.UnknownHostException;
 import java.util.*;
 
 
 public class NodeHandler {
 
+    private static final boolean ENABLE_LOGGING = false;
+    private static final double MAX_COORDINATE_ERROR = 0.5; //Coordinates with a higher error estimate are not used to predict round trip times.
+    private static final int MIN_PROBE_TIMEOUT = 500;        //Lowest pong timeout, in milliseconds.
+    private static final int PROBE_TIMEOUT_FACTOR = 4;       //Pong timeout as a multiple of the expected round trip time.
+    private static final int MIN_ROUND_TRIP_SAMPLES = 3;     //Measured round trip times to a node before its pong timeout is shortened.
+    private static final int SIZE_SKETCH_MAX_AGE = 10;       //Protocol periods a node stays in the size estimate after it was last seen alive.
+    private static final int SCALE_REFERENCE_SIZE = 100;     //Cluster size the configured suspicion timeout is meant for.
+    private static final double FLAKY_SCORE = 2.0;           //Flap score at which a node is treated as flaky.
+    private static final int FLAP_HALF_LIFE = 30;            //Protocol periods for a flap score to halve.
+    private static final int FLAKY_SUSPICION_INTERVAL = 5;   //Min protocol periods between gossiped suspicions of a flaky node.
+    private static final long MAX_TOMBSTONE_AGE = 60 * 60 * 1000; //Tombstones are dropped after an hour, well before restart epochs wrap around, see Incarnation.
+
+    //Order of the send buffer when building a pong: leaves first, then the entries sent the least times.
+    private static final Comparator<NodeInfo> SEND_ORDER = new Comparator<NodeInfo>() {
+        @Override
+        public int compare(NodeInfo o1, NodeInfo o2) {
+            if (o1.isLeft() != o2.isLeft()) {
+                return o1.isLeft() ? -1 : 1;
+            }
+            return Integer.compare(o1.getSendCounter(), o2.getSendCounter());
+        }
+    };
+
+    private static final Comparator<MetadataInfo> METADATA_SEND_ORDER = new Comparator<MetadataInfo>() {
+        @Override
+        public int compare(MetadataInfo o1, MetadataInfo o2) {
+            return Integer.compare(o1.getSendCounter(), o2.getSendCounter());
+        }
+    };
+
     private NatedAddress selfAddress;
 
+    private SwimConfig config;
+
     private Random rand;
 
-    //Maps containing our nodes. Key is address, value is incarnation counter.
-    private Map<Address, Integer> aliveNodes, suspectedNodes, deadNodes;
+    //Maps containing our nodes. Key is node id, value is incarnation counter.
+    //Every map and list below is keyed by node id, addresses are only looked up when a message is sent.
+    private Map<Integer, Integer> aliveNodes, suspectedNodes, deadNodes;
+    private Map<Integer, Long> tombstoneTimes; //When each node was put in the dead list.
 
-    //Keeps the mapping between Address and NatedAddress.
+    //Keeps the mapping between node id and the latest NatedAddress of the node.
     //Because NatedAddress hashcode changes when parents change we couldnt use it as a key to the previous map.
-    private Map<Address, NatedAddress> addressMapping;
+    private Map<Integer, NatedAddress> addressMapping;
 
     //Sendbuffer holding the recent node changes that are to be piggybacked.
-    private Map<Address, NodeInfo> sendBuffer;
+    private Map<Integer, NodeInfo> sendBuffer;
 
     //List of nodes to ping. Used for the round robin pinging.
-    private List<Address> pingList;
+    private List<Integer> pingList;
 
     //Current index in list of nodes to ping in round robin.
     private int pingIndex;
 
-    public NodeHandler(NatedAddress selfAddress, long seed) {
+    //Newly suspected nodes, pinged before the round robin continues so they hear about the suspicion quickly.
+    private Set<Integer> buddyProbes;
+
+    //Smoothed round trip time to nodes we have pinged directly, in milliseconds, and how many were measured (capped at MIN_ROUND_TRIP_SAMPLES).
+    private Map<Integer, Long> roundTripTimes;
+    private Map<Integer, Integer> roundTripSamples;
+
+    //Our own network coordinate, and the latest coordinates other nodes sent us.
+    private VivaldiCoordinate coordinate;
+    private Map<Integer, VivaldiCoordinate> coordinates;
+
+    //Estimates the cluster size, for scaling parameters that depend on it. Our lists may not hold every node.
+    private SizeEstimator sizeEstimator;
+
+    //Reused for building every pong, together with the lists the send buffers are sorted in.
+    private Pong.Builder pongBuilder;
+    private List<NodeInfo> sendList;
+    private List<MetadataInfo> metadataList;
+    private List<Integer> retired;
+
+    //Batches dead reports into view changes, when cut detection is enabled.
+    private CutDetector cutDetector;
+
+    //Flap scores of nodes that have been suspected and then refuted.
+    private Map<Integer, FlapScore> flapScores;
+
+    //Suspicions about flaky nodes waiting to be gossiped, and when we last gossiped one about each node.
+    private Map<Integer, NodeInfo> heldSuspicions;
+    private Map<Integer, Long> lastSuspicionGossip;
+
+    //Metadata of the alive nodes and ourself. Deltas are piggybacked from their own send buffer, so they don't compete with membership changes.
+    private Map<Integer, MemberMetadata> metadata;
+    private MemberMetadata selfMetadata;
+    private Map<Integer, MetadataInfo> metadataBuffer;
+    private Map<Integer, Long> metadataRequests; //When we last asked each node for its full metadata.
+
+    public NodeHandler(NatedAddress selfAddress, long seed, SwimConfig config) {
         this.selfAddress = selfAddress;
+        this.config = config;
 
         this.rand = new Random(seed);
 
         aliveNodes = new HashMap<>();
         addressMapping = new HashMap<>();
         suspectedNodes = new HashMap<>();
-        deadNodes = new HashMap<>();
+        deadNodes = new LinkedHashMap<>(); //Insertion order, so the oldest tombstones can be dropped first.
+        tombstoneTimes = new HashMap<>();
         sendBuffer = new HashMap<>();
         pingList = new ArrayList<>();
+        buddyProbes = new LinkedHashSet<>();
+        roundTripTimes = new HashMap<>();
+        roundTripSamples = new HashMap<>();
+        coordinate = VivaldiCoordinate.origin();
+        coordinates = new HashMap<>();
+        sizeEstimator = new SizeEstimator(selfAddress.getId(), SIZE_SKETCH_MAX_AGE * config.protocolPeriod);
+        pongBuilder = new Pong.Builder();
+        sendList = new ArrayList<>();
+        metadataList = new ArrayList<>();
+        retired = new ArrayList<>();
+        cutDetector = new CutDetector(config.cutHighWatermark, config.cutLowWatermark, config.suspectedTimeout + config.deadTimeout);
+        flapScores = new HashMap<>();
+        heldSuspicions = new HashMap<>();
+        lastSuspicionGossip = new HashMap<>();
+        metadata = new HashMap<>();
+        selfMetadata = MemberMetadata.EMPTY;
+        metadataBuffer = new HashMap<>();
+        metadataRequests = new HashMap<>();
+    }
+
+    /**
+     * Replaces the configuration, used when SwimComp is reconfigured at runtime.
+     */
+    public void setConfig(SwimConfig config) {
+        this.config = config;
+        sizeEstimator.setMaxAge(SIZE_SKETCH_MAX_AGE * config.protocolPeriod);
+        cutDetector.setThresholds(config.cutHighWatermark, config.cutLowWatermark, config.suspectedTimeout + config.deadTimeout);
     }
 
     /**
@@ -53,41 +152,48 @@ public class NodeHandler {
      */
     public void addAlive(NatedAddress address, int incarnationCounter) {
         //Never add self to lists.
-        if (address.getBaseAdr().equals(selfAddress.getBaseAdr())) {
+        if (address.getId() == selfAddress.getId()) {
             return;
         }
 
         //If the node already is in the alive list, maybe we want to update it.
-        if (aliveNodes.containsKey(address.getBaseAdr())) {
+        if (aliveNodes.containsKey(address.getId())) {
             //If incarnation counter is lower, this is newer, update info.
-            if (aliveNodes.get(address.getBaseAdr()) < incarnationCounter) {
-                aliveNodes.put(address.getBaseAdr(), incarnationCounter);
-                addressMapping.put(address.getBaseAdr(), address);
+            if (Incarnation.compare(aliveNodes.get(address.getId()), incarnationCounter) < 0) {
+                aliveNodes.put(address.getId(), incarnationCounter);
+                addressMapping.put(address.getId(), address);
+                cutDetector.clear(address.getId());
 
                 //If node reported alive is suspected by us, remove it from suspected list.
-                if (suspectedNodes.containsKey(address.getBaseAdr())) {
-                    suspectedNodes.remove(address.getBaseAdr());
+                if (suspectedNodes.containsKey(address.getId())) {
+                    suspectedNodes.remove(address.getId());
+                    recordFlap(address.getId());
                 }
 
                 //Also update counter in send queue
-                if (sendBuffer.containsKey(address.getBaseAdr())) {
-                    NodeInfo nodeInfo = sendBuffer.get(address.getBaseAdr());
+                if (sendBuffer.containsKey(address.getId())) {
+                    NodeInfo nodeInfo = sendBuffer.get(address.getId());
                     nodeInfo.setIncarnationCounter(incarnationCounter);
                     nodeInfo.setType(NodeInfo.Type.NEW);
-                    sendBuffer.put(address.getBaseAdr(), nodeInfo);
+                    sendBuffer.put(address.getId(), nodeInfo);
                 }
             }
         }
-        //If the node is not already in our alive list, but not declared dead, add it to alive list.
-        else if (!deadNodes.containsKey(address.getBaseAdr())) {
-            aliveNodes.put(address.getBaseAdr(), incarnationCounter);
-            addressMapping.put(address.getBaseAdr(), address);
+        //If the node is not already in our alive list, but not declared dead in this epoch, add it to alive list.
+        else if (!isDeadInEpoch(address, incarnationCounter)) {
+            removeDeadNode(address.getId()); //A tombstone of a previous run of the node.
+            addressMapping.put(address.getId(), address);
 
             //Also add it to send buffer because it is a new node.
-            sendBuffer.put(address.getBaseAdr(), new NodeInfo(address, incarnationCounter, NodeInfo.Type.NEW));
+            sendBuffer.put(address.getId(), new NodeInfo(address, incarnationCounter, NodeInfo.Type.NEW));
 
-            //And add it to the round robin ping list.
-            addToPingList(address);
+            //In partial view mode a full view only passes the news on, without tracking the node.
+            if (hasRoomInView()) {
+                aliveNodes.put(address.getId(), incarnationCounter);
+
+                //And add it to the round robin ping list.
+                addToPingList(address);
+            }
         }
     }
 
@@ -96,50 +202,338 @@ public class NodeHandler {
      */
     public void addDefinatelyAlive(NatedAddress address, int incarnationCounter) {
         //Never add self to lists.
-        if (address.getBaseAdr().equals(selfAddress.getBaseAdr())) {
+        if (address.getId() == selfAddress.getId()) {
             return;
         }
 
+        sizeEstimator.refresh(address.getId(), System.currentTimeMillis());
+
+        //We heard from the node itself, any dead reports about it are wrong.
+        cutDetector.clear(address.getId());
+
         //If the node already is in the alive list, maybe we want to update it.
-        if (aliveNodes.containsKey(address.getBaseAdr())) {
+        if (aliveNodes.containsKey(address.getId())) {
             //If incarnation counter is lower, this is newer, update info.
-            if (aliveNodes.get(address.getBaseAdr()) <= incarnationCounter) {
-                aliveNodes.put(address.getBaseAdr(), incarnationCounter);
-                addressMapping.put(address.getBaseAdr(), address);
+            if (Incarnation.compare(aliveNodes.get(address.getId()), incarnationCounter) <= 0) {
+                aliveNodes.put(address.getId(), incarnationCounter);
+                addressMapping.put(address.getId(), address);
 
                 //If node reported alive is suspected by us, remove it from suspected list.
-                if (suspectedNodes.containsKey(address.getBaseAdr())) {
-                    suspectedNodes.remove(address.getBaseAdr());
+                if (suspectedNodes.containsKey(address.getId())) {
+                    suspectedNodes.remove(address.getId());
+                    recordFlap(address.getId());
                 }
 
                 //Also update counter in send queue
-                if (sendBuffer.containsKey(address.getBaseAdr())) {
-                    NodeInfo nodeInfo = sendBuffer.get(address.getBaseAdr());
+                if (sendBuffer.containsKey(address.getId())) {
+                    NodeInfo nodeInfo = sendBuffer.get(address.getId());
                     nodeInfo.setIncarnationCounter(incarnationCounter);
                     nodeInfo.setType(NodeInfo.Type.NEW);
-                    sendBuffer.put(address.getBaseAdr(), nodeInfo);
+                    sendBuffer.put(address.getId(), nodeInfo);
                 }
             }
         }
-        //If the node is not already in our alive list, but not declared dead, add it to alive list.
-        else if (!deadNodes.containsKey(address.getBaseAdr())) {
-            aliveNodes.put(address.getBaseAdr(), incarnationCounter);
-            addressMapping.put(address.getBaseAdr(), address);
+        //If the node is not already in our alive list, but not declared dead in this epoch, add it to alive list.
+        else if (!isDeadInEpoch(address, incarnationCounter)) {
+            removeDeadNode(address.getId()); //A tombstone of a previous run of the node.
+
+            //In partial view mode a node in direct contact with us replaces a random one, so the view keeps changing.
+            if (!hasRoomInView()) {
+                evictRandomAliveNode();
+            }
+
+            aliveNodes.put(address.getId(), incarnationCounter);
+            addressMapping.put(address.getId(), address);
 
             //Also add it to send buffer because it is a new node.
-            sendBuffer.put(address.getBaseAdr(), new NodeInfo(address, incarnationCounter, NodeInfo.Type.NEW));
+            sendBuffer.put(address.getId(), new NodeInfo(address, incarnationCounter, NodeInfo.Type.NEW));
 
             //And add it to the round robin ping list.
             addToPingList(address);
         }
     }
 
+    /**
+     * Called for alive nodes in a membership snapshot received when joining.
+     * Unlike addAlive the node is not put in the send buffer, everyone else already knows about it.
+     */
+    public void addAliveFromSnapshot(NatedAddress address, int incarnationCounter) {
+        //Never add self to lists, and never bring back nodes we know are dead.
+        if (address.getId() == selfAddress.getId() || isDeadInEpoch(address, incarnationCounter)) {
+            return;
+        }
+        removeDeadNode(address.getId()); //A tombstone of a previous run of the node.
+
+        if (aliveNodes.containsKey(address.getId())) {
+            if (Incarnation.compare(aliveNodes.get(address.getId()), incarnationCounter) < 0) {
+                aliveNodes.put(address.getId(), incarnationCounter);
+                addressMapping.put(address.getId(), address);
+            }
+        }
+        else if (hasRoomInView()) {
+            aliveNodes.put(address.getId(), incarnationCounter);
+            addressMapping.put(address.getId(), address);
+            addToPingList(address);
+        }
+    }
+
+    /**
+     * Called for dead nodes in a membership snapshot received when joining.
+     * The tombstone is only stored locally, so we don't add the node again from older piggybacked information.
+     */
+    public void addDeadFromSnapshot(NatedAddress address, int incarnationCounter) {
+        //Never add self to lists.
+        if (address.getId() == selfAddress.getId() || deadNodes.containsKey(address.getId())) {
+            return;
+        }
+
+        //The node has restarted since, this is about its previous run.
+        if (isFromOlderEpoch(address, incarnationCounter)) {
+            return;
+        }
+
+        aliveNodes.remove(address.getId());
+        suspectedNodes.remove(address.getId());
+        pingList.remove(Integer.valueOf(address.getId()));
+        roundTripTimes.remove(address.getId());
+        roundTripSamples.remove(address.getId());
+        coordinates.remove(address.getId());
+        forgetMetadata(address.getId());
+        putDeadNode(address.getId(), incarnationCounter);
+        addressMapping.put(address.getId(), address);
+        trimTombstones();
+    }
+
+    /**
+     * Called with nodes from a croupier sample. Every sampled node counts towards the size estimate.
+     * In partial view mode the sample is also how we find nodes to monitor.
+     * Unknown nodes fill the view while there is room. A full view replaces one random node per sample, so it keeps mixing.
+     */
+    public void addFromSample(Collection<NatedAddress> sample) {
+        long now = System.currentTimeMillis();
+        for (NatedAddress address : sample) {
+            //Dead nodes can linger in croupier views, they shouldn't count as alive.
+            if (address.getId() != selfAddress.getId() && !deadNodes.containsKey(address.getId())) {
+                sizeEstimator.refresh(address.getId(), now);
+            }
+        }
+
+        if (!isPartialView()) {
+            return;
+        }
+
+        boolean replaced = false;
+        for (NatedAddress address : sample) {
+            if (address.getId() == selfAddress.getId() || aliveNodes.containsKey(address.getId()) || deadNodes.containsKey(address.getId())) {
+                continue;
+            }
+
+            if (!hasRoomInView()) {
+                if (replaced) {
+                    break;
+                }
+                evictRandomAliveNode();
+                replaced = true;
+            }
+
+            //Incarnation counter is unknown, the first ping or pong will update it.
+            addAliveFromSnapshot(address, Incarnation.UNKNOWN);
+        }
+    }
+
+    /**
+     * Helper function. Returns true if only a subset of the nodes is tracked.
+     */
+    private boolean isPartialView() {
+        return config.partialViewSize > 0;
+    }
+
+    /**
+     * Helper function. Returns true if another node can be added to the alive list.
+     */
+    private boolean hasRoomInView() {
+        return !isPartialView() || aliveNodes.size() < config.partialViewSize;
+    }
+
+    /**
+     * Helper function. Stops tracking a random alive node, preferring ones we don't suspect, to make room in a partial view.
+     * The node is not declared dead, other nodes keep monitoring it.
+     */
+    private void evictRandomAliveNode() {
+        List<Integer> candidates = new ArrayList<>();
+        for (Integer id : aliveNodes.keySet()) {
+            if (!suspectedNodes.containsKey(id)) {
+                candidates.add(id);
+            }
+        }
+        if (candidates.isEmpty()) {
+            candidates.addAll(aliveNodes.keySet());
+        }
+        if (candidates.isEmpty()) {
+            return;
+        }
+
+        Integer id = candidates.get(rand.nextInt(candidates.size()));
+        aliveNodes.remove(id);
+        suspectedNodes.remove(id);
+        pingList.remove(id);
+        roundTripTimes.remove(id);
+        roundTripSamples.remove(id);
+        coordinates.remove(id);
+        forgetMetadata(id);
+        forgetIfUntracked(id);
+    }
+
+    /**
+     * Helper function. In partial view mode, drops the oldest tombstones so they don't grow with the cluster size.
+     * A tombstone younger than the gossip horizon is kept even above the cap, the death may still be circulating
+     * and the node would be taken back as alive from an old pong.
+     */
+    private void trimTombstones() {
+        if (!isPartialView()) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        long gossipHorizon = (long) (config.lambda * Math.max(1, Math.log(Math.max(1, getClusterSizeEstimate()))) * config.protocolPeriod);
+
+        Iterator<Integer> iterator = deadNodes.keySet().iterator();
+        while (deadNodes.size() > config.partialViewSize && iterator.hasNext()) {
+            Integer id = iterator.next();
+            if (now - tombstoneTimes.get(id) < gossipHorizon) {
+                break; //The rest are younger.
+            }
+            iterator.remove();
+            tombstoneTimes.remove(id);
+            forgetIfUntracked(id);
+        }
+    }
+
+    /**
+     * Drops tombstones older than MAX_TOMBSTONE_AGE, and in partial view mode the ones above the cap that passed the gossip horizon.
+     * Called once every protocol period.
+     */
+    public void expireTombstones() {
+        trimTombstones();
+
+        long now = System.currentTimeMillis();
+
+        Iterator<Integer> iterator = deadNodes.keySet().iterator();
+        while (iterator.hasNext()) {
+            Integer id = iterator.next();
+            if (now - tombstoneTimes.get(id) < MAX_TOMBSTONE_AGE) {
+                break; //The rest are younger.
+            }
+            iterator.remove();
+            tombstoneTimes.remove(id);
+            forgetIfUntracked(id);
+        }
+    }
+
+    /**
+     * Helper function. Puts a tombstone last in the dead list, so the list stays ordered by age.
+     */
+    private void putDeadNode(int id, int incarnationCounter) {
+        deadNodes.remove(id);
+        deadNodes.put(id, incarnationCounter);
+        tombstoneTimes.put(id, System.currentTimeMillis());
+    }
+
+    private void removeDeadNode(int id) {
+        deadNodes.remove(id);
+        tombstoneTimes.remove(id);
+    }
+
+    /**
+     * Helper function. In partial view mode, drops the address of a node that is in no list and no longer being gossiped.
+     */
+    private void forgetIfUntracked(int id) {
+        if (isPartialView() && !aliveNodes.containsKey(id) && !deadNodes.containsKey(id) && !sendBuffer.containsKey(id)) {
+            addressMapping.remove(id);
+        }
+    }
+
+    /**
+     * Replaces our own metadata tags with a new version. The delta from the previous version is gossiped.
+     */
+    public void setSelfMetadata(Map<String, String> tags) {
+        MemberMetadata previous = selfMetadata;
+        selfMetadata = MemberMetadata.of(previous.getVersion() + 1, tags);
+        metadataBuffer.put(selfAddress.getId(), new MetadataInfo(selfAddress, MetadataDelta.between(previous, selfMetadata)));
+    }
+
+    public MemberMetadata getSelfMetadata() {
+        return selfMetadata;
+    }
+
+    /**
+     * Returns the metadata of a node, empty if we don't know any.
+     */
+    public MemberMetadata getMetadata(NatedAddress address) {
+        MemberMetadata memberMetadata = metadata.get(address.getId());
+        return memberMetadata == null ? MemberMetadata.EMPTY : memberMetadata;
+    }
+
+    /**
+     * Applies a metadata delta about an alive node and passes it on.
+     * Returns the new metadata, or null if the delta was old, about a node we don't track, or based on a version we missed.
+     */
+    public MemberMetadata applyMetadata(NatedAddress address, MetadataDelta delta) {
+        if (address.getId() == selfAddress.getId() || !aliveNodes.containsKey(address.getId())) {
+            return null;
+        }
+
+        MemberMetadata current = getMetadata(address);
+        if (delta.getVersion() <= current.getVersion() || !delta.appliesTo(current)) {
+            return null;
+        }
+
+        MemberMetadata updated = delta.applyTo(current);
+        metadata.put(address.getId(), updated);
+        metadataRequests.remove(address.getId());
+
+        //Only pass on deltas others can apply too, full metadata from a request is not gossiped.
+        if (delta.getBaseVersion() == current.getVersion() && delta.getBaseVersion() == delta.getVersion() - 1) {
+            metadataBuffer.put(address.getId(), new MetadataInfo(address, delta));
+        }
+
+        return updated;
+    }
+
+    /**
+     * Returns true if we should ask the node for its full metadata: it has a newer version than we have
+     * and we haven't asked within the last ping timeout. Records the request.
+     */
+    public boolean shouldRequestMetadata(NatedAddress address, int version) {
+        if (!aliveNodes.containsKey(address.getId()) || getMetadata(address).getVersion() >= version) {
+            return false;
+        }
+
+        long now = System.currentTimeMillis();
+        Long lastRequest = metadataRequests.get(address.getId());
+        if (lastRequest != null && now - lastRequest < config.pingTimeout) {
+            return false;
+        }
+
+        metadataRequests.put(address.getId(), now);
+        return true;
+    }
+
+    /**
+     * Helper function. Drops what we know about the metadata of a node we no longer track.
+     */
+    private void forgetMetadata(int id) {
+        metadata.remove(id);
+        metadataBuffer.remove(id);
+        metadataRequests.remove(id);
+    }
+
     /**
      * Will add a node to the send buffer as a new node.
      * Used when receiving new parents and we want to propagate them to other nodes.
      */
     public void addNewNodeToSendBuffer(NatedAddress address, int incarnationCounter) {
-        sendBuffer.put(address.getBaseAdr(), new NodeInfo(address, incarnationCounter, NodeInfo.Type.NEW));
+        sendBuffer.put(address.getId(), new NodeInfo(address, incarnationCounter, NodeInfo.Type.NEW));
     }
 
     /**
@@ -148,7 +542,7 @@ public class NodeHandler {
      */
     private void addToPingList(NatedAddress address) {
         int insertIndex = (int) (pingList.size() * rand.nextDouble());
-        pingList.add(insertIndex, address.getBaseAdr());
+        pingList.add(insertIndex, address.getId());
     }
 
     /**
@@ -157,33 +551,37 @@ public class NodeHandler {
      */
     public void addSuspected(NatedAddress address, int incarnationCounter) {
         //Never add self to lists.
-        if (address.getBaseAdr().equals(selfAddress.getBaseAdr())) {
+        if (address.getId() == selfAddress.getId()) {
             return;
         }
 
         //If node is in the alive list.
-        if (aliveNodes.containsKey(address.getBaseAdr())) {
+        if (aliveNodes.containsKey(address.getId())) {
             //If incarnation counter is lower, this is newer, update info.
-            if (aliveNodes.get(address.getBaseAdr()) <= incarnationCounter) {
-                aliveNodes.put(address.getBaseAdr(), incarnationCounter);
-                addressMapping.put(address.getBaseAdr(), address);
+            if (Incarnation.compare(aliveNodes.get(address.getId()), incarnationCounter) <= 0) {
+                aliveNodes.put(address.getId(), incarnationCounter);
+                addressMapping.put(address.getId(), address);
 
                 //If this node is not already suspected, also propagate it by adding it to the send buffer.
-                if (!suspectedNodes.containsKey(address.getBaseAdr())) {
-                    sendBuffer.put(address.getBaseAdr(), new NodeInfo(address, incarnationCounter, NodeInfo.Type.SUSPECTED));
+                if (!suspectedNodes.containsKey(address.getId())) {
+                    gossipSuspicion(new NodeInfo(address, incarnationCounter, NodeInfo.Type.SUSPECTED));
                 }
 
-                suspectedNodes.put(address.getBaseAdr(), incarnationCounter);
+                suspectedNodes.put(address.getId(), incarnationCounter);
             }
         }
-        //If node is not in alive list, and not dead add it to the alive list and the suspected list.
-        else if (!deadNodes.containsKey(address.getBaseAdr())) {
-            aliveNodes.put(address.getBaseAdr(), incarnationCounter);
-            addressMapping.put(address.getBaseAdr(), address);
-            suspectedNodes.put(address.getBaseAdr(), incarnationCounter);
+        //If node is not in alive list, and not dead in this epoch add it to the alive list and the suspected list.
+        //In partial view mode a full view only passes the suspicion on.
+        else if (!isDeadInEpoch(address, incarnationCounter)) {
+            removeDeadNode(address.getId()); //A tombstone of a previous run of the node.
+            addressMapping.put(address.getId(), address);
+            if (hasRoomInView()) {
+                aliveNodes.put(address.getId(), incarnationCounter);
+                suspectedNodes.put(address.getId(), incarnationCounter);
+            }
 
             //Add node to send buffer in order to propagate it.
-            sendBuffer.put(address.getBaseAdr(), new NodeInfo(address, incarnationCounter, NodeInfo.Type.SUSPECTED));
+            gossipSuspicion(new NodeInfo(address, incarnationCounter, NodeInfo.Type.SUSPECTED));
         }
     }
 
@@ -192,65 +590,292 @@ public class NodeHandler {
      * as we dont get incarnation counter when we suspect nodes from ping timeout.
      */
     public void addSuspected(NatedAddress address) {
-        int incarnationCounter = 0;
+        int incarnationCounter = Incarnation.UNKNOWN;
+
+        if (aliveNodes.containsKey(address.getId())) {
+            incarnationCounter = aliveNodes.get(address.getId());
+        }
+
+        suspectedNodes.put(address.getId(), incarnationCounter);
+        addressMapping.put(address.getId(), address);
+
+        //Add node to send buffer in order to propagate it.
+        gossipSuspicion(new NodeInfo(address, incarnationCounter, NodeInfo.Type.SUSPECTED));
+    }
+
+    /**
+     * Helper function. Puts a suspicion in the send buffer, unless the node is flaky.
+     * Suspicions about flaky nodes are held back and released by flushHeldSuspicions, at most one per node per interval.
+     */
+    private void gossipSuspicion(NodeInfo nodeInfo) {
+        int id = nodeInfo.getAddress().getId();
+        buddyProbes.add(id);
+
+        if (isFlaky(id)) {
+            heldSuspicions.put(id, nodeInfo);
+        }
+        else {
+            sendBuffer.put(id, nodeInfo);
+            lastSuspicionGossip.put(id, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Moves held suspicions about flaky nodes to the send buffer, if the node is still suspected and
+     * we haven't gossiped a suspicion about it within FLAKY_SUSPICION_INTERVAL periods.
+     * Suspicions that were refuted while held are dropped without ever being sent. Called once every protocol period.
+     */
+    public void flushHeldSuspicions() {
+        long now = System.currentTimeMillis();
+
+        Iterator<Map.Entry<Integer, NodeInfo>> iterator = heldSuspicions.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Integer, NodeInfo> entry = iterator.next();
+            Integer id = entry.getKey();
+
+            if (!suspectedNodes.containsKey(id)) {
+                iterator.remove();
+                continue;
+            }
+
+            Long last = lastSuspicionGossip.get(id);
+            if (last == null || now - last >= FLAKY_SUSPICION_INTERVAL * config.protocolPeriod) {
+                sendBuffer.put(id, entry.getValue());
+                lastSuspicionGossip.put(id, now);
+                iterator.remove();
+            }
+        }
+
+        //Forget scores that have decayed away.
+        Iterator<Map.Entry<Integer, FlapScore>> scores = flapScores.entrySet().iterator();
+        while (scores.hasNext()) {
+            Map.Entry<Integer, FlapScore> entry = scores.next();
+            if (entry.getValue().getScore(now) < 0.1) {
+                scores.remove();
+                lastSuspicionGossip.remove(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Returns true if the node has been suspected and refuted often lately.
+     */
+    public boolean isFlaky(NatedAddress address) {
+        return isFlaky(address.getId());
+    }
+
+    private boolean isFlaky(int id) {
+        FlapScore flapScore = flapScores.get(id);
+        return flapScore != null && flapScore.getScore(System.currentTimeMillis()) >= FLAKY_SCORE;
+    }
+
+    /**
+     * Helper function. Records that a suspicion about the node was refuted.
+     */
+    private void recordFlap(int id) {
+        long now = System.currentTimeMillis();
+        FlapScore flapScore = flapScores.get(id);
 
-        if (aliveNodes.containsKey(address.getBaseAdr())) {
-            incarnationCounter = aliveNodes.get(address.getBaseAdr());
+        if (flapScore == null) {
+            flapScore = new FlapScore(FLAP_HALF_LIFE * config.protocolPeriod, now);
+            flapScores.put(id, flapScore);
         }
 
-        suspectedNodes.put(address.getBaseAdr(), incarnationCounter);
-        addressMapping.put(address.getBaseAdr(), address);
+        flapScore.flap(now);
+    }
+
+    /**
+     * Called to add a node to the dead list, with the ids of the nodes that declared it dead.
+     * As dead messages have priority over suspected and alive, incarnation counters are not compared.
+     * With cut detection enabled the node is only reported to the cut detector, and is moved to the
+     * dead list together with the rest of the next cut, see checkCut.
+     */
+    public void addDead(NatedAddress address, int incarnationCounter, Set<Integer> observers) {
+        //Never add self to lists.
+        if (address.getId() == selfAddress.getId()) {
+            return;
+        }
+
+        //The node has restarted since, this is about its previous run.
+        if (isFromOlderEpoch(address, incarnationCounter)) {
+            return;
+        }
+
+        if (isCutDetection()) {
+            if (deadNodes.containsKey(address.getId()) || observers == null) {
+                return;
+            }
+
+            //Only gossip the report further if it taught us about a new observer, so it doesn't circulate forever.
+            if (cutDetector.report(address, incarnationCounter, observers, System.currentTimeMillis())) {
+                NodeInfo nodeInfo = new NodeInfo(address, incarnationCounter, NodeInfo.Type.DEAD);
+                nodeInfo.setObservers(new HashSet<>(cutDetector.getObservers(address.getId())));
+                addressMapping.put(address.getId(), address);
+                sendBuffer.put(address.getId(), nodeInfo);
+            }
+
+            checkCut();
+            return;
+        }
+
+        putTombstone(address, incarnationCounter);
 
         //Add node to send buffer in order to propagate it.
-        sendBuffer.put(address.getBaseAdr(), new NodeInfo(address, incarnationCounter, NodeInfo.Type.SUSPECTED));
+        sendBuffer.put(address.getId(), new NodeInfo(address, incarnationCounter, NodeInfo.Type.DEAD));
+    }
+
+    /**
+     * Applies the next cut, if the cut detector has one. All nodes in it are moved to the dead list at once.
+     * Returns the nodes of the cut, or an empty list.
+     */
+    public List<NatedAddress> checkCut() {
+        List<NatedAddress> cut = new ArrayList<>();
+
+        if (!isCutDetection()) {
+            return cut;
+        }
+
+        for (CutDetector.Report report : cutDetector.takeCut(System.currentTimeMillis())) {
+            putTombstone(report.getAddress(), report.getIncarnationCounter());
+            cut.add(report.getAddress());
+        }
+
+        if (ENABLE_LOGGING && !cut.isEmpty()) {
+            SwimComp.log.info("{} view {} declared nodes dead: {}", new Object[]{selfAddress.getId(), cutDetector.getViewNumber(), cut});
+        }
+
+        return cut;
+    }
+
+    /**
+     * Returns the number of the current view, incremented for every cut.
+     */
+    public int getViewNumber() {
+        return cutDetector.getViewNumber();
     }
 
     /**
-     * Called to add a node to the dead list. As dead messages have priority over
-     * suspected and alive, incarnation counters are not compared.
+     * Helper function. Returns true if dead reports are batched into cuts.
      */
-    public void addDead(NatedAddress address, int incarnationCounter) {
+    private boolean isCutDetection() {
+        return config.cutHighWatermark > 0;
+    }
+
+    /**
+     * Helper function. Moves a node to the dead list.
+     */
+    private void putTombstone(NatedAddress address, int incarnationCounter) {
+        aliveNodes.remove(address.getId());
+        suspectedNodes.remove(address.getId());
+        pingList.remove(Integer.valueOf(address.getId()));
+        roundTripTimes.remove(address.getId());
+        roundTripSamples.remove(address.getId());
+        coordinates.remove(address.getId());
+        forgetMetadata(address.getId());
+        putDeadNode(address.getId(), incarnationCounter);
+        addressMapping.put(address.getId(), address);
+        trimTombstones();
+    }
+
+    /**
+     * Called when a node has announced that it is leaving on purpose.
+     * The node is moved straight to the dead list, without going through suspicion,
+     * and the leave is propagated before any other piggybacked information.
+     */
+    public void addLeft(NatedAddress address, int incarnationCounter) {
         //Never add self to lists.
-        if (address.getBaseAdr().equals(selfAddress.getBaseAdr())) {
+        if (address.getId() == selfAddress.getId()) {
             return;
         }
 
-        aliveNodes.remove(address.getBaseAdr());
-        suspectedNodes.remove(address.getBaseAdr());
-        pingList.remove(address.getBaseAdr());
-        deadNodes.put(address.getBaseAdr(), incarnationCounter);
-        addressMapping.put(address.getBaseAdr(), address);
+        //Already have a tombstone for this node, no need to propagate it again.
+        if (deadNodes.containsKey(address.getId())) {
+            return;
+        }
+
+        //The node has restarted since, this is about its previous run.
+        if (isFromOlderEpoch(address, incarnationCounter)) {
+            return;
+        }
+
+        aliveNodes.remove(address.getId());
+        suspectedNodes.remove(address.getId());
+        pingList.remove(Integer.valueOf(address.getId()));
+        roundTripTimes.remove(address.getId());
+        roundTripSamples.remove(address.getId());
+        coordinates.remove(address.getId());
+        forgetMetadata(address.getId());
+        putDeadNode(address.getId(), incarnationCounter);
+        addressMapping.put(address.getId(), address);
+        trimTombstones();
 
         //Add node to send buffer in order to propagate it.
-        sendBuffer.put(address.getBaseAdr(), new NodeInfo(address, incarnationCounter, NodeInfo.Type.DEAD));
+        sendBuffer.put(address.getId(), new NodeInfo(address, incarnationCounter, NodeInfo.Type.LEFT));
     }
 
     /**
      * Called to add a node to the dead list when we dont have the incarnation counter, from timeout.
      * Returns true if the node was successfully added to the dead list, used for logging.
+     * With cut detection this only reports the node, and checkCut logs it once the cut is applied.
      */
     public boolean addDead(NatedAddress address) {
         //Will only add the node to the dead list if it already was suspected.
-        if (suspectedNodes.containsKey(address.getBaseAdr())) {
-            addDead(address, 0);
+        if (suspectedNodes.containsKey(address.getId())) {
+            addDead(address, suspectedNodes.get(address.getId()), Collections.singleton(selfAddress.getId()));
 
-            return true;
+            return !isCutDetection() && deadNodes.containsKey(address.getId());
         }
 
         return false;
     }
 
+    /**
+     * Helper function. Returns true if we have a tombstone for the node from the same restart epoch.
+     * A tombstone from an older epoch doesn't count, the caller removes it when it adds the restarted node.
+     */
+    private boolean isDeadInEpoch(NatedAddress address, int incarnationCounter) {
+        Integer deadIncarnationCounter = deadNodes.get(address.getId());
+
+        return deadIncarnationCounter != null && !Incarnation.isNewerEpoch(incarnationCounter, deadIncarnationCounter);
+    }
+
+    /**
+     * Helper function. Returns true if we know the node in a later restart epoch than the given incarnation.
+     * Used to ignore dead and leave messages still being piggybacked about a previous run of the node.
+     */
+    private boolean isFromOlderEpoch(NatedAddress address, int incarnationCounter) {
+        Integer aliveIncarnationCounter = aliveNodes.get(address.getId());
+
+        return aliveIncarnationCounter != null && Incarnation.isNewerEpoch(aliveIncarnationCounter, incarnationCounter);
+    }
+
     /**
      * Returns a random node from the alive list.
-     * Will return nodes in a round robin fashion, as described in the report.
+     * Will return nodes in a round robin fashion, as described in the report, after any newly suspected nodes.
      */
     public NatedAddress getRandomAliveNode() {
+        //Suspected nodes go first, the ping tells them they are suspected so they can refute it.
+        Iterator<Integer> buddies = buddyProbes.iterator();
+        while (buddies.hasNext()) {
+            Integer id = buddies.next();
+            buddies.remove();
+            if (suspectedNodes.containsKey(id) && aliveNodes.containsKey(id)) {
+                return addressMapping.get(id);
+            }
+        }
+
         NatedAddress natedAddress = null;
         boolean twice = false;
         while (natedAddress == null) {
             if (pingList.isEmpty() || pingIndex >= pingList.size()) {
                 pingList.clear();
                 pingList.addAll(aliveNodes.keySet());
+                //Flaky nodes are probed twice per round, so we notice quickly when they are really gone.
+                for (Integer id : aliveNodes.keySet()) {
+                    if (isFlaky(id)) {
+                        pingList.add(id);
+                    }
+                }
                 Collections.shuffle(pingList, rand);
                 pingIndex = 0;
                 if (!twice) {
@@ -263,70 +888,280 @@ public class NodeHandler {
             if (pingList.isEmpty()) {
                 return null;
             }
-            Address address = pingList.get(pingIndex);
-            natedAddress = addressMapping.get(address);
+            Integer id = pingList.get(pingIndex);
+            natedAddress = aliveNodes.containsKey(id) ? addressMapping.get(id) : null;
             pingIndex++;
         }
         return natedAddress;
     }
 
     /**
-     * Generates a pong message with piggyback information.
+     * Returns the incarnation counter we suspect the node at, or Ping.NOT_SUSPECTED if we don't suspect it. Sent in pings to the node.
      */
-    public Pong getPong(int pingNr, int incarnationCounter) {
-        Map<Address, Integer> newNodesToSend = new HashMap<>();
-        Map<Address, Integer> suspectedNodesToSend = new HashMap<>();
-        Map<Address, Integer> deadNodesToSend = new HashMap<>();
+    public int getSuspectedIncarnation(NatedAddress address) {
+        Integer incarnationCounter = suspectedNodes.get(address.getId());
+        return incarnationCounter == null ? Ping.NOT_SUSPECTED : incarnationCounter;
+    }
+
+    /**
+     * Records a measured round trip time to a node.
+     * Smoothed the same way as TCP does it, so a single slow pong doesn't move the estimate too much.
+     */
+    public void updateRoundTripTime(NatedAddress address, long roundTripTime) {
+        Long previous = roundTripTimes.get(address.getId());
+
+        if (previous == null) {
+            roundTripTimes.put(address.getId(), roundTripTime);
+            roundTripSamples.put(address.getId(), 1);
+        }
+        else {
+            roundTripTimes.put(address.getId(), (7 * previous + roundTripTime) / 8);
+            roundTripSamples.put(address.getId(), Math.min(MIN_ROUND_TRIP_SAMPLES, roundTripSamples.get(address.getId()) + 1));
+        }
+    }
+
+    /**
+     * Records the coordinate a node sent us and, if we measured the round trip time to it, moves our own coordinate.
+     * Use a negative round trip time if it wasn't measured.
+     */
+    public void updateCoordinate(NatedAddress address, VivaldiCoordinate remoteCoordinate, long roundTripTime) {
+        if (remoteCoordinate == null || address.getId() == selfAddress.getId()) {
+            return;
+        }
+
+        coordinates.put(address.getId(), remoteCoordinate);
+
+        if (roundTripTime >= 0) {
+            coordinate = coordinate.update(remoteCoordinate, roundTripTime, rand);
+        }
+    }
+
+    public VivaldiCoordinate getCoordinate() {
+        return coordinate;
+    }
+
+    /**
+     * Returns the expected round trip time to a node in milliseconds, or Long.MAX_VALUE if we know nothing about it.
+     * A measured round trip time is used if we have one, otherwise the one predicted by the coordinates.
+     */
+    public long getExpectedRoundTripTime(int id) {
+        Long roundTripTime = roundTripTimes.get(id);
+        if (roundTripTime != null) {
+            return roundTripTime;
+        }
+
+        VivaldiCoordinate remoteCoordinate = coordinates.get(id);
+        if (remoteCoordinate == null || coordinate.getError() > MAX_COORDINATE_ERROR || remoteCoordinate.getError() > MAX_COORDINATE_ERROR) {
+            return Long.MAX_VALUE;
+        }
+
+        return (long) Math.ceil(coordinate.distanceTo(remoteCoordinate));
+    }
+
+    /**
+     * Returns how long to wait for a pong from the node, at most maxTimeout.
+     * Nearby nodes get a shorter timeout so failures are detected sooner, but never below MIN_PROBE_TIMEOUT.
+     * Only measured round trip times are trusted for this, and only after MIN_ROUND_TRIP_SAMPLES of them,
+     * as an early coordinate guess could cut the timeout short and suspect a healthy node.
+     */
+    public int getProbeTimeout(NatedAddress address, int maxTimeout) {
+        Integer samples = roundTripSamples.get(address.getId());
 
-        List<NodeInfo> bufferAsList = new ArrayList<>(sendBuffer.values());
+        if (samples == null || samples < MIN_ROUND_TRIP_SAMPLES) {
+            return maxTimeout;
+        }
 
-        //Sort the send buffer so we prioritize items that are propagated the least amount of times.
-        Collections.sort(bufferAsList, new Comparator<NodeInfo>() {
+        return (int) Math.min(maxTimeout, Math.max(MIN_PROBE_TIMEOUT, PROBE_TIMEOUT_FACTOR * roundTripTimes.get(address.getId())));
+    }
+
+    /**
+     * Merges the size sketch piggybacked by another node.
+     */
+    public void mergeSizeSketch(SizeSketch sizeSketch) {
+        if (sizeSketch != null) {
+            sizeEstimator.merge(sizeSketch, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Returns the estimated number of nodes in the cluster, including ourself.
+     */
+    public double getClusterSizeEstimate() {
+        return sizeEstimator.estimate(System.currentTimeMillis());
+    }
+
+    /**
+     * Scales a timeout with log(n) of the estimated cluster size, so larger clusters get more time to refute a suspicion.
+     * Clusters up to SCALE_REFERENCE_SIZE nodes use the timeout as it is.
+     */
+    public int scaleWithClusterSize(int timeout) {
+        double factor = Math.log(getClusterSizeEstimate()) / Math.log(SCALE_REFERENCE_SIZE);
+        return (int) (timeout * Math.max(1, factor));
+    }
+
+    /**
+     * Returns up to k alive nodes to use as helpers when K-pinging the suspected node.
+     * Open nodes are preferred over NATed ones, since every message to a NATed node goes through a relay parent.
+     * Within each group, nodes we know are close (low measured or predicted round trip time) are picked first and nodes
+     * we suspect ourselves are picked last. Ties are broken randomly.
+     */
+    public List<NatedAddress> getIndirectPingHelpers(NatedAddress suspectedAddress, int k) {
+        List<Integer> candidates = new ArrayList<>(aliveNodes.keySet());
+        candidates.remove(Integer.valueOf(suspectedAddress.getId()));
+        Collections.shuffle(candidates, rand);
+
+        //Sort is stable, so the shuffle decides the order between equally good helpers.
+        Collections.sort(candidates, new Comparator<Integer>() {
             @Override
-            public int compare(NodeInfo o1, NodeInfo o2) {
-                if (o1.getSendCounter() > o2.getSendCounter()) {
-                    return 1;
-                }
-                else if (o1.getSendCounter() < o2.getSendCounter()) {
-                    return -1;
-                }
-                else {
-                    return 0;
+            public int compare(Integer o1, Integer o2) {
+                int result = Integer.compare(helperTier(o1), helperTier(o2));
+
+                if (result == 0) {
+                    result = Long.compare(roundTripTimeOrMax(o1), roundTripTimeOrMax(o2));
                 }
+
+                return result;
             }
         });
 
+        List<NatedAddress> helpers = new ArrayList<>();
+        for (Integer id : candidates) {
+            if (helpers.size() >= k) {
+                break;
+            }
+
+            helpers.add(addressMapping.get(id));
+        }
+
+        return helpers;
+    }
+
+    /**
+     * Helper function. Lower tier is a better K-ping helper.
+     * Open and not suspected is best, then NATed, then suspected nodes.
+     */
+    private int helperTier(int id) {
+        int tier = addressMapping.get(id).isOpen() ? 0 : 1;
+
+        if (suspectedNodes.containsKey(id)) {
+            tier += 2;
+        }
+
+        return tier;
+    }
+
+    /**
+     * Helper function. Nodes without measured or predicted round trip time are sorted after all others.
+     */
+    private long roundTripTimeOrMax(int id) {
+        return getExpectedRoundTripTime(id);
+    }
+
+    /**
+     * Generates a pong message with piggyback information.
+     */
+    public Pong getPong(int pingNr, int incarnationCounter) {
+        //The builder copies everything when the pong is built, so one is reused for every pong.
+        Pong.Builder pong = pongBuilder.reset();
+
+        //Estimated instead of taken from the alive list, which may not hold every node.
+        double clusterSize = Math.max(1, getClusterSizeEstimate());
+
+        //Nodes that were gossiped for the last time. Forgotten after the pong is built, if we don't track them.
+        retired.clear();
+
+        //Sort the send buffer so we prioritize leaves, then items that are propagated the least amount of times.
+        //The list is kept between pongs, only the entries are copied.
+        List<NodeInfo> bufferAsList = sendList;
+        bufferAsList.clear();
+        bufferAsList.addAll(sendBuffer.values());
+        Collections.sort(bufferAsList, SEND_ORDER);
+
         int messageSizeCounter = 0;
 
         //Get nodes from the send buffer, add them to the appropriate list and update sendcounters.
         for (NodeInfo nodeInfo : bufferAsList) {
-            if (messageSizeCounter > SwimComp.PIGGYBACK_MESSAGE_SIZE) {
+            if (messageSizeCounter > config.piggybackMessageSize) {
                 break;
             }
 
             nodeInfo.setSendCounter(nodeInfo.getSendCounter() + 1);
 
-            switch (nodeInfo.getType()) {
+            //Sent with the latest known parents of the node.
+            NatedAddress knownAddress = addressMapping.get(nodeInfo.getAddress().getId());
+            NatedAddress addressToSend = knownAddress == null ? null : toSendAddress(knownAddress);
 
-                case NEW:
-                    newNodesToSend.put(nodeInfo.getAddress().getBaseAdr(), nodeInfo.getIncarnationCounter());
-                    break;
-                case SUSPECTED:
-                    suspectedNodesToSend.put(nodeInfo.getAddress().getBaseAdr(), nodeInfo.getIncarnationCounter());
-                    break;
-                case DEAD:
-                    deadNodesToSend.put(nodeInfo.getAddress().getBaseAdr(), nodeInfo.getIncarnationCounter());
-                    break;
+            if (addressToSend != null) {
+                switch (nodeInfo.getType()) {
+
+                    case NEW:
+                        pong.add(Pong.NEW, addressToSend, nodeInfo.getIncarnationCounter());
+                        break;
+                    case SUSPECTED:
+                        pong.add(Pong.SUSPECTED, addressToSend, nodeInfo.getIncarnationCounter());
+                        break;
+                    case DEAD:
+                        pong.add(Pong.DEAD, addressToSend, nodeInfo.getIncarnationCounter());
+                        if (nodeInfo.getObservers() != null) {
+                            pong.deadObservers(nodeInfo.getAddress().getId(), nodeInfo.getObservers());
+                        }
+                        break;
+                    case LEFT:
+                        pong.add(Pong.LEFT, addressToSend, nodeInfo.getIncarnationCounter());
+                        break;
+                }
             }
 
             //If node was propagated enough times, remove it from the send buffer.
-            if (nodeInfo.getSendCounter() > SwimComp.LAMBDA * Math.max(1, Math.log(Math.max(1, aliveNodes.size())))) {
-                sendBuffer.remove(nodeInfo.getAddress().getBaseAdr());
+            if (nodeInfo.getSendCounter() > config.lambda * Math.max(1, Math.log(clusterSize))) {
+                sendBuffer.remove(nodeInfo.getAddress().getId());
+                retired.add(nodeInfo.getAddress().getId());
             }
 
             messageSizeCounter++;
         }
-        return new Pong(convertToNated(newNodesToSend), convertToNated(suspectedNodesToSend), convertToNated(deadNodesToSend), pingNr, incarnationCounter);
+        addMetadataToSend(pong, clusterSize);
+
+        pong.pingNr(pingNr)
+                .incarnationCounter(incarnationCounter)
+                .coordinate(coordinate)
+                .sizeSketch(sizeEstimator.getSketch(System.currentTimeMillis()))
+                .metadataVersion(selfMetadata.getVersion());
+
+        for (Integer id : retired) {
+            forgetIfUntracked(id);
+        }
+
+        return pong.build();
+    }
+
+    /**
+     * Helper function. Picks the metadata deltas to piggyback, the least sent first, and retires them the same way as membership changes.
+     */
+    private void addMetadataToSend(Pong.Builder pong, double clusterSize) {
+        if (metadataBuffer.isEmpty()) {
+            return;
+        }
+
+        List<MetadataInfo> bufferAsList = metadataList;
+        bufferAsList.clear();
+        bufferAsList.addAll(metadataBuffer.values());
+        Collections.sort(bufferAsList, METADATA_SEND_ORDER);
+
+        int added = 0;
+        for (MetadataInfo metadataInfo : bufferAsList) {
+            if (added >= config.piggybackMessageSize) {
+                break;
+            }
+
+            pong.metadataDelta(metadataInfo.getAddress().getId(), metadataInfo.getDelta());
+            added++;
+
+            metadataInfo.setSendCounter(metadataInfo.getSendCounter() + 1);
+            if (metadataInfo.getSendCounter() > config.lambda * Math.max(1, Math.log(clusterSize))) {
+                metadataBuffer.remove(metadataInfo.getAddress().getId());
+            }
+        }
     }
 
     /**
@@ -337,46 +1172,47 @@ public class NodeHandler {
     }
 
     /**
-     * Helper function, will return a map of NatedAddresses, based on the Address input.
+     * Returns the address to send to for a node id, or null if we don't know the node.
+     * The lists are kept by id, ids are only turned into addresses when something is sent to the node.
      */
-    public Map<NatedAddress, Integer> convertToNated(Map<Address, Integer> nodes) {
-        Map<NatedAddress, Integer> natedAddresses = new HashMap<>();
-        for (Address node : nodes.keySet()) {
-            NatedAddress address = addressMapping.get(node);
-            if (address != null) {
-                try {
-                    NatedAddress addressToSend = new BasicNatedAddress(new BasicAddress(InetAddress.getByName("127.0.0.1"), 12345, address.getId()), address.getNatType(), new HashSet<NatedAddress>(address.getParents()));
-                    natedAddresses.put(addressToSend, nodes.get(node));
-                } catch (UnknownHostException e) {
-                    e.printStackTrace();
-                }
-
+    public NatedAddress getAddress(int id) {
+        NatedAddress address = addressMapping.get(id);
+        return address == null ? null : toSendAddress(address);
+    }
 
-            }
+    /**
+     * Helper function, returns the address as we send it in piggybacked information.
+     * It keeps the ip and port of the node, which the UDP network sends to. The address is interned, so every node that stores it shares one instance.
+     * A copy is only made if the address differs from the canonical one.
+     */
+    private NatedAddress toSendAddress(NatedAddress address) {
+        NatedAddress canonical = AddressRegistry.lookup(address);
+        if (canonical != null) {
+            return canonical;
         }
-        return natedAddresses;
+        return AddressRegistry.intern(AddressRegistry.snapshot(address));
     }
 
     /**
-     * Helper function will return a map of all alive nodes.
+     * Helper function will return a read-only view of the alive nodes, node id to incarnation counter.
      */
-    public Map<NatedAddress, Integer> getAliveNodes() {
-        return convertToNated(aliveNodes);
+    public Map<Integer, Integer> getAliveNodes() {
+        return Collections.unmodifiableMap(aliveNodes);
     }
 
     /**
-     * Helper function will return a map of all dead nodes.
+     * Helper function will return a read-only view of the dead nodes, node id to incarnation counter.
      */
-    public Map<NatedAddress, Integer> getDeadNodes() {
-        return convertToNated(deadNodes);
+    public Map<Integer, Integer> getDeadNodes() {
+        return Collections.unmodifiableMap(deadNodes);
     }
 
 
     /**
-     * Helper function will return a map of all suspected nodes.
+     * Helper function will return a read-only view of the suspected nodes, node id to incarnation counter.
      */
-    public Map<NatedAddress, Integer> getSuspectedNodes() {
-        return convertToNated(suspectedNodes);
+    public Map<Integer, Integer> getSuspectedNodes() {
+        return Collections.unmodifiableMap(suspectedNodes);
     }
 
 }
\ No newline at end of file
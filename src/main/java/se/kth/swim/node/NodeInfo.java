@@ -3,18 +3,20 @@ package se.kth.swim.node;
 import se.sics.p2ptoolbox.util.network.NatedAddress;
 
 import java.io.Serializable;
+import java.util.Set;
 
 /**
  * Created by joakim on 2015-04-12.
  */
 public class NodeInfo implements Serializable {
 
-    enum Type {NEW, SUSPECTED, DEAD}
+    enum Type {NEW, SUSPECTED, DEAD, LEFT}
 
     private NatedAddress address;
     private int sendCounter;
     private int incarnationCounter;
     private Type type;
+    private Set<Integer> observers; //Ids of the nodes that declared a dead node dead, used for cut detection.
 
     public NodeInfo(NatedAddress address, int incarnationCounter, Type type) {
         this.address = address;
@@ -55,6 +57,14 @@ public class NodeInfo implements Serializable {
         this.type = type;
     }
 
+    public Set<Integer> getObservers() {
+        return observers;
+    }
+
+    public void setObservers(Set<Integer> observers) {
+        this.observers = observers;
+    }
+
     public boolean isNew() {
         return type == Type.NEW;
     }
@@ -67,6 +77,10 @@ public class NodeInfo implements Serializable {
         return type == Type.DEAD;
     }
 
+    public boolean isLeft() {
+        return type == Type.LEFT;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -0,0 +1,125 @@
+package se.kth.swim.node;
+
+import se.kth.swim.msg.SizeSketch;
+
+import java.util.*;
+
+/**
+ * Estimates the cluster size without knowing every node, using a bottom-k min-hash sketch.
+ * Every node keeps the k smallest hashes of node ids it has heard of and merges the sketches piggybacked by others.
+ * With u the k:th smallest hash scaled to [0, 1), the cluster size is about (k - 1) / u.
+ * A hash is dropped when its node hasn't been seen alive by anyone for maxAge milliseconds, so dead nodes leave the estimate.
+ */
+public class SizeEstimator {
+
+    public static final int SKETCH_SIZE = 32; //k, the relative error of the estimate is about 1 / sqrt(k - 2).
+
+    private final int selfId;
+
+    //Local time each hash was last seen alive, sorted by hash.
+    //Hashes are compared unsigned, so keys are stored with the sign bit flipped to make the map order match.
+    private TreeMap<Long, Long> lastSeen;
+
+    private long maxAge;
+
+    public SizeEstimator(int selfId, long maxAge) {
+        this.selfId = selfId;
+        this.maxAge = maxAge;
+        this.lastSeen = new TreeMap<>();
+    }
+
+    public void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Records that we have seen the node alive now.
+     */
+    public void refresh(int nodeId, long now) {
+        put(IdHash.mix(nodeId), now);
+        trim(now);
+    }
+
+    /**
+     * Merges a sketch received from another node, keeping the most recent sighting of every hash.
+     */
+    public void merge(SizeSketch sketch, long now) {
+        for (int i = 0; i < sketch.size(); i++) {
+            put(sketch.getHash(i), now - sketch.getAge(i));
+        }
+        trim(now);
+    }
+
+    /**
+     * Returns our sketch to piggyback, including ourself.
+     */
+    public SizeSketch getSketch(long now) {
+        refresh(selfId, now);
+
+        int size = Math.min(SKETCH_SIZE, lastSeen.size());
+        long[] hashes = new long[size];
+        int[] ages = new int[size];
+
+        int index = 0;
+        for (Map.Entry<Long, Long> entry : lastSeen.entrySet()) {
+            if (index >= size) {
+                break;
+            }
+            hashes[index] = entry.getKey() ^ Long.MIN_VALUE;
+            ages[index] = (int) Math.min(Integer.MAX_VALUE, now - entry.getValue());
+            index++;
+        }
+
+        return new SizeSketch(hashes, ages);
+    }
+
+    /**
+     * Returns the estimated number of nodes in the cluster, including ourself. Exact as long as it's below k.
+     */
+    public double estimate(long now) {
+        refresh(selfId, now);
+
+        if (lastSeen.size() < SKETCH_SIZE) {
+            return lastSeen.size();
+        }
+
+        int index = 0;
+        long kthHash = 0;
+        for (long key : lastSeen.keySet()) {
+            kthHash = key ^ Long.MIN_VALUE;
+            if (++index >= SKETCH_SIZE) {
+                break;
+            }
+        }
+
+        return (SKETCH_SIZE - 1) / Math.max(IdHash.uniform(kthHash), Double.MIN_NORMAL);
+    }
+
+    /**
+     * Helper function. Keeps the latest sighting of the hash.
+     */
+    private void put(long hash, long seen) {
+        long key = hash ^ Long.MIN_VALUE;
+        Long previous = lastSeen.get(key);
+        if (previous == null || previous < seen) {
+            lastSeen.put(key, seen);
+        }
+    }
+
+    /**
+     * Helper function. Drops expired hashes and everything above the k smallest, those can't affect the estimate.
+     */
+    private void trim(long now) {
+        Iterator<Map.Entry<Long, Long>> iterator = lastSeen.entrySet().iterator();
+        int kept = 0;
+        while (iterator.hasNext()) {
+            Map.Entry<Long, Long> entry = iterator.next();
+            if (now - entry.getValue() > maxAge || kept >= SKETCH_SIZE) {
+                iterator.remove();
+            }
+            else {
+                kept++;
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package se.kth.swim.node;
+
+import java.util.Random;
+
+/**
+ * Vivaldi network coordinate: a point in a 2D plane plus a height, where the distance between
+ * two coordinates predicts the round trip time between the nodes in milliseconds.
+ * The height models the access link, which every message to or from the node has to cross.
+ * Coordinates are immutable, so they can be piggybacked on messages without copying.
+ */
+public class VivaldiCoordinate {
+
+    private static final double CE = 0.25;          //How fast the error estimate adapts.
+    private static final double CC = 0.25;          //How far a node moves towards the measured distance.
+    private static final double MIN_HEIGHT = 0.1;   //Height can't reach zero, or coincident nodes could never be pushed apart.
+    private static final double MAX_ERROR = 1.5;    //Error estimate of a node that has no measurements yet.
+
+    private final double x, y, height, error;
+
+    public VivaldiCoordinate(double x, double y, double height, double error) {
+        this.x = x;
+        this.y = y;
+        this.height = height;
+        this.error = error;
+    }
+
+    /**
+     * Returns the coordinate of a node without measurements, with maximum error.
+     */
+    public static VivaldiCoordinate origin() {
+        return new VivaldiCoordinate(0, 0, MIN_HEIGHT, MAX_ERROR);
+    }
+
+    /**
+     * Returns the predicted round trip time to the other coordinate, in milliseconds.
+     */
+    public double distanceTo(VivaldiCoordinate other) {
+        double dx = x - other.x;
+        double dy = y - other.y;
+        return Math.sqrt(dx * dx + dy * dy) + height + other.height;
+    }
+
+    /**
+     * Returns how far this coordinate has moved from an earlier coordinate of the same node, in milliseconds.
+     * Unlike distanceTo, the heights are subtracted, as both are the height of one node.
+     */
+    public double movedFrom(VivaldiCoordinate earlier) {
+        double dx = x - earlier.x;
+        double dy = y - earlier.y;
+        return Math.sqrt(dx * dx + dy * dy) + Math.abs(height - earlier.height);
+    }
+
+    /**
+     * Returns the coordinate moved according to a round trip time measured to the remote node.
+     * Each sample is weighted by how confident we are compared to the remote node, so nodes with
+     * good coordinates aren't dragged around by new ones.
+     */
+    public VivaldiCoordinate update(VivaldiCoordinate remote, long roundTripTime, Random rand) {
+        double rtt = Math.max(roundTripTime, 1);
+        double weight = error / (error + remote.error);
+        double predicted = distanceTo(remote);
+
+        double sampleError = Math.abs(predicted - rtt) / rtt;
+        double newError = Math.min(MAX_ERROR, sampleError * CE * weight + error * (1 - CE * weight));
+        double force = CC * weight * (rtt - predicted);
+
+        //Unit vector pointing away from the remote node. Coincident nodes are pushed apart in a random direction.
+        double dx = x - remote.x;
+        double dy = y - remote.y;
+        double planar = Math.sqrt(dx * dx + dy * dy);
+        if (planar == 0) {
+            double angle = rand.nextDouble() * 2 * Math.PI;
+            dx = Math.cos(angle);
+            dy = Math.sin(angle);
+            planar = 1;
+        }
+        double length = planar + height + remote.height;
+
+        double newX = x + force * dx / length;
+        double newY = y + force * dy / length;
+        double newHeight = Math.max(MIN_HEIGHT, height + force * (height + remote.height) / length);
+
+        return new VivaldiCoordinate(newX, newY, newHeight, newError);
+    }
+
+    public double getX() {
+        return x;
+    }
+
+    public double getY() {
+        return y;
+    }
+
+    public double getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the relative error estimate of the coordinate, 0 means fully accurate.
+     */
+    public double getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("(%.1f, %.1f, h=%.1f, err=%.2f)", x, y, height, error);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * GVoD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.swim.runtime;
+
+import se.kth.swim.codec.MessageCodec;
+import se.kth.swim.component.AggregatorComp;
+import se.kth.swim.component.HostComp;
+import se.kth.swim.component.UdpNetworkComp;
+import se.kth.swim.component.init.UdpNetworkInit;
+import se.sics.kompics.Component;
+import se.sics.kompics.ComponentDefinition;
+import se.sics.kompics.Init;
+import se.sics.kompics.network.Network;
+import se.sics.kompics.timer.Timer;
+import se.sics.kompics.timer.java.JavaTimer;
+import se.sics.p2ptoolbox.util.network.NatedAddress;
+
+/**
+ * Root component of a node running on a real network, see UdpMain.
+ * Connects HostComp, or the aggregator, to a UDP network and a timer using wall clock time.
+ */
+public class UdpLauncherComp extends ComponentDefinition {
+
+    private static final int TICK = 5;                //How often queued messages are written, in milliseconds.
+    private static final int REPORT_INTERVAL = 10000; //How often bandwidth and CPU use are logged, in milliseconds.
+
+    private Component timer;
+    private Component network;
+    private Component node;
+
+    public UdpLauncherComp(UdpLauncherInit init) {
+        timer = create(JavaTimer.class, Init.NONE);
+        network = create(UdpNetworkComp.class, new UdpNetworkInit(init.selfAddress, TICK, MessageCodec.DEFAULT_COMPRESSION_THRESHOLD, REPORT_INTERVAL));
+
+        if (init.hostInit == null) {
+            node = create(AggregatorComp.class, new AggregatorComp.AggregatorInit(init.selfAddress));
+        }
+        else {
+            node = create(HostComp.class, init.hostInit);
+        }
+        connect(node.getNegative(Network.class), network.getPositive(Network.class));
+        connect(node.getNegative(Timer.class), timer.getPositive(Timer.class));
+    }
+
+    public static class UdpLauncherInit extends Init<UdpLauncherComp> {
+
+        public final NatedAddress selfAddress;
+        public final HostComp.HostInit hostInit; //Null to run the aggregator.
+
+        public UdpLauncherInit(NatedAddress selfAddress, HostComp.HostInit hostInit) {
+            this.selfAddress = selfAddress;
+            this.hostInit = hostInit;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * GVoD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.swim.runtime;
+
+import se.kth.swim.codec.MessageStats;
+import se.kth.swim.component.AggregatorComp;
+import se.kth.swim.component.HostComp;
+import se.kth.swim.component.SwimConfig;
+import se.kth.swim.croupier.CroupierConfig;
+import se.kth.swim.node.Incarnation;
+import se.sics.kompics.Kompics;
+import se.sics.p2ptoolbox.util.network.NatedAddress;
+import se.sics.p2ptoolbox.util.network.impl.BasicAddress;
+import se.sics.p2ptoolbox.util.network.impl.BasicNatedAddress;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Runs one node, or the aggregator, as its own process on the loopback interface, talking UDP to the others.
+ * Start the aggregator first, then the nodes, each in a separate process:
+ * <pre>
+ * UdpMain aggregator 23456
+ * UdpMain node 1 30001 23456
+ * UdpMain node 2 30002 23456 1:30001
+ * UdpMain node 3 30003 23456 1:30001 2:30002
+ * </pre>
+ * Every node logs its bandwidth and CPU use, and prints its message counts on exit. The aggregator prints the convergence on exit.
+ * No scheduler is set, so Kompics runs the components on its default threaded scheduler.
+ */
+public class UdpMain {
+
+    private static final String HOST = "127.0.0.1"; //All processes run on the loopback interface.
+    private static final int AGGREGATOR_ID = 0;     //Same id as the aggregator in SwimScenario.
+    private static final int WORKERS = 2;           //Scheduler threads per process. Network I/O has its own thread.
+    private static final String EPOCH_DIRECTORY = "swim-epochs"; //Where the last restart epoch of each node is kept.
+
+    //Same parameters as in SwimScenario, the shared defaults with message stats on, printed on exit.
+    private static final CroupierConfig croupierConfig = CroupierConfig.DEFAULT;
+    private static final SwimConfig swimConfig = new SwimConfig.Builder().messageStats(true).build();
+
+    public static void main(String[] args) {
+        UdpLauncherComp.UdpLauncherInit init;
+
+        try {
+            if (args.length == 2 && args[0].equals("aggregator")) {
+                init = new UdpLauncherComp.UdpLauncherInit(address(AGGREGATOR_ID, Integer.parseInt(args[1])), null);
+
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+                    @Override
+                    public void run() {
+                        AggregatorComp.calculateConvergence();
+                    }
+                });
+            }
+            else if (args.length >= 4 && args[0].equals("node")) {
+                int id = Integer.parseInt(args[1]);
+                NatedAddress selfAddress = address(id, Integer.parseInt(args[2]));
+                NatedAddress aggregatorAddress = address(AGGREGATOR_ID, Integer.parseInt(args[3]));
+
+                //Bootstrap nodes are given as id:port.
+                Set<NatedAddress> bootstrapNodes = new HashSet<>();
+                for (int i = 4; i < args.length; i++) {
+                    String[] bootstrap = args[i].split(":");
+                    bootstrapNodes.add(address(Integer.parseInt(bootstrap[0]), Integer.parseInt(bootstrap[1])));
+                }
+
+                //The restart epoch of every node is kept on disk, so a restarted node always gets a newer one.
+                Incarnation.setEpochDirectory(new File(EPOCH_DIRECTORY));
+
+                //Seeded by id, like the nodes in SwimScenario, but different for every run.
+                long seed = System.nanoTime() + id;
+                HostComp.HostInit hostInit = new HostComp.HostInit(selfAddress, bootstrapNodes, aggregatorAddress, seed, croupierConfig, swimConfig);
+                init = new UdpLauncherComp.UdpLauncherInit(selfAddress, hostInit);
+
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+                    @Override
+                    public void run() {
+                        MessageStats.printSummary();
+                    }
+                });
+            }
+            else {
+                printUsage();
+                return;
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+            printUsage();
+            return;
+        }
+
+        Kompics.createAndStart(UdpLauncherComp.class, init, WORKERS);
+        try {
+            Kompics.waitForTermination();
+        } catch (InterruptedException ex) {
+            throw new RuntimeException(ex.getMessage());
+        }
+    }
+
+    private static NatedAddress address(int id, int port) {
+        try {
+            return new BasicNatedAddress(new BasicAddress(InetAddress.getByName(HOST), port, id));
+        } catch (UnknownHostException ex) {
+            throw new RuntimeException("cannot create address for " + HOST);
+        }
+    }
+
+    private static void printUsage() {
+        System.err.println("usage: UdpMain aggregator <port>");
+        System.err.println("       UdpMain node <id> <port> <aggregator port> [<bootstrap id>:<bootstrap port> ...]");
+    }
+}
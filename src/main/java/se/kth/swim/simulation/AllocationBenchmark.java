@@ -0,0 +1,121 @@
+package se.kth.swim.simulation;
+
+import se.kth.swim.component.SwimConfig;
+import se.kth.swim.msg.Pong;
+import se.kth.swim.msg.net.NetPing;
+import se.kth.swim.msg.net.NetPong;
+import se.kth.swim.node.Incarnation;
+import se.kth.swim.node.NodeHandler;
+import se.kth.swim.timeout.PongTimeout;
+import se.sics.kompics.timer.ScheduleTimeout;
+import se.sics.p2ptoolbox.util.network.NatedAddress;
+import se.sics.p2ptoolbox.util.network.impl.BasicAddress;
+import se.sics.p2ptoolbox.util.network.impl.BasicNatedAddress;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Measures the bytes allocated per protocol round: a ping with its timeout, the pong built by NodeHandler with
+ * piggybacked entries, and the pinging node applying those entries. Two NodeHandlers play the two nodes, doing what
+ * SwimComp does in handlePingTimeout, handlePing and handlePong, without the Kompics runtime around them.
+ * Uses the allocation counter of the current thread, so it needs a HotSpot JVM.
+ */
+public class AllocationBenchmark {
+
+    private static final int ITERATIONS = 200000;
+    private static final int MEMBERS = 10; //Other nodes both nodes know about, one of them changes every round so pongs carry entries.
+
+    private static final SwimConfig config = new SwimConfig.Builder().build();
+
+    private final NatedAddress pingerAddress = address(1);
+    private final NatedAddress pongerAddress = address(2);
+    private final NodeHandler pinger = new NodeHandler(pingerAddress, 1, config);
+    private final NodeHandler ponger = new NodeHandler(pongerAddress, 2, config);
+    private final NatedAddress[] members = new NatedAddress[MEMBERS];
+
+    //Bytes allocated in each part of a round, summed over all iterations.
+    private long pingBytes, pongBytes, piggybackBytes;
+
+    public static void main(String[] args) {
+        AllocationBenchmark benchmark = new AllocationBenchmark();
+
+        //Warm up, so the measured run is compiled code.
+        for (int i = 0; i < 3; i++) {
+            benchmark.rounds();
+        }
+
+        benchmark.pingBytes = benchmark.pongBytes = benchmark.piggybackBytes = 0;
+        benchmark.rounds();
+        benchmark.report();
+    }
+
+    private AllocationBenchmark() {
+        pinger.addDefinatelyAlive(pongerAddress, Incarnation.of(1, 0));
+        ponger.addDefinatelyAlive(pingerAddress, Incarnation.of(1, 0));
+        for (int i = 0; i < members.length; i++) {
+            members[i] = address(10 + i);
+            pinger.addAlive(members[i], Incarnation.of(1, 0));
+            ponger.addAlive(members[i], Incarnation.of(1, 0));
+        }
+    }
+
+    private void rounds() {
+        for (int i = 0; i < ITERATIONS; i++) {
+            //A member refutes a suspicion, so the ponger has something new to gossip. Not measured.
+            ponger.addAlive(members[i % members.length], Incarnation.of(1, (i / members.length) % 0xFFFF + 1));
+
+            long start = allocatedBytes();
+
+            //Pinger, as in handlePingTimeout.
+            NetPing ping = new NetPing(pingerAddress, pongerAddress, i, Incarnation.of(1, 0), pinger.getCoordinate(), pinger.getSuspectedIncarnation(pongerAddress));
+            ScheduleTimeout scheduleTimeout = new ScheduleTimeout(pinger.getProbeTimeout(pongerAddress, config.pingTimeout));
+            scheduleTimeout.setTimeoutEvent(new PongTimeout(scheduleTimeout, i, pongerAddress));
+            long pinged = allocatedBytes();
+
+            //Ponger, as in handlePing.
+            ponger.addDefinatelyAlive(ping.getSource(), ping.getContent().getIncarnationCounter());
+            ponger.updateCoordinate(ping.getSource(), ping.getContent().getCoordinate(), -1);
+            NetPong netPong = new NetPong(pongerAddress, pingerAddress, ponger.getPong(ping.getContent().getPingNr(), Incarnation.of(1, 0)));
+            long ponged = allocatedBytes();
+
+            //Pinger, as in handlePong.
+            Pong pong = netPong.getContent();
+            pinger.updateRoundTripTime(netPong.getSource(), 1);
+            pinger.updateCoordinate(netPong.getSource(), pong.getCoordinate(), 1);
+            pinger.mergeSizeSketch(pong.getSizeSketch());
+            for (int j = 0; j < pong.size(); j++) {
+                if (pong.getState(j) == Pong.NEW) {
+                    pinger.addAlive(pong.getAddress(j), pong.getIncarnationCounter(j));
+                }
+                else if (pong.getState(j) == Pong.SUSPECTED) {
+                    pinger.addSuspected(pong.getAddress(j), pong.getIncarnationCounter(j));
+                }
+            }
+            pinger.addDefinatelyAlive(netPong.getSource(), pong.getIncarnationCounter());
+            long applied = allocatedBytes();
+
+            pingBytes += pinged - start;
+            pongBytes += ponged - pinged;
+            piggybackBytes += applied - ponged;
+        }
+    }
+
+    private void report() {
+        System.out.println(String.format("%d bytes per round: ping %d, pong %d, piggyback %d", (pingBytes + pongBytes + piggybackBytes) / ITERATIONS,
+                pingBytes / ITERATIONS, pongBytes / ITERATIONS, piggybackBytes / ITERATIONS));
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static NatedAddress address(int id) {
+        try {
+            return new BasicNatedAddress(new BasicAddress(InetAddress.getByName("127.0.0.1"), 12345, id));
+        } catch (UnknownHostException ex) {
+            throw new RuntimeException("cannot create address for localhost");
+        }
+    }
+}
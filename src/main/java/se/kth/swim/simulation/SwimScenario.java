@@ -19,9 +19,11 @@
 package se.kth.swim.simulation;
 
 import org.javatuples.Pair;
+import se.kth.swim.codec.MessageStats;
 import se.kth.swim.component.AggregatorComp;
 import se.kth.swim.component.HostComp;
 import se.kth.swim.component.SwimComp;
+import se.kth.swim.component.SwimConfig;
 import se.kth.swim.croupier.CroupierConfig;
 import se.sics.p2ptoolbox.simulator.cmd.OperationCmd;
 import se.sics.p2ptoolbox.simulator.cmd.impl.*;
@@ -68,7 +70,12 @@ public class SwimScenario {
 
     private static InetAddress localHost;
 
-    private static CroupierConfig croupierConfig = new CroupierConfig(10, 5, 1000, 500);
+    private static CroupierConfig croupierConfig = CroupierConfig.DEFAULT;
+
+    //Parameters are explained in SwimConfig. Set them on the builder to change them from the defaults.
+    //Killed nodes are stopped without announcing a leave, as leaveOnStop is off by default, so failure detection is tested.
+    //Message stats are on, the simulation result prints them.
+    private static final SwimConfig swimConfig = new SwimConfig.Builder().messageStats(true).build();
 
     static {
         try {
@@ -137,7 +144,7 @@ public class SwimScenario {
                      * generators with same seed else they might behave the same
                      */
                     long nodeSeed = seed + nodeId;
-                    return new HostComp.HostInit(nodeAddress, bootstrapNodes, aggregatorServer, nodeSeed, croupierConfig);
+                    return new HostComp.HostInit(nodeAddress, bootstrapNodes, aggregatorServer, nodeSeed, croupierConfig, swimConfig);
                 }
 
                 @Override
@@ -206,6 +213,7 @@ public class SwimScenario {
         public SimulationResult generate() {
 
             AggregatorComp.calculateConvergence();
+            MessageStats.printSummary();
 
             return new SimulationResult() {
 
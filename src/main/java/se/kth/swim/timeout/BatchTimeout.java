@@ -0,0 +1,14 @@
+package se.kth.swim.timeout;
+
+import se.sics.kompics.timer.ScheduleTimeout;
+import se.sics.kompics.timer.Timeout;
+
+/**
+ * Timeout for the end of a batch window, when the collected messages are sent.
+ */
+public class BatchTimeout extends Timeout {
+
+    public BatchTimeout(ScheduleTimeout request) {
+        super(request);
+    }
+}
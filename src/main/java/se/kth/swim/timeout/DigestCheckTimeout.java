@@ -0,0 +1,14 @@
+package se.kth.swim.timeout;
+
+import se.sics.kompics.timer.SchedulePeriodicTimeout;
+import se.sics.kompics.timer.Timeout;
+
+/**
+ * Periodic timeout of the aggregator, for comparing the status digests of finished rounds.
+ */
+public class DigestCheckTimeout extends Timeout {
+
+    public DigestCheckTimeout(SchedulePeriodicTimeout request) {
+        super(request);
+    }
+}
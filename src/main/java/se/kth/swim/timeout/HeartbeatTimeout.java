@@ -1,6 +1,7 @@
 package se.kth.swim.timeout;
 
 import se.sics.kompics.timer.SchedulePeriodicTimeout;
+import se.sics.kompics.timer.ScheduleTimeout;
 import se.sics.kompics.timer.Timeout;
 
 /**
@@ -11,4 +12,8 @@ public class HeartbeatTimeout extends Timeout {
     public HeartbeatTimeout(SchedulePeriodicTimeout request) {
         super(request);
     }
+
+    public HeartbeatTimeout(ScheduleTimeout request) {
+        super(request);
+    }
 }
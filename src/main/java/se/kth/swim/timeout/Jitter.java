@@ -0,0 +1,33 @@
+package se.kth.swim.timeout;
+
+import java.util.Random;
+
+/**
+ * Seeded randomness for periodic timers, so nodes started at the same time don't
+ * send their periodic messages in lockstep.
+ * The first timeout gets a random phase offset within the period and every following
+ * timeout a random deviation of at most a fraction of the period.
+ */
+public class Jitter {
+
+    private final Random rand;
+
+    public Jitter(long seed) {
+        this.rand = new Random(seed);
+    }
+
+    /**
+     * Returns a delay in [0, period) to use for the first timeout.
+     */
+    public long phaseOffset(long period) {
+        return (long) (rand.nextDouble() * period);
+    }
+
+    /**
+     * Returns the delay until the next timeout, period +- fraction * period.
+     */
+    public long nextDelay(long period, double fraction) {
+        long deviation = (long) ((2 * rand.nextDouble() - 1) * fraction * period);
+        return Math.max(1, period + deviation);
+    }
+}
@@ -1,6 +1,7 @@
 package se.kth.swim.timeout;
 
 import se.sics.kompics.timer.SchedulePeriodicTimeout;
+import se.sics.kompics.timer.ScheduleTimeout;
 import se.sics.kompics.timer.Timeout;
 
 /**
@@ -11,4 +12,8 @@ public class StatusTimeout extends Timeout {
     public StatusTimeout(SchedulePeriodicTimeout request) {
         super(request);
     }
+
+    public StatusTimeout(ScheduleTimeout request) {
+        super(request);
+    }
 }
\ No newline at end of file
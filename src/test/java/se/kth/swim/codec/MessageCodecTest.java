@@ -0,0 +1,452 @@
+package se.kth.swim.codec;
+
+import org.junit.Test;
+import se.kth.swim.croupier.internal.CroupierContainer;
+import se.kth.swim.croupier.internal.CroupierShuffle;
+import se.kth.swim.croupier.internal.CroupierShuffleNet;
+import se.kth.swim.msg.*;
+import se.kth.swim.msg.net.*;
+import se.kth.swim.node.Incarnation;
+import se.kth.swim.node.VivaldiCoordinate;
+import se.sics.kompics.network.Header;
+import se.sics.p2ptoolbox.util.network.NatType;
+import se.sics.p2ptoolbox.util.network.NatedAddress;
+import se.sics.p2ptoolbox.util.network.OverlayHeader;
+import se.sics.p2ptoolbox.util.network.impl.BasicAddress;
+import se.sics.p2ptoolbox.util.network.impl.BasicNatedAddress;
+import se.sics.p2ptoolbox.util.network.impl.RelayHeader;
+import se.sics.p2ptoolbox.util.network.impl.SourceHeader;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips every message type through the codec and compares the decoded message field by field.
+ */
+public class MessageCodecTest {
+
+    private final NatedAddress self = openAddress(1, 20001);
+    private final NatedAddress other = openAddress(2, 20002);
+    private final NatedAddress nated = natedAddress(3, 20003, self, other);
+    private final VivaldiCoordinate coordinate = new VivaldiCoordinate(12.5, -3.25, 0.5, 0.375); //Exact as a float, some messages send coordinates as floats.
+
+    @Test
+    public void ping() {
+        assertRoundTrip(new NetPing(self, other, 42, 1 << 16, coordinate, Ping.NOT_SUSPECTED));
+        assertRoundTrip(new NetPing(self, nated, 7, (3 << 16) + 5, coordinate, 1 << 16));
+        assertRoundTrip(new NetPing(self, nated, 8, (3 << 16) + 5, coordinate, Incarnation.UNKNOWN));
+    }
+
+    @Test
+    public void pong() {
+        assertRoundTrip(new NetPong(self, other, pong(10)));
+    }
+
+    @Test
+    public void indirectPing() {
+        assertRoundTrip(new NetKPing(self, other, nated, 42));
+        assertRoundTrip(new NetKPong(self, other, nated, 1 << 16, 42));
+    }
+
+    @Test
+    public void membershipUpdates() {
+        assertRoundTrip(new NetAlive(self, other, 1 << 16));
+        assertRoundTrip(new NetJoin(self, other, 1 << 16));
+        assertRoundTrip(new NetLeave(self, other, 1 << 16));
+        assertRoundTrip(new NetAlive(self, other, Incarnation.of(32767, 65535)));
+        assertRoundTrip(new NetMembershipChunk(self, other, chunk(nodes(10), nodes(5))));
+
+        //An unknown incarnation counter must not cost more than a small one.
+        NetAlive unknown = new NetAlive(self, other, Incarnation.UNKNOWN);
+        assertRoundTrip(unknown);
+        assertTrue("unknown incarnation counter is too large", new MessageCodec(0).encode(unknown).remaining() <= new MessageCodec(0).encode(new NetAlive(self, other, 0)).remaining());
+    }
+
+    @Test
+    public void natPing() {
+        assertRoundTrip(new NetNatPing(nated, self, 42));
+        assertRoundTrip(new NetNatPong(self, nated, 42));
+    }
+
+    @Test
+    public void statuses() {
+        Map<Integer, Integer> nodes = ids(nodes(10));
+        Set<Integer> removed = new HashSet<>(ids(nodes(3)).keySet());
+
+        assertRoundTrip(new NetStatus(self, other, status(7, nodes)));
+        assertRoundTrip(new NetStatus(self, other, status(7, nodes), true));
+        assertRoundTrip(new NetStatusDelta(self, other, new StatusDelta(8, 7, 100, 101, nodes, nodes, nodes, removed, removed, removed)));
+        assertRoundTrip(new NetStatusAck(other, self, 7));
+        assertRoundTrip(new NetStatusDigest(self, other, new StatusDigest(7, 100, 101, 10, 0x1234567890ABCDEFL)));
+        assertRoundTrip(new NetStatusRequest(other, self, 7));
+    }
+
+    @Test
+    public void metadata() {
+        Map<String, String> tags = new HashMap<>();
+        tags.put("role", "storage");
+        tags.put("zone", "eu-north");
+
+        assertRoundTrip(new NetMetadata(self, other, MetadataDelta.full(MemberMetadata.of(2, tags))));
+        assertRoundTrip(new NetMetadata(self, other, new MetadataDelta(3, 2, tags, new HashSet<>(Arrays.asList("rack")))));
+        assertRoundTrip(new NetMetadataRequest(self, other, 1));
+    }
+
+    @Test
+    public void shuffle() {
+        Set<CroupierContainer> publicNodes = new HashSet<>();
+        publicNodes.add(new CroupierContainer(other, coordinate, 3));
+        Set<CroupierContainer> privateNodes = new HashSet<>();
+        privateNodes.add(new CroupierContainer(nated, coordinate, 0));
+
+        assertRoundTrip(new CroupierShuffleNet.Request(self, other, 5, new CroupierShuffle.Request(UUID.randomUUID(), publicNodes, privateNodes)));
+        assertRoundTrip(new CroupierShuffleNet.Response(self, other, -5, new CroupierShuffle.Response(UUID.randomUUID(), publicNodes, privateNodes)));
+    }
+
+    @Test
+    public void sourceAndRelayHeaders() {
+        NetPing ping = new NetPing(self, nated, 42, 1 << 16, coordinate, Ping.NOT_SUSPECTED);
+        NetMsg sent = ping.copyMessage(new SourceHeader<>(ping.getHeader(), other));
+        NetMsg relayed = ping.copyMessage(new RelayHeader<>(ping.getHeader(), other));
+
+        assertRoundTrip(sent);
+        assertRoundTrip(relayed);
+    }
+
+    @Test
+    public void batch() {
+        List<NetMsg> messages = Arrays.<NetMsg>asList(
+                new NetAlive(self, other, 1 << 16),
+                new NetKPong(self, other, nated, 1 << 16, 42),
+                new NetStatusAck(self, other, 7),
+                new NetPong(self, other, pong(3)));
+
+        assertRoundTrip(new NetBatch(self, other, new Batch(messages)));
+    }
+
+    @Test
+    public void compressed() {
+        MessageCodec codec = new MessageCodec();
+        NetMsg[] messages = {
+            new NetPong(self, other, pong(50)),
+            new NetStatus(self, other, status(7, ids(nodes(200)))),
+            new NetBatch(self, other, new Batch(Arrays.<NetMsg>asList(new NetPong(self, other, pong(50)), new NetAlive(self, other, 1 << 16))))
+        };
+
+        for (NetMsg msg : messages) {
+            int plainLength = new MessageCodec(0).encode(msg).remaining();
+            ByteBuffer encoded = codec.encode(msg);
+            assertTrue(msg.getClass().getSimpleName() + " is not compressed", encoded.remaining() < plainLength);
+            assertMessage(msg, MessageCodec.read(encoded));
+        }
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void oversizedCompressedLength() {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.put((byte) 0x82); //Compressed pong.
+        Wire.writeVarint(buffer, Integer.MAX_VALUE);
+        buffer.put(new byte[4]);
+        buffer.flip();
+
+        MessageCodec.read(buffer);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void oversizedCount() {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        Wire.writeVarint(buffer, 1 << 30);
+        buffer.put(new byte[4]);
+        buffer.flip();
+
+        Wire.readCount(buffer);
+    }
+
+    private void assertRoundTrip(NetMsg msg) {
+        assertMessage(msg, MessageCodec.read(new MessageCodec(0).encode(msg)));
+    }
+
+    private static void assertMessage(NetMsg expected, NetMsg actual) {
+        assertEquals(expected.getClass(), actual.getClass());
+        assertHeader(expected.getHeader(), actual.getHeader());
+
+        Object e = expected.getContent();
+        Object a = actual.getContent();
+        assertEquals(e.getClass(), a.getClass());
+
+        if (e instanceof Ping) {
+            assertEquals(((Ping) e).getPingNr(), ((Ping) a).getPingNr());
+            assertEquals(((Ping) e).getIncarnationCounter(), ((Ping) a).getIncarnationCounter());
+            assertEquals(((Ping) e).getSuspectedIncarnation(), ((Ping) a).getSuspectedIncarnation());
+            assertEquals(((Ping) e).isSuspected(), ((Ping) a).isSuspected());
+            assertCoordinate(((Ping) e).getCoordinate(), ((Ping) a).getCoordinate());
+        } else if (e instanceof Pong) {
+            assertPong((Pong) e, (Pong) a);
+        } else if (e instanceof KPing) {
+            assertEquals(((KPing) e).getPingNr(), ((KPing) a).getPingNr());
+            assertAddress(((KPing) e).getAddressToPing(), ((KPing) a).getAddressToPing());
+        } else if (e instanceof KPong) {
+            assertEquals(((KPong) e).getPingNr(), ((KPong) a).getPingNr());
+            assertEquals(((KPong) e).getIncarnationCounter(), ((KPong) a).getIncarnationCounter());
+            assertAddress(((KPong) e).getAddress(), ((KPong) a).getAddress());
+        } else if (e instanceof Alive) {
+            assertEquals(((Alive) e).getIncarnationCounter(), ((Alive) a).getIncarnationCounter());
+        } else if (e instanceof Join) {
+            assertEquals(((Join) e).getIncarnationCounter(), ((Join) a).getIncarnationCounter());
+        } else if (e instanceof Leave) {
+            assertEquals(((Leave) e).getIncarnationCounter(), ((Leave) a).getIncarnationCounter());
+        } else if (e instanceof NatPing) {
+            assertEquals(((NatPing) e).getPingNr(), ((NatPing) a).getPingNr());
+        } else if (e instanceof NatPong) {
+            assertEquals(((NatPong) e).getPingNr(), ((NatPong) a).getPingNr());
+        } else if (e instanceof Status) {
+            assertEquals(((NetStatus) expected).isAckRequested(), ((NetStatus) actual).isAckRequested());
+            assertStatus((Status) e, (Status) a);
+        } else if (e instanceof StatusDelta) {
+            assertStatusDelta((StatusDelta) e, (StatusDelta) a);
+        } else if (e instanceof StatusAck) {
+            assertEquals(((StatusAck) e).getStatusNr(), ((StatusAck) a).getStatusNr());
+        } else if (e instanceof StatusDigest) {
+            StatusDigest ed = (StatusDigest) e;
+            StatusDigest ad = (StatusDigest) a;
+            assertEquals(ed.getStatusNr(), ad.getStatusNr());
+            assertEquals(ed.getReceivedPings(), ad.getReceivedPings());
+            assertEquals(ed.getSentPings(), ad.getSentPings());
+            assertEquals(ed.getAliveCount(), ad.getAliveCount());
+            assertEquals(ed.getAliveHash(), ad.getAliveHash());
+        } else if (e instanceof StatusRequest) {
+            assertEquals(((StatusRequest) e).getStatusNr(), ((StatusRequest) a).getStatusNr());
+        } else if (e instanceof MembershipChunk) {
+            MembershipChunk ec = (MembershipChunk) e;
+            MembershipChunk ac = (MembershipChunk) a;
+            assertEquals(ec.getChunkNr(), ac.getChunkNr());
+            assertEquals(ec.getChunkCount(), ac.getChunkCount());
+            assertEquals(ec.getAliveNodes(), ac.getAliveNodes());
+            assertEquals(ec.getDeadNodes(), ac.getDeadNodes());
+            for (Integer id : ec.getAliveNodes().keySet()) {
+                assertAddress(ec.getAddress(id), ac.getAddress(id));
+            }
+            for (Integer id : ec.getDeadNodes().keySet()) {
+                assertAddress(ec.getAddress(id), ac.getAddress(id));
+            }
+        } else if (e instanceof MetadataDelta) {
+            assertMetadataDelta((MetadataDelta) e, (MetadataDelta) a);
+        } else if (e instanceof MetadataRequest) {
+            assertEquals(((MetadataRequest) e).getKnownVersion(), ((MetadataRequest) a).getKnownVersion());
+        } else if (e instanceof CroupierShuffle.Basic) {
+            CroupierShuffle.Basic es = (CroupierShuffle.Basic) e;
+            CroupierShuffle.Basic as = (CroupierShuffle.Basic) a;
+            assertEquals(es.getId(), as.getId());
+            assertContainers(es.publicNodes, as.publicNodes);
+            assertContainers(es.privateNodes, as.privateNodes);
+        } else if (e instanceof Batch) {
+            List<NetMsg> em = ((Batch) e).getMessages();
+            List<NetMsg> am = ((Batch) a).getMessages();
+            assertEquals(em.size(), am.size());
+            for (int i = 0; i < em.size(); i++) {
+                assertMessage(em.get(i), am.get(i));
+            }
+        } else {
+            fail("no field comparison for " + e.getClass().getSimpleName());
+        }
+    }
+
+    private static void assertHeader(Header<NatedAddress> expected, Header<NatedAddress> actual) {
+        assertEquals(expected.getClass(), actual.getClass());
+        assertEquals(expected.getProtocol(), actual.getProtocol());
+        assertAddress(expected.getSource(), actual.getSource());
+        assertAddress(expected.getDestination(), actual.getDestination());
+
+        if (expected instanceof SourceHeader) {
+            assertHeader(((SourceHeader<NatedAddress>) expected).getActualHeader(), ((SourceHeader<NatedAddress>) actual).getActualHeader());
+        } else if (expected instanceof RelayHeader) {
+            assertHeader(((RelayHeader<NatedAddress>) expected).getActualHeader(), ((RelayHeader<NatedAddress>) actual).getActualHeader());
+        } else if (expected instanceof OverlayHeader) {
+            assertEquals(((OverlayHeader) expected).getOverlayId(), ((OverlayHeader) actual).getOverlayId());
+        }
+    }
+
+    private static void assertAddress(NatedAddress expected, NatedAddress actual) {
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getIp(), actual.getIp());
+        assertEquals(expected.getPort(), actual.getPort());
+        assertEquals(expected.getNatType(), actual.getNatType());
+
+        Map<Integer, NatedAddress> actualParents = byId(actual.getParents());
+        assertEquals(expected.getParents().size(), actualParents.size());
+        for (NatedAddress parent : expected.getParents()) {
+            assertTrue("missing parent " + parent.getId(), actualParents.containsKey(parent.getId()));
+            assertAddress(parent, actualParents.get(parent.getId()));
+        }
+    }
+
+    private static void assertCoordinate(VivaldiCoordinate expected, VivaldiCoordinate actual) {
+        assertEquals(expected.getX(), actual.getX(), 0);
+        assertEquals(expected.getY(), actual.getY(), 0);
+        assertEquals(expected.getHeight(), actual.getHeight(), 0);
+        assertEquals(expected.getError(), actual.getError(), 0);
+    }
+
+    private static void assertPong(Pong expected, Pong actual) {
+        assertEquals(expected.getPingNr(), actual.getPingNr());
+        assertEquals(expected.getIncarnationCounter(), actual.getIncarnationCounter());
+        assertEquals(expected.getMetadataVersion(), actual.getMetadataVersion());
+        assertCoordinate(expected.getCoordinate(), actual.getCoordinate());
+
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.getId(i), actual.getId(i));
+            assertEquals(expected.getState(i), actual.getState(i));
+            assertEquals(expected.getIncarnationCounter(i), actual.getIncarnationCounter(i));
+            assertAddress(expected.getAddress(i), actual.getAddress(i));
+        }
+
+        SizeSketch expectedSketch = expected.getSizeSketch();
+        SizeSketch actualSketch = actual.getSizeSketch();
+        assertEquals(expectedSketch.size(), actualSketch.size());
+        for (int i = 0; i < expectedSketch.size(); i++) {
+            assertEquals(expectedSketch.getHash(i), actualSketch.getHash(i));
+            assertEquals(expectedSketch.getAge(i), actualSketch.getAge(i));
+        }
+
+        assertEquals(expected.getDeadObservers(), actual.getDeadObservers());
+
+        assertEquals(expected.getMetadataDeltas().keySet(), actual.getMetadataDeltas().keySet());
+        for (Integer id : expected.getMetadataDeltas().keySet()) {
+            assertMetadataDelta(expected.getMetadataDeltas().get(id), actual.getMetadataDeltas().get(id));
+        }
+    }
+
+    private static void assertStatus(Status expected, Status actual) {
+        assertEquals(expected.getStatusNr(), actual.getStatusNr());
+        assertEquals(expected.getReceivedPings(), actual.getReceivedPings());
+        assertEquals(expected.getSentPings(), actual.getSentPings());
+        assertEquals(expected.getAliveNodes(), actual.getAliveNodes());
+        assertEquals(expected.getSuspectedNodes(), actual.getSuspectedNodes());
+        assertEquals(expected.getDeadNodes(), actual.getDeadNodes());
+    }
+
+    private static void assertStatusDelta(StatusDelta expected, StatusDelta actual) {
+        assertEquals(expected.getStatusNr(), actual.getStatusNr());
+        assertEquals(expected.getBaseStatusNr(), actual.getBaseStatusNr());
+        assertEquals(expected.getReceivedPings(), actual.getReceivedPings());
+        assertEquals(expected.getSentPings(), actual.getSentPings());
+        assertEquals(expected.getChangedAliveNodes(), actual.getChangedAliveNodes());
+        assertEquals(expected.getChangedSuspectedNodes(), actual.getChangedSuspectedNodes());
+        assertEquals(expected.getChangedDeadNodes(), actual.getChangedDeadNodes());
+        assertEquals(expected.getRemovedAliveNodes(), actual.getRemovedAliveNodes());
+        assertEquals(expected.getRemovedSuspectedNodes(), actual.getRemovedSuspectedNodes());
+        assertEquals(expected.getRemovedDeadNodes(), actual.getRemovedDeadNodes());
+    }
+
+    private static void assertMetadataDelta(MetadataDelta expected, MetadataDelta actual) {
+        assertEquals(expected.getVersion(), actual.getVersion());
+        assertEquals(expected.getBaseVersion(), actual.getBaseVersion());
+        assertEquals(expected.getChangedTags(), actual.getChangedTags());
+        assertEquals(expected.getRemovedTags(), actual.getRemovedTags());
+    }
+
+    private static void assertContainers(Set<CroupierContainer> expected, Set<CroupierContainer> actual) {
+        Map<Integer, CroupierContainer> actualContainers = new HashMap<>();
+        for (CroupierContainer container : actual) {
+            actualContainers.put(container.getSource().getId(), container);
+        }
+
+        assertEquals(expected.size(), actualContainers.size());
+        for (CroupierContainer container : expected) {
+            CroupierContainer actualContainer = actualContainers.get(container.getSource().getId());
+            assertNotNull("missing container of " + container.getSource().getId(), actualContainer);
+            assertAddress(container.getSource(), actualContainer.getSource());
+            assertEquals(container.getAge(), actualContainer.getAge());
+            assertCoordinate((VivaldiCoordinate) container.getContent(), (VivaldiCoordinate) actualContainer.getContent());
+        }
+    }
+
+    private static Map<Integer, NatedAddress> byId(Collection<NatedAddress> addresses) {
+        Map<Integer, NatedAddress> byId = new HashMap<>();
+        for (NatedAddress address : addresses) {
+            byId.put(address.getId(), address);
+        }
+        return byId;
+    }
+
+    private Pong pong(int nodeCount) {
+        Map<NatedAddress, Integer> nodes = nodes(nodeCount);
+        Pong.Builder pong = new Pong.Builder();
+        for (NatedAddress address : nodes.keySet()) {
+            pong.add((byte) (address.getId() % 4), address, nodes.get(address));
+        }
+
+        long[] hashes = new long[8];
+        int[] ages = new int[8];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = i * 0x9E3779B97F4A7C15L;
+            ages[i] = i % 3;
+        }
+
+        Map<Integer, Set<Integer>> deadObservers = new HashMap<>();
+        deadObservers.put(10, new HashSet<>(Arrays.asList(1, 2, 3)));
+
+        Map<String, String> tags = new HashMap<>();
+        tags.put("role", "storage");
+        Map<Integer, MetadataDelta> metadataDeltas = new HashMap<>();
+        metadataDeltas.put(nated.getId(), MetadataDelta.full(MemberMetadata.of(2, tags)));
+
+        return pong.pingNr(42).incarnationCounter(1 << 16).coordinate(coordinate)
+                .sizeSketch(new SizeSketch(hashes, ages)).deadObservers(deadObservers).metadata(metadataDeltas, 4)
+                .build();
+    }
+
+    private Status status(int statusNr, Map<Integer, Integer> nodes) {
+        return new Status.Builder().statusNr(statusNr).pings(100, 101).aliveNodes(nodes).suspectedNodes(ids(nodes(2))).deadNodes(ids(nodes(1))).build();
+    }
+
+    private static MembershipChunk chunk(Map<NatedAddress, Integer> aliveNodes, Map<NatedAddress, Integer> deadNodes) {
+        Map<Integer, NatedAddress> addresses = new HashMap<>();
+        for (NatedAddress address : aliveNodes.keySet()) {
+            addresses.put(address.getId(), address);
+        }
+        for (NatedAddress address : deadNodes.keySet()) {
+            addresses.put(address.getId(), address);
+        }
+        return new MembershipChunk(ids(aliveNodes), ids(deadNodes), addresses, 1, 3);
+    }
+
+    private static Map<Integer, Integer> ids(Map<NatedAddress, Integer> nodes) {
+        Map<Integer, Integer> ids = new HashMap<>();
+        for (Map.Entry<NatedAddress, Integer> entry : nodes.entrySet()) {
+            ids.put(entry.getKey().getId(), entry.getValue());
+        }
+        return ids;
+    }
+
+    private Map<NatedAddress, Integer> nodes(int count) {
+        Map<NatedAddress, Integer> nodes = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            NatedAddress address = i % 4 == 0 ? natedAddress(10 + i, 30000 + i, self, other) : openAddress(10 + i, 30000 + i);
+            //The last node stands for one learned from a croupier sample, sent with an unknown incarnation counter.
+            nodes.put(address, i > 0 && i == count - 1 ? Incarnation.UNKNOWN : (i << 16) + i);
+        }
+        return nodes;
+    }
+
+    private static NatedAddress openAddress(int id, int port) {
+        return new BasicNatedAddress(baseAddress(id, port));
+    }
+
+    private static NatedAddress natedAddress(int id, int port, NatedAddress... parents) {
+        return new BasicNatedAddress(baseAddress(id, port), NatType.NAT, new HashSet<>(Arrays.asList(parents)));
+    }
+
+    private static BasicAddress baseAddress(int id, int port) {
+        try {
+            return new BasicAddress(InetAddress.getByName("127.0.0.1"), port, id);
+        } catch (UnknownHostException ex) {
+            throw new RuntimeException("cannot create address for localhost");
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package se.kth.swim.node;
+
+import org.junit.Test;
+import se.sics.p2ptoolbox.util.network.NatedAddress;
+import se.sics.p2ptoolbox.util.network.impl.BasicAddress;
+import se.sics.p2ptoolbox.util.network.impl.BasicNatedAddress;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks when the cut detector takes a cut, around the high and low watermarks and the maximum wait.
+ */
+public class CutDetectorTest {
+
+    private static final int HIGH = 3;
+    private static final int LOW = 2;
+    private static final long MAX_WAIT = 1000;
+
+    private final NatedAddress first = address(10);
+    private final NatedAddress second = address(11);
+
+    @Test
+    public void stableAtHighWatermark() {
+        CutDetector detector = new CutDetector(HIGH, LOW, MAX_WAIT);
+
+        detector.report(first, 1, Arrays.asList(1, 2), 0);
+        assertTrue(detector.takeCut(0).isEmpty()); //Unstable, one observer short.
+
+        detector.report(first, 1, Arrays.asList(3), 0);
+        List<CutDetector.Report> cut = detector.takeCut(0);
+        assertEquals(1, cut.size());
+        assertEquals(first, cut.get(0).getAddress());
+        assertEquals(1, detector.getViewNumber());
+
+        assertTrue(detector.getObservers(first.getId()).isEmpty()); //Reports in a cut are dropped.
+        assertTrue(detector.takeCut(0).isEmpty());
+        assertEquals(1, detector.getViewNumber());
+    }
+
+    @Test
+    public void unstableAtLowWatermarkBlocksCut() {
+        CutDetector detector = new CutDetector(HIGH, LOW, MAX_WAIT);
+        detector.report(first, 1, Arrays.asList(1, 2, 3), 0);
+        detector.report(second, 1, Arrays.asList(1, 2), 0);
+
+        assertTrue(detector.takeCut(0).isEmpty());
+        assertEquals(0, detector.getViewNumber());
+
+        //Both leave the view together once the second is stable too.
+        detector.report(second, 1, Arrays.asList(4), 0);
+        assertEquals(2, detector.takeCut(0).size());
+    }
+
+    @Test
+    public void belowLowWatermarkDoesNotBlockCut() {
+        CutDetector detector = new CutDetector(HIGH, LOW, MAX_WAIT);
+        detector.report(first, 1, Arrays.asList(1, 2, 3), 0);
+        detector.report(second, 1, Arrays.asList(1), 0);
+
+        List<CutDetector.Report> cut = detector.takeCut(0);
+        assertEquals(1, cut.size());
+        assertEquals(first, cut.get(0).getAddress());
+        assertEquals(1, detector.getObservers(second.getId()).size()); //Still waiting for more observers.
+    }
+
+    @Test
+    public void unstableAfterMaxWaitIsStable() {
+        CutDetector detector = new CutDetector(HIGH, LOW, MAX_WAIT);
+        detector.report(first, 1, Arrays.asList(1, 2), 0);
+
+        assertTrue(detector.takeCut(MAX_WAIT).isEmpty()); //Exactly maxWait is not expired yet.
+        assertEquals(1, detector.takeCut(MAX_WAIT + 1).size());
+    }
+
+    @Test
+    public void belowLowWatermarkDroppedAfterMaxWait() {
+        CutDetector detector = new CutDetector(HIGH, LOW, MAX_WAIT);
+        detector.report(first, 1, Arrays.asList(1), 0);
+
+        assertTrue(detector.takeCut(MAX_WAIT + 1).isEmpty());
+        assertTrue(detector.getObservers(first.getId()).isEmpty());
+        assertEquals(0, detector.getViewNumber());
+    }
+
+    @Test
+    public void observersCountedOnce() {
+        CutDetector detector = new CutDetector(HIGH, LOW, MAX_WAIT);
+        assertTrue(detector.report(first, 1, Arrays.asList(1, 2), 0));
+        assertFalse(detector.report(first, 1, Arrays.asList(1, 2), 0)); //Nothing new to gossip.
+        assertTrue(detector.takeCut(0).isEmpty());
+    }
+
+    @Test
+    public void observersCappedAtHighWatermark() {
+        CutDetector detector = new CutDetector(HIGH, LOW, MAX_WAIT);
+        detector.report(first, 1, Arrays.asList(1, 2, 3, 4, 5), 0);
+        assertEquals(HIGH, detector.getObservers(first.getId()).size());
+        assertFalse(detector.report(first, 1, Arrays.asList(6), 0));
+    }
+
+    @Test
+    public void newerIncarnationRestartsReport() {
+        CutDetector detector = new CutDetector(HIGH, LOW, MAX_WAIT);
+        detector.report(first, 1, Arrays.asList(1, 2), 0);
+
+        assertFalse(detector.report(first, 0, Arrays.asList(3), 0)); //Older incarnation, already refuted.
+        assertEquals(2, detector.getObservers(first.getId()).size());
+
+        assertTrue(detector.report(first, 2, Arrays.asList(3), 0));
+        assertEquals(1, detector.getObservers(first.getId()).size());
+    }
+
+    private static NatedAddress address(int id) {
+        try {
+            return new BasicNatedAddress(new BasicAddress(InetAddress.getByName("127.0.0.1"), 30000 + id, id));
+        } catch (UnknownHostException ex) {
+            throw new RuntimeException("cannot create address for localhost");
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package se.kth.swim.node;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the exponential decay of the flap score.
+ */
+public class FlapScoreTest {
+
+    private static final long HALF_LIFE = 1000;
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void startsAtZero() {
+        FlapScore score = new FlapScore(HALF_LIFE, 500);
+        assertEquals(0, score.getScore(500), DELTA);
+        assertEquals(0, score.getScore(500 + 10 * HALF_LIFE), DELTA);
+    }
+
+    @Test
+    public void halvesEveryHalfLife() {
+        FlapScore score = new FlapScore(HALF_LIFE, 0);
+        score.flap(0);
+
+        assertEquals(1, score.getScore(0), DELTA);
+        assertEquals(0.5, score.getScore(HALF_LIFE), DELTA);
+        assertEquals(0.25, score.getScore(2 * HALF_LIFE), DELTA);
+        assertEquals(Math.sqrt(0.5), score.getScore(HALF_LIFE / 2), DELTA);
+    }
+
+    @Test
+    public void flapAddsToDecayedScore() {
+        FlapScore score = new FlapScore(HALF_LIFE, 0);
+        score.flap(0);
+        score.flap(0);
+        assertEquals(2, score.getScore(0), DELTA);
+
+        score.flap(HALF_LIFE);
+        assertEquals(2, score.getScore(HALF_LIFE), DELTA); //2 decayed to 1, plus one.
+        assertEquals(1, score.getScore(2 * HALF_LIFE), DELTA);
+    }
+
+    @Test
+    public void readingDoesNotDecayTwice() {
+        FlapScore score = new FlapScore(HALF_LIFE, 0);
+        score.flap(0);
+        score.getScore(HALF_LIFE);
+        assertEquals(0.25, score.getScore(2 * HALF_LIFE), DELTA);
+    }
+}
@@ -0,0 +1,90 @@
+package se.kth.swim.node;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the ordering of incarnation counters, in particular across epoch wraparound.
+ */
+public class IncarnationTest {
+
+    private static final int MAX_EPOCH = 32767;
+    private static final int MAX_COUNTER = 65535;
+    private static final int HALF_EPOCHS = (MAX_EPOCH + 1) / 2;
+
+    @Test
+    public void epochAndCounterRoundTrip() {
+        int incarnation = Incarnation.of(MAX_EPOCH, MAX_COUNTER);
+        assertTrue("incarnation is negative", incarnation >= 0);
+        assertEquals(MAX_EPOCH, Incarnation.getEpoch(incarnation));
+        assertEquals(MAX_COUNTER, Incarnation.getCounter(incarnation));
+    }
+
+    @Test
+    public void sameEpochComparesCounters() {
+        assertEquals(0, Incarnation.compare(Incarnation.of(5, 3), Incarnation.of(5, 3)));
+        assertTrue(Incarnation.compare(Incarnation.of(5, 4), Incarnation.of(5, 3)) > 0);
+        assertTrue(Incarnation.compare(Incarnation.of(5, 3), Incarnation.of(5, 4)) < 0);
+        assertFalse(Incarnation.isNewerEpoch(Incarnation.of(5, 4), Incarnation.of(5, 3)));
+    }
+
+    @Test
+    public void newerEpochWinsOverCounter() {
+        assertTrue(Incarnation.compare(Incarnation.of(6, 0), Incarnation.of(5, MAX_COUNTER)) > 0);
+        assertTrue(Incarnation.compare(Incarnation.of(5, MAX_COUNTER), Incarnation.of(6, 0)) < 0);
+        assertTrue(Incarnation.isNewerEpoch(Incarnation.of(6, 0), Incarnation.of(5, MAX_COUNTER)));
+    }
+
+    @Test
+    public void epochWrapsAround() {
+        int last = Incarnation.of(MAX_EPOCH, MAX_COUNTER);
+        int wrapped = Incarnation.of(0, 0);
+
+        assertTrue(Incarnation.isNewerEpoch(wrapped, last));
+        assertFalse(Incarnation.isNewerEpoch(last, wrapped));
+        assertTrue(Incarnation.compare(wrapped, last) > 0);
+        assertTrue(Incarnation.compare(last, wrapped) < 0);
+    }
+
+    @Test
+    public void epochsNewerUpToHalfTheSpace() {
+        int epoch = Incarnation.of(100, 0);
+        int halfBefore = Incarnation.of(100 - (HALF_EPOCHS - 1), 0); //Just under half the epoch space before, wraps below zero.
+
+        assertTrue(Incarnation.isNewerEpoch(epoch, halfBefore));
+        assertTrue(Incarnation.compare(epoch, halfBefore) > 0);
+
+        //Half the space away, neither is newer.
+        int opposite = Incarnation.of(100 + HALF_EPOCHS, 0);
+        assertFalse(Incarnation.isNewerEpoch(epoch, opposite));
+        assertFalse(Incarnation.isNewerEpoch(opposite, epoch));
+    }
+
+    @Test
+    public void unknownIsOldest() {
+        assertTrue(Incarnation.compare(Incarnation.UNKNOWN, 0) < 0);
+        assertTrue(Incarnation.compare(Incarnation.of(MAX_EPOCH, MAX_COUNTER), Incarnation.UNKNOWN) > 0);
+        assertEquals(0, Incarnation.compare(Incarnation.UNKNOWN, Incarnation.UNKNOWN));
+        assertFalse(Incarnation.isNewerEpoch(Incarnation.of(1, 0), Incarnation.UNKNOWN));
+        assertFalse(Incarnation.isNewerEpoch(Incarnation.UNKNOWN, Incarnation.of(1, 0)));
+    }
+
+    @Test
+    public void incrementStopsAtMaxCounter() {
+        assertEquals(Incarnation.of(7, 1), Incarnation.increment(Incarnation.of(7, 0)));
+        assertEquals(Incarnation.of(7, MAX_COUNTER), Incarnation.increment(Incarnation.of(7, MAX_COUNTER)));
+        assertEquals(Incarnation.of(MAX_EPOCH, MAX_COUNTER), Incarnation.increment(Incarnation.of(MAX_EPOCH, MAX_COUNTER)));
+    }
+
+    @Test
+    public void restartGetsNewerEpoch() {
+        int nodeId = 1000001; //Not used elsewhere, the last epochs are kept per JVM.
+        int first = Incarnation.initial(nodeId);
+        int second = Incarnation.initial(nodeId); //Within the same second.
+
+        assertEquals(0, Incarnation.getCounter(first));
+        assertTrue(Incarnation.isNewerEpoch(second, first));
+        assertTrue(Incarnation.compare(second, Incarnation.of(Incarnation.getEpoch(first), MAX_COUNTER)) > 0);
+    }
+}
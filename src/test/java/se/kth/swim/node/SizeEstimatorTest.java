@@ -0,0 +1,89 @@
+package se.kth.swim.node;
+
+import org.junit.Test;
+import se.kth.swim.msg.SizeSketch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the min-hash size estimate: exact for small clusters, close for large ones, and forgetting nodes not seen for maxAge.
+ */
+public class SizeEstimatorTest {
+
+    private static final long MAX_AGE = 10000;
+
+    @Test
+    public void exactBelowSketchSize() {
+        SizeEstimator estimator = new SizeEstimator(0, MAX_AGE);
+        assertEquals(1, estimator.estimate(0), 0); //Only ourself.
+
+        for (int id = 1; id < 10; id++) {
+            estimator.refresh(id, 0);
+        }
+        estimator.refresh(5, 0); //Seeing a node again doesn't count it twice.
+        assertEquals(10, estimator.estimate(0), 0);
+    }
+
+    @Test
+    public void estimateOfLargeCluster() {
+        for (int size : new int[]{100, 1000, 10000}) {
+            SizeEstimator estimator = new SizeEstimator(0, MAX_AGE);
+            for (int id = 1; id < size; id++) {
+                estimator.refresh(id, 0);
+            }
+            //The relative error is about 1 / sqrt(k - 2), allow three times that.
+            double error = 3 / Math.sqrt(SizeEstimator.SKETCH_SIZE - 2);
+            double estimate = estimator.estimate(0);
+            assertTrue("estimate " + estimate + " of " + size + " nodes", Math.abs(estimate - size) <= error * size);
+        }
+    }
+
+    @Test
+    public void sketchBoundedBySketchSize() {
+        SizeEstimator estimator = new SizeEstimator(0, MAX_AGE);
+        for (int id = 1; id < 1000; id++) {
+            estimator.refresh(id, 0);
+        }
+        assertEquals(SizeEstimator.SKETCH_SIZE, estimator.getSketch(0).size());
+    }
+
+    @Test
+    public void mergeCountsNodesOfBothSketches() {
+        SizeEstimator estimator = new SizeEstimator(0, MAX_AGE);
+        SizeEstimator other = new SizeEstimator(100, MAX_AGE);
+        for (int id = 1; id < 5; id++) {
+            estimator.refresh(id, 0);
+            other.refresh(100 + id, 0);
+        }
+        estimator.refresh(100, 0); //Known by both, counted once.
+
+        estimator.merge(other.getSketch(0), 0);
+        assertEquals(10, estimator.estimate(0), 0);
+    }
+
+    @Test
+    public void mergeKeepsAgeOfSighting() {
+        SizeEstimator other = new SizeEstimator(100, MAX_AGE);
+        other.refresh(101, 0);
+        SizeSketch sketch = other.getSketch(MAX_AGE / 2); //101 was seen half of maxAge ago.
+
+        SizeEstimator estimator = new SizeEstimator(0, MAX_AGE);
+        estimator.merge(sketch, 2 * MAX_AGE);
+        assertEquals(3, estimator.estimate(2 * MAX_AGE), 0);
+
+        //Expired by the age carried in the sketch, while 100, seen when the sketch was built, is still counted.
+        assertEquals(2, estimator.estimate(2 * MAX_AGE + MAX_AGE / 2 + 1), 0);
+    }
+
+    @Test
+    public void expiredNodesLeaveEstimate() {
+        SizeEstimator estimator = new SizeEstimator(0, MAX_AGE);
+        for (int id = 1; id < 10; id++) {
+            estimator.refresh(id, 0);
+        }
+        estimator.refresh(1, MAX_AGE / 2);
+
+        assertEquals(10, estimator.estimate(MAX_AGE), 0); //Exactly maxAge old is kept.
+        assertEquals(2, estimator.estimate(MAX_AGE + 1), 0); //Ourself and 1.
+    }
+}
@@ -0,0 +1,65 @@
+package se.kth.swim.timeout;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that jittered delays stay within their bounds and are reproducible from the seed.
+ */
+public class JitterTest {
+
+    private static final int SAMPLES = 10000;
+
+    @Test
+    public void phaseOffsetWithinPeriod() {
+        Jitter jitter = new Jitter(1);
+        for (int i = 0; i < SAMPLES; i++) {
+            long offset = jitter.phaseOffset(1000);
+            assertTrue("offset " + offset + " outside [0, 1000)", offset >= 0 && offset < 1000);
+        }
+    }
+
+    @Test
+    public void nextDelayWithinFraction() {
+        Jitter jitter = new Jitter(2);
+        long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+        for (int i = 0; i < SAMPLES; i++) {
+            long delay = jitter.nextDelay(1000, 0.1);
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+        assertTrue("delay " + min + " below 900", min >= 900);
+        assertTrue("delay " + max + " above 1100", max <= 1100);
+        //Both sides of the period are used, not only one.
+        assertTrue("no delay below the period", min < 1000);
+        assertTrue("no delay above the period", max > 1000);
+    }
+
+    @Test
+    public void nextDelayAtLeastOne() {
+        Jitter jitter = new Jitter(3);
+        for (int i = 0; i < SAMPLES; i++) {
+            long delay = jitter.nextDelay(1, 1.0);
+            assertTrue("delay " + delay + " below 1", delay >= 1);
+        }
+    }
+
+    @Test
+    public void zeroFractionIsPeriod() {
+        Jitter jitter = new Jitter(4);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(1000, jitter.nextDelay(1000, 0));
+        }
+    }
+
+    @Test
+    public void sameSeedSameDelays() {
+        Jitter jitter = new Jitter(5);
+        Jitter other = new Jitter(5);
+        assertEquals(jitter.phaseOffset(1000), other.phaseOffset(1000));
+        for (int i = 0; i < 100; i++) {
+            assertEquals(jitter.nextDelay(1000, 0.25), other.nextDelay(1000, 0.25));
+        }
+    }
+}